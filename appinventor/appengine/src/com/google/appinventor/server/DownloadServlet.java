@@ -12,7 +12,6 @@ import com.google.appinventor.server.storage.StorageIoInstanceHolder;
 import com.google.appinventor.server.util.CacheHeaders;
 import com.google.appinventor.server.util.CacheHeadersImpl;
 import com.google.appinventor.shared.rpc.ServerLayout;
-import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.storage.StorageUtil;
 
@@ -120,11 +119,16 @@ public class DownloadServlet extends OdeServlet {
         String projectTitle = (uriComponents.length > PROJECT_TITLE_INDEX) ?
             uriComponents[PROJECT_TITLE_INDEX] : null;
         final boolean includeProjectHistory = true;
-        String zipName = (projectTitle == null) ? null :
+        String zipName = (projectTitle == null) ?
+            fileExporter.getProjectSourceZipName(userId, projectId) :
             StringUtils.normalizeForFilename(projectTitle) + ".aia";
-        ProjectSourceZip zipFile = fileExporter.exportProjectSourceZip(userId,
-            projectId, includeProjectHistory, false, zipName, false);
-        downloadableFile = zipFile.getRawFile();
+        // Write the zip into the response rather than building it in a byte array first. The
+        // platform may still buffer the response.
+        ServletOutputStream out = startDownload(resp, zipName);
+        fileExporter.exportProjectSourceZip(userId, projectId, includeProjectHistory, false,
+            false, out);
+        out.close();
+        return;
 
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_USER_PROJECT_SOURCE)) {
         // Download project source files for the specified user project as a zip.
@@ -173,15 +177,18 @@ public class DownloadServlet extends OdeServlet {
         } else {
           zipName = "u" + projectUserId + "_p" + projectId + ".aia";
         }
-        ProjectSourceZip zipFile = fileExporter.exportProjectSourceZip(projectUserId,
-            projectId, /* include history*/ true, /* include keystore */ true, zipName, false);
-        downloadableFile = zipFile.getRawFile();
+        ServletOutputStream out = startDownload(resp, zipName);
+        fileExporter.exportProjectSourceZip(projectUserId, projectId,
+            /* include history*/ true, /* include keystore */ true, false, out);
+        out.close();
+        return;
         
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_ALL_PROJECTS_SOURCE)) {
         // Download all project source files as a zip of zips.
-        ProjectSourceZip zipFile = fileExporter.exportAllProjectsSourceZip(
-            userId, "all-projects.zip");
-        downloadableFile = zipFile.getRawFile();
+        ServletOutputStream out = startDownload(resp, "all-projects.zip");
+        fileExporter.exportAllProjectsSourceZip(userId, out);
+        out.close();
+        return;
 
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_FILE)) {
         // Download a specific file.
@@ -212,14 +219,23 @@ public class DownloadServlet extends OdeServlet {
     byte[] content = downloadableFile.getContent();
 
     // Set http response information
-    resp.setStatus(HttpServletResponse.SC_OK);
-    resp.setHeader("content-disposition", "attachment; filename=\"" + fileName + "\"");
-    resp.setContentType(StorageUtil.getContentTypeForFilePath(fileName));
     resp.setContentLength(content.length);
+    ServletOutputStream out = startDownload(resp, fileName);
 
     // Attach download data
-    ServletOutputStream out = resp.getOutputStream();
     out.write(content);
     out.close();
   }
+
+  /**
+   * Sets the http response information for a download and returns the
+   * stream to write the downloaded file to.
+   */
+  private static ServletOutputStream startDownload(HttpServletResponse resp, String fileName)
+      throws IOException {
+    resp.setStatus(HttpServletResponse.SC_OK);
+    resp.setHeader("content-disposition", "attachment; filename=\"" + fileName + "\"");
+    resp.setContentType(StorageUtil.getContentTypeForFilePath(fileName));
+    return resp.getOutputStream();
+  }
 }
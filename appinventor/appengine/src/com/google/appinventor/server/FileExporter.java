@@ -10,6 +10,7 @@ import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 
 import java.io.IOException;
+import java.io.OutputStream;
 
 import javax.annotation.Nullable;
 
@@ -56,6 +57,39 @@ public interface FileExporter {
                                           boolean fatalError)
       throws IOException;
 
+  /**
+   * Exports the project source files as a zip written to a stream, one file
+   * at a time, without first building the zip in a byte array. The stream
+   * may still buffer the zip, as App Engine does with request bodies and
+   * servlet responses.
+   *
+   * @param userId the userId
+   * @param projectId the project id belonging to the userId
+   * @param includeProjectHistory indicates whether to include a file
+   *        containing the project's history in the zip
+   * @param includeAndroidKeystore indicates whether to include the user's android.keystore file
+   * @param fatalError set to true to cause missing GCS file to throw exception
+   * @param out the stream the zip is written to; it is not closed
+   * @return the number of zipped files
+   * @throws IllegalArgumentException if download request cannot be fulfilled
+   *         (no source files), in which case nothing is written to out
+   * @throws IOException if files cannot be written
+   */
+  int exportProjectSourceZip(String userId, long projectId, boolean includeProjectHistory,
+                             boolean includeAndroidKeystore, boolean fatalError,
+                             OutputStream out)
+      throws IOException;
+
+  /**
+   * Returns the name a project's source zip is given when no specific name
+   * is desired.
+   *
+   * @param userId the userId
+   * @param projectId the project id belonging to the userId
+   * @return the name of the zip
+   */
+  String getProjectSourceZipName(String userId, long projectId);
+
   /**
    * Exports all of the user's projects' source files as a zip of zips.
    *
@@ -68,6 +102,19 @@ public interface FileExporter {
    */
   ProjectSourceZip exportAllProjectsSourceZip(String userId, String zipName) throws IOException;
 
+  /**
+   * Exports all of the user's projects' source files as a zip of zips
+   * written to a stream, one file at a time.
+   *
+   * @param userId the userId
+   * @param out the stream the zip is written to; it is not closed
+   * @return the number of files in the zip
+   * @throws IllegalArgumentException if download request cannot be fulfilled
+   *         (no projects), in which case nothing is written to out
+   * @throws IOException if files cannot be written
+   */
+  int exportAllProjectsSourceZip(String userId, OutputStream out) throws IOException;
+
   /**
    * Exports a specific project file.
    *
@@ -7,6 +7,7 @@
 package com.google.appinventor.server;
 
 import com.google.common.base.Strings;
+import com.google.appinventor.server.storage.ExportOutputStream;
 import com.google.appinventor.server.storage.ObjectifyStorageIo;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.storage.StorageIoInstanceHolder;
@@ -16,9 +17,11 @@ import com.google.appinventor.shared.storage.StorageUtil;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipOutputStream;
 
 import javax.annotation.Nullable;
@@ -72,45 +75,86 @@ public final class FileExporterImpl implements FileExporter {
     }
   }
 
+  @Override
+  public int exportProjectSourceZip(String userId, long projectId,
+                                    boolean includeProjectHistory,
+                                    boolean includeAndroidKeystore,
+                                    boolean fatalError,
+                                    OutputStream out) throws IOException {
+    // Stream project source files as a zip.
+    if (storageIo instanceof ObjectifyStorageIo) {
+      return ((ObjectifyStorageIo)storageIo).exportProjectSourceZip(userId, projectId,
+          includeProjectHistory, includeAndroidKeystore, fatalError, out);
+    } else {
+      throw new IllegalArgumentException("Objectify only");
+    }
+  }
+
+  @Override
+  public String getProjectSourceZipName(String userId, long projectId) {
+    return storageIo.getProjectName(userId, projectId) + ".aia";
+  }
+
   @Override
   public ProjectSourceZip exportAllProjectsSourceZip(String userId,
       String zipName) throws IOException {
+    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    StringBuilder metadata = new StringBuilder();
+    int count = writeAllProjectsSourceZip(userId, zipFile, metadata);
+
+    // Package the big zip file up as a ProjectSourceZip and return it.
+    byte[] content = zipFile.toByteArray();
+    ProjectSourceZip projectSourceZip = new ProjectSourceZip(zipName, content, count);
+    projectSourceZip.setMetadata(metadata.toString());
+    return projectSourceZip;
+  }
+
+  @Override
+  public int exportAllProjectsSourceZip(String userId, OutputStream out) throws IOException {
+    return writeAllProjectsSourceZip(userId, out, new StringBuilder());
+  }
+
+  private int writeAllProjectsSourceZip(String userId, OutputStream outputStream,
+      StringBuilder metadata) throws IOException {
     // Create a zip file for each project's sources.
     List<Long> projectIds = storageIo.getProjects(userId);
     if (projectIds.size() == 0) {
       throw new IllegalArgumentException("No projects to download");
     }
 
-    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
-    ZipOutputStream out = new ZipOutputStream(zipFile);
+    ExportOutputStream destination = new ExportOutputStream(outputStream);
+    ZipOutputStream out = new ZipOutputStream(destination);
+    boolean succeeded = false;
+    try {
+      int count = writeAllProjectsSourceZip(userId, projectIds, out, metadata);
+      succeeded = true;
+      return count;
+    } finally {
+      // Closing the zip frees its deflater, but leaves the caller's stream open.
+      destination.closeZip(out, succeeded);
+    }
+  }
+
+  private int writeAllProjectsSourceZip(String userId, List<Long> projectIds, ZipOutputStream out,
+      StringBuilder metadata) throws IOException {
     int count = 0;
-    String metadata = "";
     for (Long projectId : projectIds) {
+      String projectName = storageIo.getProjectName(userId, projectId);
+      ProjectEntryOutputStream projectOut = new ProjectEntryOutputStream(out, projectName + ".aia");
       try {
-        ProjectSourceZip projectSourceZip =
-            exportProjectSourceZip(userId, projectId, false, false, null, false);
-        byte[] data = projectSourceZip.getContent();
-        String name = projectSourceZip.getFileName();
-
-        // If necessary, rename duplicate projects
-        while (true) {
-          try {
-            out.putNextEntry(new ZipEntry(name));
-            break;
-          } catch (IOException e) {
-            name = "duplicate-" + name;
-          }
-        }
-        metadata += projectSourceZip.getMetadata() + "\n";
-
-        out.write(data, 0, data.length);
+        exportProjectSourceZip(userId, projectId, false, false, false, projectOut);
         out.closeEntry();
+        metadata.append(projectName).append("\n");
         count++;
       } catch (IllegalArgumentException e) {
         System.err.println("No files found for userid: " + userId +
             " for projectid: " + projectId);
         continue;
       } catch (IOException e) {
+        if (projectOut.isStarted()) {
+          // Part of the project's zip is already in the stream, and can't be taken back.
+          throw e;
+        }
         System.err.println("IOException while reading files found for userid: " +
             userId + " for projectid: " + projectId);
         continue;
@@ -132,13 +176,8 @@ public final class FileExporterImpl implements FileExporter {
       }
     }
 
-    out.close();
-
-    // Package the big zip file up as a ProjectSourceZip and return it.
-    byte[] content = zipFile.toByteArray();
-    ProjectSourceZip projectSourceZip = new ProjectSourceZip(zipName, content, count);
-    projectSourceZip.setMetadata(metadata);
-    return projectSourceZip;
+    out.finish();
+    return count;
   }
 
   @Override
@@ -178,4 +217,57 @@ public final class FileExporterImpl implements FileExporter {
     }
     return filteredFiles;
   }
+
+  /*
+   * Puts the zip entry of a project when the project's zip is first written,
+   * so that projects without files are left out of the zip of zips.
+   */
+  private static class ProjectEntryOutputStream extends OutputStream {
+    private final ZipOutputStream out;
+    private final String name;
+    private boolean started = false;
+
+    ProjectEntryOutputStream(ZipOutputStream out, String name) {
+      this.out = out;
+      this.name = name;
+    }
+
+    boolean isStarted() {
+      return started;
+    }
+
+    private void start() throws IOException {
+      if (started) {
+        return;
+      }
+      // If necessary, rename duplicate projects
+      String entryName = name;
+      while (true) {
+        try {
+          out.putNextEntry(new ZipEntry(entryName));
+          break;
+        } catch (ZipException e) {
+          entryName = "duplicate-" + entryName;
+        }
+      }
+      started = true;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      start();
+      out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      start();
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+  }
 }
@@ -0,0 +1,339 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.project.youngandroid;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.urlfetch.FetchOptions;
+import com.google.appengine.api.urlfetch.HTTPMethod;
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.URLFetchService;
+import com.google.appengine.api.urlfetch.URLFetchServiceFactory;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * Chooses the build server for each build among several build servers.
+ *
+ * <p>The load of each build server is read from its {@code /buildserver/vars} page, and read
+ * again when it is older than {@link #POLL_INTERVAL_MS}. The stale servers are polled in parallel,
+ * and only by the first request that finds them stale, so a build waits at most
+ * {@link #POLL_TIMEOUT_MS} for the polls. The load is the number of active and
+ * queued builds divided by the number of builds the server runs at once, so a server with more
+ * build slots gets more builds, plus the fraction of its heap that is in use. Builds sent by this
+ * App Engine instance since the last poll count too.
+ *
+ * <p>A build server that can't be polled, isn't up, or failed a build request is avoided for
+ * {@link #FAILURE_BACKOFF_MS}. It is still tried after all the others, so that builds don't fail
+ * when every server looks unhealthy.
+ *
+ * <p>The server chosen for a build is kept in memcache, keyed by build id, so that any App Engine
+ * instance can ask it for the progress of the build.
+ */
+final class BuildServerBalancer {
+
+  private static final Logger LOG = Logger.getLogger(BuildServerBalancer.class.getName());
+
+  // How long the load of a build server is used before it is polled again.
+  @VisibleForTesting
+  static final long POLL_INTERVAL_MS = 15000;
+
+  // How long a build server that failed is avoided.
+  @VisibleForTesting
+  static final long FAILURE_BACKOFF_MS = 60000;
+
+  // How long a build waits for the build servers to answer the polls.
+  @VisibleForTesting
+  static final long POLL_TIMEOUT_MS = 2000;
+
+  // How long the build server of a build is remembered.
+  private static final int ASSIGNMENT_EXPIRATION_SECS = 3600;
+
+  private static final String ASSIGNMENT_KEY_PREFIX = "build-server-of-";
+
+  /**
+   * The load and health of one build server, as seen by this App Engine instance.
+   */
+  @VisibleForTesting
+  static final class Backend {
+    private final String host;
+
+    // Guarded by this.
+    private long polledAtMs = 0;
+    private long avoidedUntilMs = 0;
+    private int builds = 0;
+    private int capacity = 1;
+    private double heapFraction = 0;
+
+    Backend(String host) {
+      this.host = host;
+    }
+
+    String getHost() {
+      return host;
+    }
+
+    synchronized boolean needsPoll(long nowMs) {
+      return nowMs - polledAtMs >= POLL_INTERVAL_MS;
+    }
+
+    /**
+     * Returns whether the caller should poll the build server, in which case other callers
+     * don't poll it until the poll interval has passed again.
+     */
+    synchronized boolean claimPoll(long nowMs) {
+      if (!needsPoll(nowMs)) {
+        return false;
+      }
+      polledAtMs = nowMs;
+      return true;
+    }
+
+    /**
+     * Updates the load of the build server from its variables.
+     */
+    synchronized void update(JSONObject vars, long nowMs) throws JSONException {
+      polledAtMs = nowMs;
+      if (!"UP".equals(vars.optString("state"))) {
+        avoidedUntilMs = nowMs + FAILURE_BACKOFF_MS;
+      }
+      builds = Integer.parseInt(vars.getString("active-build-tasks")) +
+          Integer.parseInt(vars.getString("queued-build-tasks"));
+      String maxActive = vars.getString("maximum-simultaneous-build-tasks-allowed");
+      capacity = "unlimited".equals(maxActive)
+          ? Integer.parseInt(vars.getString("num-processors"))
+          : Integer.parseInt(maxActive);
+      capacity = Math.max(1, capacity);
+      long maxHeap = Long.parseLong(vars.getString("max-memory"));
+      // Older build servers don't report their live heap.
+      long liveHeap = Long.parseLong(vars.has("live-heap")
+          ? vars.getString("live-heap") : vars.getString("used-heap"));
+      heapFraction = maxHeap > 0 ? (double) liveHeap / maxHeap : 0;
+    }
+
+    /**
+     * Records that the build server failed a request or couldn't be polled.
+     */
+    synchronized void fail(long nowMs) {
+      polledAtMs = nowMs;
+      avoidedUntilMs = nowMs + FAILURE_BACKOFF_MS;
+    }
+
+    /**
+     * Records that a build was sent to the build server.
+     */
+    synchronized void addBuild() {
+      builds++;
+    }
+
+    synchronized boolean isHealthy(long nowMs) {
+      return nowMs >= avoidedUntilMs;
+    }
+
+    synchronized double getLoad() {
+      return (double) builds / capacity + heapFraction;
+    }
+  }
+
+  // The build servers this instance knows, keyed by host.
+  private static final ConcurrentMap<String, Backend> backends =
+      new ConcurrentHashMap<String, Backend>();
+
+  private BuildServerBalancer() {
+  }
+
+  /**
+   * Returns the hosts in the value of the build.server.host flag.
+   */
+  static List<String> parseHosts(String hostsFlag) {
+    List<String> hosts = Lists.newArrayList();
+    for (String host : hostsFlag.split(",")) {
+      host = host.trim();
+      if (!host.isEmpty()) {
+        hosts.add(host);
+      }
+    }
+    return hosts;
+  }
+
+  /**
+   * Returns the build servers in the order they should be tried: the healthy ones from the least
+   * loaded to the most loaded, then the others.
+   *
+   * @param hostsFlag  the value of the build.server.host flag
+   */
+  static List<String> rankHosts(String hostsFlag) {
+    List<String> hosts = parseHosts(hostsFlag);
+    if (hosts.size() < 2) {
+      // There is nothing to choose from.
+      return hosts;
+    }
+    long nowMs = System.currentTimeMillis();
+    List<Backend> candidates = Lists.newArrayList();
+    List<Backend> stale = Lists.newArrayList();
+    for (String host : hosts) {
+      Backend backend = getBackend(host);
+      if (backend.claimPoll(nowMs)) {
+        stale.add(backend);
+      }
+      candidates.add(backend);
+    }
+    if (!stale.isEmpty()) {
+      poll(stale, nowMs);
+    }
+    nowMs = System.currentTimeMillis();
+    List<String> ranked = Lists.newArrayList();
+    for (Backend backend : rank(candidates, nowMs)) {
+      ranked.add(backend.getHost());
+    }
+    return ranked;
+  }
+
+  /**
+   * Sorts the build servers in the order they should be tried.
+   */
+  @VisibleForTesting
+  static List<Backend> rank(List<Backend> candidates, final long nowMs) {
+    List<Backend> ranked = Lists.newArrayList(candidates);
+    Collections.sort(ranked, new Comparator<Backend>() {
+      @Override
+      public int compare(Backend a, Backend b) {
+        boolean aHealthy = a.isHealthy(nowMs);
+        if (aHealthy != b.isHealthy(nowMs)) {
+          return aHealthy ? -1 : 1;
+        }
+        return Double.compare(a.getLoad(), b.getLoad());
+      }
+    });
+    return ranked;
+  }
+
+  private static Backend getBackend(String host) {
+    Backend backend = backends.get(host);
+    if (backend == null) {
+      backends.putIfAbsent(host, new Backend(host));
+      backend = backends.get(host);
+    }
+    return backend;
+  }
+
+  /**
+   * Polls the build servers at once and waits for them until {@link #POLL_TIMEOUT_MS} has passed.
+   * A build server that doesn't answer in time is avoided.
+   */
+  private static void poll(List<Backend> stale, long nowMs) {
+    URLFetchService urlFetch = URLFetchServiceFactory.getURLFetchService();
+    FetchOptions options = FetchOptions.Builder.withDeadline(POLL_TIMEOUT_MS / 1000.0);
+    Map<Backend, Future<HTTPResponse>> polls = Maps.newLinkedHashMap();
+    for (Backend backend : stale) {
+      try {
+        URL varsUrl = new URL("http://" + backend.getHost() + "/buildserver/vars?format=json");
+        polls.put(backend, urlFetch.fetchAsync(new HTTPRequest(varsUrl, HTTPMethod.GET, options)));
+      } catch (MalformedURLException e) {
+        LOG.warning("Unable to poll build server " + backend.getHost() + ": " + e);
+        backend.fail(nowMs);
+      }
+    }
+    long deadlineMs = nowMs + POLL_TIMEOUT_MS;
+    for (Map.Entry<Backend, Future<HTTPResponse>> poll : polls.entrySet()) {
+      Backend backend = poll.getKey();
+      long remainingMs = Math.max(0, deadlineMs - System.currentTimeMillis());
+      try {
+        update(backend, poll.getValue().get(remainingMs, TimeUnit.MILLISECONDS), nowMs);
+      } catch (TimeoutException e) {
+        LOG.warning("Build server " + backend.getHost() + " didn't answer the poll in time");
+        poll.getValue().cancel(true);
+        backend.fail(nowMs);
+      } catch (ExecutionException e) {
+        LOG.warning("Unable to poll build server " + backend.getHost() + ": " + e.getCause());
+        backend.fail(nowMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        LOG.warning("Interrupted while polling build server " + backend.getHost());
+        poll.getValue().cancel(true);
+        backend.fail(nowMs);
+      }
+    }
+  }
+
+  private static void update(Backend backend, HTTPResponse response, long nowMs) {
+    if (response.getResponseCode() != HttpURLConnection.HTTP_OK) {
+      LOG.warning("Build server " + backend.getHost() + " responded to the poll with " +
+          response.getResponseCode());
+      backend.fail(nowMs);
+      return;
+    }
+    try {
+      backend.update(new JSONObject(new String(response.getContent(), "UTF-8")), nowMs);
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    } catch (JSONException e) {
+      LOG.warning("Unable to read the variables of build server " + backend.getHost() + ": " + e);
+      backend.fail(nowMs);
+    } catch (NumberFormatException e) {
+      LOG.warning("Unable to read the variables of build server " + backend.getHost() + ": " + e);
+      backend.fail(nowMs);
+    }
+  }
+
+  /**
+   * Records that a build server accepted a build.
+   *
+   * @param host  the build server
+   * @param buildId  the id of the build
+   */
+  static void recordBuild(String host, String buildId) {
+    getBackend(host).addBuild();
+    MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+    memcache.put(ASSIGNMENT_KEY_PREFIX + buildId, host,
+        Expiration.byDeltaSeconds(ASSIGNMENT_EXPIRATION_SECS));
+  }
+
+  /**
+   * Records that a build server refused a build or couldn't be reached, so that it is avoided
+   * for a while.
+   */
+  static void recordFailure(String host) {
+    getBackend(host).fail(System.currentTimeMillis());
+  }
+
+  /**
+   * Returns the build server that accepted a build.
+   *
+   * @param buildId  the id of the build
+   * @param hostsFlag  the value of the build.server.host flag
+   * @return  the build server, or the first one in the flag if it isn't known
+   */
+  static String getHostOfBuild(String buildId, String hostsFlag) {
+    List<String> hosts = parseHosts(hostsFlag);
+    if (hosts.size() < 2) {
+      return hosts.isEmpty() ? hostsFlag : hosts.get(0);
+    }
+    MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+    String host = (String) memcache.get(ASSIGNMENT_KEY_PREFIX + buildId);
+    return host != null ? host : hosts.get(0);
+  }
+}
@@ -47,8 +47,10 @@ import com.google.appinventor.shared.settings.SettingsConstants;
 import com.google.appinventor.shared.storage.StorageUtil;
 import com.google.appinventor.shared.youngandroid.YoungAndroidSourceAnalyzer;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
 import com.google.common.io.CharStreams;
 
 import org.json.JSONException;
@@ -56,9 +58,11 @@ import org.json.JSONObject;
 
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
@@ -79,7 +83,6 @@ import java.util.logging.Logger;
  */
 public final class YoungAndroidProjectService extends CommonProjectService {
 
-  private static int currentProgress = 0;
   private static final Logger LOG = Logger.getLogger(YoungAndroidProjectService.class.getName());
 
   // The value of this flag can be changed in appengine-web.xml
@@ -111,7 +114,8 @@ public final class YoungAndroidProjectService extends CommonProjectService {
 
   public static final String PROJECT_KEYSTORE_LOCATION = "android.keystore";
 
-  // host[:port] to use for connecting to the build server
+  // host[:port] to use for connecting to the build server. Several build servers can be given,
+  // separated by commas, and each build goes to the least loaded one.
   private static final Flag<String> buildServerHost =
       Flag.createFlag("build.server.host", "localhost:9990");
   // host[:port] to tell build server app host url
@@ -550,60 +554,96 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       storageIo.deleteFile(userId, projectId, buildOutputFile);
     }
     URL buildServerUrl = null;
-    ProjectSourceZip zipFile = null;
+    BuildRequestOutputStream requestOutput = null;
     try {
-      buildServerUrl = new URL(getBuildServerUrlStr(
-          user.getUserEmail(),
-          userId,
-          projectId,
-          outputFileDir));
-      HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
-      connection.setDoOutput(true);
-      connection.setRequestMethod("POST");
-
-      BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
       FileExporter fileExporter = new FileExporterImpl();
-      zipFile = fileExporter.exportProjectSourceZip(userId, projectId, false,
-          /* includeAndroidKeystore */ true,
-          projectName + ".aia", true);
-      bufferedOutputStream.write(zipFile.getContent());
-      bufferedOutputStream.flush();
-      bufferedOutputStream.close();
-
-      int responseCode = 0;
-      responseCode = connection.getResponseCode();
-      if (responseCode != HttpURLConnection.HTTP_OK) {
-        // Put the HTTP response code into the RpcResult so the client code in BuildCommand.java
-        // can provide an appropriate error message to the user.
-        // NOTE(lizlooney) - There is some weird bug/problem with HttpURLConnection. When the
-        // responseCode is 503, connection.getResponseMessage() returns "OK", but it should return
-        // "Service Unavailable". If I make the request with curl and look at the headers, they
-        // have the expected error message.
-        // For now, the moral of the story is: don't use connection.getResponseMessage().
-        String error = "Build server responded with response code " + responseCode + ".";
+
+      // Try the build servers from the least loaded one, moving on to the next one if a build
+      // server is at capacity or can't be reached.
+      List<String> hosts = BuildServerBalancer.rankHosts(buildServerHost.get());
+      if (hosts.isEmpty()) {
+        LOG.severe("No build server is set in build.server.host");
+        return new RpcResult(false, "", "No build server is available.");
+      }
+      for (int i = 0; i < hosts.size(); i++) {
+        String host = hosts.get(i);
+        boolean isLastHost = i == hosts.size() - 1;
+        buildServerUrl = new URL(getBuildServerUrlStr(
+            host,
+            user.getUserEmail(),
+            userId,
+            projectId,
+            outputFileDir));
+        HttpURLConnection connection;
+        int responseCode;
+        requestOutput = null;
         try {
-          String content = readContent(connection.getInputStream());
-          if (content != null && !content.isEmpty()) {
-            error += "\n" + content;
-          }
+          connection = (HttpURLConnection) buildServerUrl.openConnection();
+          connection.setDoOutput(true);
+          connection.setRequestMethod("POST");
+          // Export the project straight into the request, which saves the byte array copies of
+          // the zip that exporting it first made. It is exported again for each build server
+          // that is tried. On App Engine, URLFetch still buffers the whole request body, so
+          // chunked streaming only takes effect elsewhere, such as on the development server.
+          connection.setChunkedStreamingMode(0);
+
+          requestOutput = new BuildRequestOutputStream(
+              new BufferedOutputStream(connection.getOutputStream()));
+          fileExporter.exportProjectSourceZip(userId, projectId, false,
+              /* includeAndroidKeystore */ true, /* fatalError */ true, requestOutput);
+          requestOutput.close();
+
+          responseCode = connection.getResponseCode();
         } catch (IOException e) {
-          // No content. That's ok.
-        }
-        try {
-          String errorContent = readContent(connection.getErrorStream());
-          if (errorContent != null && !errorContent.isEmpty()) {
-            error += "\n" + errorContent;
+          if (isLastHost || (requestOutput != null && requestOutput.isExportFailure())) {
+            throw e;
           }
-        } catch (IOException e) {
-          // No error content. That's ok.
+          LOG.warning("Build server " + host + " failed, trying the next one: " + e);
+          BuildServerBalancer.recordFailure(host);
+          continue;
         }
-        if (responseCode == HttpURLConnection.HTTP_CONFLICT) {
-          // The build server is not compatible with this App Inventor instance. Log this as severe
-          // so the owner of the app engine instance will know about it.
-          LOG.severe(error);
+        if (responseCode == HttpURLConnection.HTTP_UNAVAILABLE && !isLastHost) {
+          LOG.info("Build server " + host + " is at capacity, trying the next one");
+          BuildServerBalancer.recordFailure(host);
+          continue;
         }
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+          // Put the HTTP response code into the RpcResult so the client code in BuildCommand.java
+          // can provide an appropriate error message to the user.
+          // NOTE(lizlooney) - There is some weird bug/problem with HttpURLConnection. When the
+          // responseCode is 503, connection.getResponseMessage() returns "OK", but it should
+          // return "Service Unavailable". If I make the request with curl and look at the
+          // headers, they have the expected error message.
+          // For now, the moral of the story is: don't use connection.getResponseMessage().
+          String error = "Build server responded with response code " + responseCode + ".";
+          try {
+            String content = readContent(connection.getInputStream());
+            if (content != null && !content.isEmpty()) {
+              error += "\n" + content;
+            }
+          } catch (IOException e) {
+            // No content. That's ok.
+          }
+          try {
+            String errorContent = readContent(connection.getErrorStream());
+            if (errorContent != null && !errorContent.isEmpty()) {
+              error += "\n" + errorContent;
+            }
+          } catch (IOException e) {
+            // No error content. That's ok.
+          }
+          if (responseCode == HttpURLConnection.HTTP_CONFLICT) {
+            // The build server is not compatible with this App Inventor instance. Log this as
+            // severe so the owner of the app engine instance will know about it.
+            LOG.severe(error);
+          }
 
-        return new RpcResult(responseCode, "", StringUtils.escape(error));
+          return new RpcResult(responseCode, "", StringUtils.escape(error));
+        }
+        if (hosts.size() > 1) {
+          BuildServerBalancer.recordBuild(host, getBuildId(userId, projectId, outputFileDir));
+        }
+        break;
       }
     } catch (MalformedURLException e) {
       CrashReport.createAndLogError(LOG, null,
@@ -612,7 +652,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     } catch (IOException e) {
       // As of App Engine 1.9.0 we get these when UrlFetch is asked to send too much data
       Throwable wrappedException = e;
-      int zipFileLength = zipFile.getContent().length;
+      long zipFileLength = (requestOutput != null) ? requestOutput.getCount() : 0;
       if (zipFileLength >= (5 * 1024 * 1024) /* 5 MB */) {
         String lengthMbs = format((zipFileLength * 1.0)/(1024*1024));
         wrappedException = new IllegalArgumentException(
@@ -630,8 +670,8 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       // In particular, we often see RequestTooLargeException (if the zip is too
       // big) and ApiProxyException. There may be others.
       Throwable wrappedException = e;
-      if (e instanceof ApiProxy.RequestTooLargeException && zipFile != null) {
-        int zipFileLength = zipFile.getContent().length;
+      if (e instanceof ApiProxy.RequestTooLargeException && requestOutput != null) {
+        long zipFileLength = requestOutput.getCount();
         if (zipFileLength >= (5 * 1024 * 1024) /* 5 MB */) {
           String lengthMbs = format((zipFileLength * 1.0)/(1024*1024));
           wrappedException = new IllegalArgumentException(
@@ -658,15 +698,16 @@ public final class YoungAndroidProjectService extends CommonProjectService {
   // Note that this is a function rather than just a constant because we assume it will get
   // a little more complicated when we want to get the URL from an App Engine config file or
   // command line argument.
-  private String getBuildServerUrlStr(String userName, String userId,
+  private String getBuildServerUrlStr(String host, String userName, String userId,
                                       long projectId, String fileName)
       throws UnsupportedEncodingException, EncryptionException {
-    return "http://" + buildServerHost.get() + "/buildserver/build-all-from-zip-async"
+    return "http://" + host + "/buildserver/build-all-from-zip-async"
            + "?uname=" + URLEncoder.encode(userName, "UTF-8")
            + (sendGitVersion.get()
                ? "&gitBuildVersion="
                  + URLEncoder.encode(GitBuildId.getVersion(), "UTF-8")
                : "")
+           + "&buildId=" + getBuildId(userId, projectId, fileName)
            + "&callback="
            + URLEncoder.encode("http://" + getCurrentHost() + ServerLayout.ODE_BASEURL_NOAUTH
                                + ServerLayout.RECEIVE_BUILD_SERVLET + "/"
@@ -675,6 +716,15 @@ public final class YoungAndroidProjectService extends CommonProjectService {
                                "UTF-8");
   }
 
+  /*
+   * Returns the id of the builds of the given project for the given target, which the build
+   * server uses to report their progress. Unlike the callback URL, it is the same every time.
+   */
+  private static String getBuildId(String userId, long projectId, String fileName) {
+    return Hashing.sha1().hashString(userId + '/' + projectId + '/' + fileName, Charsets.UTF_8)
+        .toString();
+  }
+
   private String getCurrentHost() {
     if (Server.isProductionServer()) {
       if (appengineHost.get()=="") {
@@ -723,7 +773,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     String userId = user.getUserId();
     String buildOutputFileName = BUILD_FOLDER + '/' + target + '/' + "build.out";
     List<String> outputFiles = storageIo.getProjectOutputFiles(userId, projectId);
-    updateCurrentProgress(user, projectId, target);
+    int currentProgress = getCurrentProgress(user, projectId, target);
     RpcResult buildResult = new RpcResult(-1, ""+currentProgress, ""); // Build not finished
     for (String outputFile : outputFiles) {
       if (buildOutputFileName.equals(outputFile)) {
@@ -749,8 +799,10 @@ public final class YoungAndroidProjectService extends CommonProjectService {
    * @param user the User that owns the {@code projectId}.
    * @param projectId  project id to be built
    * @param target  build target (optional, implementation dependent)
+   * @return the progress of the build, in percent, or 0 if it is unknown
    */
-  public void updateCurrentProgress(User user, long projectId, String target) {
+  public int getCurrentProgress(User user, long projectId, String target) {
+    int currentProgress = 0;
     try {
       String userId = user.getUserId();
       String projectName = storageIo.getProjectName(userId, projectId);
@@ -758,7 +810,10 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       URL buildServerUrl = null;
       ProjectSourceZip zipFile = null;
 
-      buildServerUrl = new URL(getBuildServerUrlStr(user.getUserEmail(),
+      // Ask the build server that is building the project.
+      String host = BuildServerBalancer.getHostOfBuild(
+          getBuildId(userId, projectId, outputFileDir), buildServerHost.get());
+      buildServerUrl = new URL(getBuildServerUrlStr(host, user.getUserEmail(),
         userId, projectId, outputFileDir));
       HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
       connection.setDoOutput(true);
@@ -785,6 +840,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       } catch (RuntimeException e) {
         // that's ok, nothing to do
       }
+    return currentProgress;
   }
 
   // Nicely format floating number using only two decimal places
@@ -792,5 +848,64 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     DecimalFormat formatter = new DecimalFormat("###.##");
     return formatter.format(input);
   }
+
+  /**
+   * The body of a build request. Counts the bytes of the project zip sent to the build server,
+   * and tells a build server that can't be reached from a project that can't be exported.
+   */
+  private static class BuildRequestOutputStream extends FilterOutputStream {
+    private long count = 0;
+    private boolean failed = false;
+    private boolean closed = false;
+
+    BuildRequestOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      try {
+        out.write(b);
+        count++;
+      } catch (IOException e) {
+        failed = true;
+        throw e;
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      try {
+        out.write(b, off, len);
+        count += len;
+      } catch (IOException e) {
+        failed = true;
+        throw e;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      closed = true;
+      try {
+        out.close();
+      } catch (IOException e) {
+        failed = true;
+        throw e;
+      }
+    }
+
+    long getCount() {
+      return count;
+    }
+
+    /**
+     * Returns whether an exception thrown before the request was sent came from exporting the
+     * project rather than from the build server.
+     */
+    boolean isExportFailure() {
+      return !failed && !closed;
+    }
+  }
 }
 
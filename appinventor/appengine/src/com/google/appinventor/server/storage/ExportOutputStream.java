@@ -0,0 +1,115 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * The stream a zip is exported to, which belongs to the caller of the export.
+ *
+ * <p>Closing it doesn't close the caller's stream, so that the zip stream written to it can be
+ * closed, which frees the native memory of its deflater right away rather than when it is
+ * finalized. If the export fails, it is detached first, so that closing the zip stream doesn't
+ * write the end of the zip after a partial one.
+ *
+ * <p>It also remembers whether writing to the caller's stream failed, so that the failure can be
+ * told apart from a failure to read the project, and reaches the caller as it is.
+ */
+public final class ExportOutputStream extends FilterOutputStream {
+  private IOException writeFailure = null;
+  private boolean detached = false;
+
+  public ExportOutputStream(OutputStream out) {
+    super(out);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (detached) {
+      return;
+    }
+    try {
+      out.write(b);
+    } catch (IOException e) {
+      writeFailure = e;
+      throw e;
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (detached) {
+      return;
+    }
+    try {
+      out.write(b, off, len);
+    } catch (IOException e) {
+      writeFailure = e;
+      throw e;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (detached) {
+      return;
+    }
+    try {
+      out.flush();
+    } catch (IOException e) {
+      writeFailure = e;
+      throw e;
+    }
+  }
+
+  /**
+   * Flushes the stream, but leaves the caller's stream open.
+   */
+  @Override
+  public void close() throws IOException {
+    flush();
+  }
+
+  /**
+   * Closes a zip stream written to this stream. If the export succeeded, the zip is finished;
+   * otherwise nothing more is written to the caller's stream. Either way, the caller's stream is
+   * left open.
+   *
+   * @param zip  the zip stream
+   * @param succeeded  whether the export succeeded
+   */
+  public void closeZip(ZipOutputStream zip, boolean succeeded) throws IOException {
+    if (succeeded) {
+      zip.close();
+      return;
+    }
+    detach();
+    try {
+      zip.close();
+    } catch (IOException e) {
+      // The export already failed, and this failure adds nothing to it.
+    }
+  }
+
+  /**
+   * Drops everything written to the stream from now on.
+   */
+  public void detach() {
+    detached = true;
+  }
+
+  /**
+   * Throws the exception writing to the stream failed with, if it did.
+   */
+  public void rethrowWriteFailure() throws IOException {
+    if (writeFailure != null) {
+      throw writeFailure;
+    }
+  }
+}
@@ -14,6 +14,7 @@ import com.google.appengine.api.blobstore.BlobstoreInputStream;
 import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
 import com.google.appengine.api.memcache.ErrorHandlers;
 import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
@@ -80,6 +81,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -109,6 +111,16 @@ public class ObjectifyStorageIo implements  StorageIo {
   // TODO(user): need a way to modify this. Also, what is really a good value?
   private static final int MAX_JOB_RETRIES = 10;
 
+  // How long the list of a user's projects is kept in memcache, like the
+  // user. It is also removed from memcache whenever one of the user's
+  // projects changes.
+  private static final int USER_PROJECTS_EXPIRATION_SECS = 60;
+
+  // Kept in memcache instead of the list of a user's projects while it is
+  // being read, so that a change to the projects in the meantime, which
+  // removes it, keeps the list that was read from being cached.
+  private static final String USER_PROJECTS_LOADING = "loading";
+
   private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
 
   private final GcsService gcsService;
@@ -119,6 +131,13 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   private final boolean useGcs = Flag.createFlag("use.gcs", true).get();
 
+  // The number of GCS reads that are open at once during an export, counting
+  // the one of the file being written, and the size of the blocks they are
+  // read in.
+  private final int gcsExportPrefetch =
+      Math.max(1, Flag.createFlag("gcs.export.prefetch", 8).get());
+  private static final int GCS_EXPORT_BLOCK_SIZE = 64 * 1024;
+
   private final boolean conversionEnabled = false; // We are converting GCS <=> Blobstore
 
   // Use this class to define the work of a job that can be
@@ -610,6 +629,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           collectUserProjectErrorInfo(userId, projectId.t), e);
       }
     }
+    memcache.delete(userProjectsCacheKey(userId));
     return projectId.t;
   }
 
@@ -655,6 +675,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           // delete any FileData objects associated with this project
         }
       }, true);
+      memcache.delete(userProjectsCacheKey(userId));
       // second job deletes the project files and ProjectData in the project's
       // entity group
       runJobWithRetries(new JobRetryHelper() {
@@ -706,6 +727,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           }
         }
       }, true);
+      memcache.delete(userProjectsCacheKey(userId));
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
@@ -723,6 +745,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           }
         }
       }, true);
+      memcache.delete(userProjectsCacheKey(userId));
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null,"error in setProjectAttributionId",  e);
     }
@@ -847,6 +870,62 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
   }
 
+  @Override
+  public List<UserProject> getUserProjects(final String userId) {
+    String cachekey = userProjectsCacheKey(userId);
+    IdentifiableValue cached = memcache.getIdentifiable(cachekey);
+    if (cached != null && cached.getValue() instanceof List) {
+      @SuppressWarnings("unchecked")
+      List<UserProject> cachedProjects = (List<UserProject>) cached.getValue();
+      return cachedProjects;
+    }
+    if (cached == null) {
+      memcache.put(cachekey, USER_PROJECTS_LOADING,
+          Expiration.byDeltaSeconds(USER_PROJECTS_EXPIRATION_SECS),
+          SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+      cached = memcache.getIdentifiable(cachekey);
+    }
+    final ArrayList<UserProject> userProjects = new ArrayList<UserProject>();
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          userProjects.clear();
+          List<Key<ProjectData>> projectKeys = new ArrayList<Key<ProjectData>>();
+          Key<UserData> userKey = userKey(userId);
+          for (UserProjectData upd : datastore.query(UserProjectData.class).ancestor(userKey)) {
+            projectKeys.add(projectKey(upd.projectId));
+          }
+          // Get all of the projects in one batch, rather than one at a time.
+          Map<Key<ProjectData>, ProjectData> projects = datastore.get(projectKeys);
+          for (Key<ProjectData> projectKey : projectKeys) {
+            ProjectData pd = projects.get(projectKey);
+            if (pd != null) {
+              userProjects.add(new UserProject(pd.id, pd.name, pd.type, pd.dateCreated,
+                  pd.dateModified, pd.galleryId, pd.attributionId));
+            } else {
+              LOG.log(Level.WARNING, "ProjectId " + projectKey.getId() +
+                  " is missing at the lower level.");
+            }
+          }
+        }
+      }, false); // The projects are in different entity groups
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
+    }
+    // Only cache the list if the projects didn't change while it was read.
+    if (cached != null) {
+      memcache.putIfUntouched(cachekey, cached, userProjects,
+          Expiration.byDeltaSeconds(USER_PROJECTS_EXPIRATION_SECS));
+    }
+    return userProjects;
+  }
+
+  // The memcache key of the list of a user's projects
+  private static String userProjectsCacheKey(String userId) {
+    return "user-projects|" + userId;
+  }
+
   @Override
   public String getProjectName(final String userId, final long projectId) {
     final Result<String> projectName = new Result<String>();
@@ -1170,13 +1249,19 @@ public class ObjectifyStorageIo implements  StorageIo {
           collectUserProjectErrorInfo(userId, projectId),
           new UnauthorizedAccessException(userId, projectId, null));
     }
+    final Result<Boolean> modDateChanged = new Result<Boolean>();
+    modDateChanged.t = false;
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          addFilesToProject(datastore, projectId, FileData.RoleEnum.SOURCE, changeModDate, fileNames);
+          addFilesToProject(datastore, projectId, FileData.RoleEnum.SOURCE, changeModDate,
+              modDateChanged, fileNames);
         }
       }, true);
+      if (modDateChanged.t) {
+        memcache.delete(userProjectsCacheKey(userId));
+      }
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileNames[0]), e);
@@ -1195,7 +1280,8 @@ public class ObjectifyStorageIo implements  StorageIo {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          addFilesToProject(datastore, projectId, FileData.RoleEnum.TARGET, false, fileNames);
+          addFilesToProject(datastore, projectId, FileData.RoleEnum.TARGET, false, null,
+              fileNames);
         }
       }, true);
     } catch (ObjectifyException e) {
@@ -1204,8 +1290,10 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
   }
 
+  // modDateChanged is set to true if the modification date of the project is
+  // changed. It may be null if changeModDate is false.
   private void addFilesToProject(Objectify datastore, long projectId, FileData.RoleEnum role,
-      boolean changeModDate, String... fileNames) {
+      boolean changeModDate, Result<Boolean> modDateChanged, String... fileNames) {
     List<FileData> addedFiles = new ArrayList<FileData>();
     Key<ProjectData> projectKey = projectKey(projectId);
     for (String fileName : fileNames) {
@@ -1216,7 +1304,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
     datastore.put(addedFiles); // batch put
     if (changeModDate) {
-      updateProjectModDate(datastore, projectId, false);
+      updateProjectModDate(datastore, projectId, false, modDateChanged);
     }
   }
 
@@ -1240,13 +1328,19 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public void removeSourceFilesFromProject(final String userId, final long projectId,
       final boolean changeModDate, final String... fileNames) {
+    final Result<Boolean> modDateChanged = new Result<Boolean>();
+    modDateChanged.t = false;
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          removeFilesFromProject(datastore, projectId, FileData.RoleEnum.SOURCE, changeModDate, fileNames);
+          removeFilesFromProject(datastore, projectId, FileData.RoleEnum.SOURCE, changeModDate,
+              modDateChanged, fileNames);
         }
       }, true);
+      if (modDateChanged.t) {
+        memcache.delete(userProjectsCacheKey(userId));
+      }
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileNames[0]), e);
@@ -1260,7 +1354,8 @@ public class ObjectifyStorageIo implements  StorageIo {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          removeFilesFromProject(datastore, projectId, FileData.RoleEnum.TARGET, false, fileNames);
+          removeFilesFromProject(datastore, projectId, FileData.RoleEnum.TARGET, false, null,
+              fileNames);
         }
       }, true);
     } catch (ObjectifyException e) {
@@ -1269,8 +1364,11 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
   }
 
+  // modDateChanged is set to true if the modification date of the project is
+  // changed. It may be null if changeModDate is false.
   private void removeFilesFromProject(Objectify datastore, long projectId,
-      FileData.RoleEnum role, boolean changeModDate, String... fileNames) {
+      FileData.RoleEnum role, boolean changeModDate, Result<Boolean> modDateChanged,
+      String... fileNames) {
     Key<ProjectData> projectKey = projectKey(projectId);
     List<Key<FileData>> filesToRemove = new ArrayList<Key<FileData>>();
     for (String fileName : fileNames) {
@@ -1289,7 +1387,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
     datastore.delete(filesToRemove);  // batch delete
     if (changeModDate) {
-      updateProjectModDate(datastore, projectId, false);
+      updateProjectModDate(datastore, projectId, false, modDateChanged);
     }
   }
 
@@ -1371,7 +1469,11 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
   }
 
-  private long updateProjectModDate(Objectify datastore, long projectId, boolean doingConversion) {
+  // Sets modDateChanged to true if the modification date is changed, so that
+  // the caller can drop the cached project list of the user once the job that
+  // changed it is done.
+  private long updateProjectModDate(Objectify datastore, long projectId,
+      boolean doingConversion, Result<Boolean> modDateChanged) {
     long modDate = System.currentTimeMillis();
     ProjectData pd = datastore.find(projectKey(projectId));
     if (pd != null) {
@@ -1382,6 +1484,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       if ((modDate > (pd.dateModified + 1000*60)) && !doingConversion) {
         pd.dateModified = modDate;
         datastore.put(pd);
+        modDateChanged.t = true;
       } else {
         // return the (old) dateModified
         modDate = pd.dateModified;
@@ -1414,6 +1517,8 @@ public class ObjectifyStorageIo implements  StorageIo {
       final boolean force, final byte[] content, final boolean doingConversion) throws BlocksTruncatedException {
     validateGCS();
     final Result<Long> modTime = new Result<Long>();
+    final Result<Boolean> modDateChanged = new Result<Boolean>();
+    modDateChanged.t = false;
     final boolean useGCS = useGCSforFile(fileName, content.length);
     final Result<String> oldBlobstoreKey = new Result<String>();
     final boolean considerBackup = (useGcs?((fileName.contains("src/") && fileName.endsWith(".blk")) // AI1 Blocks Files
@@ -1505,7 +1610,8 @@ public class ObjectifyStorageIo implements  StorageIo {
           }
           datastore.put(fd);
           memcache.put(key.getString(), fd); // Store the updated data in memcache
-          modTime.t = updateProjectModDate(datastore, projectId, doingConversion);
+          modTime.t = updateProjectModDate(datastore, projectId, doingConversion,
+              modDateChanged);
         }
 
         @Override
@@ -1516,6 +1622,9 @@ public class ObjectifyStorageIo implements  StorageIo {
         }
       }, false);        // Use transaction for blobstore, otherwise we don't need one
                                // and without one the caching code comes into play.
+      if (modDateChanged.t) {
+        memcache.delete(userProjectsCacheKey(userId));
+      }
 
       // It would have been convenient to delete the old blobstore file within the run() method
       // above but that caused an exception where the app engine datastore claimed to be doing
@@ -1577,6 +1686,8 @@ public class ObjectifyStorageIo implements  StorageIo {
           new UnauthorizedAccessException(userId, projectId, null));
     }
     final Result<Long> modTime = new Result<Long>();
+    final Result<Boolean> modDateChanged = new Result<Boolean>();
+    modDateChanged.t = false;
     final Result<String> oldBlobKeyString = new Result<String>();
     final Result<String> oldgcsName = new Result<String>();
     try {
@@ -1593,9 +1704,12 @@ public class ObjectifyStorageIo implements  StorageIo {
             }
           }
           datastore.delete(fileKey);
-          modTime.t = updateProjectModDate(datastore, projectId, false);
+          modTime.t = updateProjectModDate(datastore, projectId, false, modDateChanged);
         }
       }, true);
+      if (modDateChanged.t) {
+        memcache.delete(userProjectsCacheKey(userId));
+      }
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileName), e);
@@ -1792,13 +1906,26 @@ public class ObjectifyStorageIo implements  StorageIo {
   // uses the current transaction and it will most likely have the wrong
   // entity group!
   private byte[] getBlobstoreBytes(String blobKeyString) throws BlobReadException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    copyBlobstoreBytes(blobKeyString, bytes);
+    return bytes.toByteArray();
+  }
+
+  // Same as getBlobstoreBytes(), but copies the blob to a stream instead of
+  // holding all of it in memory.
+  private void copyBlobstoreBytes(String blobKeyString, OutputStream out)
+      throws BlobReadException {
     BlobKey blobKey = new BlobKey(blobKeyString);
     if (blobKey == null) {
       throw new BlobReadException("Could not find BlobKey for " + blobKeyString);
     }
     try {
       InputStream blobInputStream = new BlobstoreInputStream(blobKey);
-      return ByteStreams.toByteArray(blobInputStream);
+      try {
+        ByteStreams.copy(blobInputStream, out);
+      } finally {
+        blobInputStream.close();
+      }
     } catch (IOException e) {
       throw new BlobReadException(e, "Error trying to read blob from " + blobKey);
     }
@@ -1820,6 +1947,71 @@ public class ObjectifyStorageIo implements  StorageIo {
                                                  final boolean includeAndroidKeystore,
                                                  @Nullable String zipName,
                                                  final boolean fatalError) throws IOException {
+    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    Result<String> projectName = new Result<String>();
+    projectName.t = null;
+    int fileCount = writeProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, fatalError, zipFile, projectName);
+
+    if (zipName == null) {
+      zipName = projectName.t + ".aia";
+    }
+    ProjectSourceZip projectSourceZip =
+        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount);
+    projectSourceZip.setMetadata(projectName.t);
+    return projectSourceZip;
+  }
+
+  /**
+   *  Writes project files as a zip archive to a stream, one file at a time.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param includeProjectHistory  whether or not to include the project history
+   * @param includeAndroidKeystore  whether or not to include the Android keystore
+   * @param fatalError set true to cause missing GCS file to throw exception
+   * @param outputStream  the stream the zip archive is written to; it is not closed
+
+   * @return  the number of files in the zip archive
+   */
+  @Override
+  public int exportProjectSourceZip(String userId, long projectId,
+                                    boolean includeProjectHistory,
+                                    boolean includeAndroidKeystore,
+                                    boolean fatalError,
+                                    OutputStream outputStream) throws IOException {
+    return writeProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, fatalError, outputStream, new Result<String>());
+  }
+
+  private int writeProjectSourceZip(String userId, long projectId,
+                                    boolean includeProjectHistory,
+                                    boolean includeAndroidKeystore,
+                                    boolean fatalError,
+                                    OutputStream outputStream,
+                                    Result<String> projectName) throws IOException {
+    // Nothing is written to the stream until the first entry is put, so a project without files
+    // leaves the stream untouched.
+    ExportOutputStream destination = new ExportOutputStream(outputStream);
+    ZipOutputStream out = new ZipOutputStream(destination);
+    boolean succeeded = false;
+    try {
+      int fileCount = writeProjectSourceZip(userId, projectId, includeProjectHistory,
+          includeAndroidKeystore, fatalError, destination, out, projectName);
+      succeeded = true;
+      return fileCount;
+    } finally {
+      // Closing the zip frees its deflater, but leaves the caller's stream open.
+      destination.closeZip(out, succeeded);
+    }
+  }
+
+  private int writeProjectSourceZip(final String userId, final long projectId,
+                                    final boolean includeProjectHistory,
+                                    final boolean includeAndroidKeystore,
+                                    final boolean fatalError,
+                                    final ExportOutputStream destination,
+                                    final ZipOutputStream out,
+                                    final Result<String> projectName) throws IOException {
     validateGCS();
     final Result<Integer> fileCount = new Result<Integer>();
     fileCount.t = 0;
@@ -1830,13 +2022,8 @@ public class ObjectifyStorageIo implements  StorageIo {
     // to avoid problems reading blobs in a transaction with the wrong
     // entity group.
     final List<FileData> fileData = new ArrayList<FileData>();
-    final Result<String> projectName = new Result<String>();
-    projectName.t = null;
     String fileName = null;
 
-    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
-    final ZipOutputStream out = new ZipOutputStream(zipFile);
-
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
@@ -1865,85 +2052,65 @@ public class ObjectifyStorageIo implements  StorageIo {
       }, true);
 
       // Process the file contents outside of the job since we can't read
-      // blobs in the job.
-      for (FileData fd : fileData) {
-        fileName = fd.fileName;
-        byte[] data = null;
-        if (fd.isBlob) {
-          try {
-            if (fd.blobKey == null) {
-              throw new BlobReadException("blobKey is null");
+      // blobs in the job. Each file is copied into the zip as it is read, so
+      // that only one buffer's worth of it is in memory at a time. The reads
+      // of the next few GCS files are started before the current file is
+      // written, so that they overlap instead of waiting on each other.
+      GcsInputChannel[] prefetched = new GcsInputChannel[fileData.size()];
+      int prefetchEnd = 0;
+      try {
+        for (int i = 0; i < fileData.size(); i++) {
+          for (; prefetchEnd < fileData.size() && prefetchEnd < i + gcsExportPrefetch;
+               prefetchEnd++) {
+            FileData next = fileData.get(prefetchEnd);
+            if (next.isGCS) {
+              prefetched[prefetchEnd] = gcsService.openPrefetchingReadChannel(
+                  new GcsFilename(GCS_BUCKET_NAME, next.gcsName), 0, GCS_EXPORT_BLOCK_SIZE);
             }
-            data = getBlobstoreBytes(fd.blobKey);
-          } catch (BlobReadException e) {
-            throw CrashReport.createAndLogError(LOG, null,
-                collectProjectErrorInfo(userId, projectId, fileName), e);
           }
-        } else if (fd.isGCS) {
-          try {
-            int count;
-            boolean npfHappened = false;
-            boolean recovered = false;
-            for (count = 0; count < 5; count++) {
-              GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fd.gcsName);
-              int bytesRead = 0;
-              int fileSize = 0;
-              ByteBuffer resultBuffer;
-              try {
-                fileSize = (int) gcsService.getMetadata(gcsFileName).getLength();
-                resultBuffer = ByteBuffer.allocate(fileSize);
-                GcsInputChannel readChannel = gcsService.openReadChannel(gcsFileName, 0);
-                try {
-                  while (bytesRead < fileSize) {
-                    bytesRead += readChannel.read(resultBuffer);
-                    if (bytesRead < fileSize) {
-                      LOG.log(Level.INFO, "readChannel: bytesRead = " + bytesRead + " fileSize = " + fileSize);
-                    }
-                  }
-                  recovered = true;
-                  data = resultBuffer.array();
-                  break;        // We got the data, break out of the loop!
-                } finally {
-                  readChannel.close();
-                }
-              } catch (NullPointerException e) {
-                // This happens if the object in GCS is non-existent, which would happen
-                // when people uploaded a zero length object. As of this change, we now
-                // store zero length objects into GCS, but there are plenty of older objects
-                // that are missing in GCS.
-                LOG.log(Level.WARNING, "exportProjectFile: NPF recorded for " + fd.gcsName);
-                npfHappened = true;
-                resultBuffer = ByteBuffer.allocate(0);
-                data = resultBuffer.array();
+          FileData fd = fileData.get(i);
+          fileName = fd.fileName;
+          out.putNextEntry(new ZipEntry(fileName));
+          if (fd.isBlob) {
+            try {
+              if (fd.blobKey == null) {
+                throw new BlobReadException("blobKey is null");
               }
+              copyBlobstoreBytes(fd.blobKey, out);
+            } catch (BlobReadException e) {
+              destination.rethrowWriteFailure();
+              throw CrashReport.createAndLogError(LOG, null,
+                  collectProjectErrorInfo(userId, projectId, fileName), e);
             }
-
-            // report out on how things went above
-            if (npfHappened) {    // We lost at least once
-              if (recovered) {
-                LOG.log(Level.WARNING, "recovered from NPF in exportProjectFile filename = " + fd.gcsName +
-                  " count = " + count);
-              } else {
-                LOG.log(Level.WARNING, "FATAL NPF in exportProjectFile filename = " + fd.gcsName);
-                if (fatalError) {
-                  throw new IOException("FATAL Error reading file from GCS filename = " + fd.gcsName);
-                }
+          } else if (fd.isGCS) {
+            GcsInputChannel readChannel = prefetched[i];
+            prefetched[i] = null;
+            try {
+              if (!copyPrefetchedGcsFile(readChannel, out)) {
+                copyGcsFile(fd, out, fatalError);
               }
+            } catch (IOException e) {
+              destination.rethrowWriteFailure();
+              throw CrashReport.createAndLogError(LOG, null,
+                collectProjectErrorInfo(userId, projectId, fileName), e);
             }
-          } catch (IOException e) {
-            throw CrashReport.createAndLogError(LOG, null,
-              collectProjectErrorInfo(userId, projectId, fileName), e);
+          } else if (fd.content != null) {     // It is null if file creation is interrupted
+            out.write(fd.content, 0, fd.content.length);
           }
-        } else {
-          data = fd.content;
+          out.closeEntry();
+          fileCount.t++;
         }
-        if (data == null) {     // This happens if file creation is interrupted
-          data = new byte[0];
+      } finally {
+        // Stop the reads that were started for files that won't be written.
+        for (GcsInputChannel readChannel : prefetched) {
+          if (readChannel != null) {
+            try {
+              readChannel.close();
+            } catch (IOException e) {
+              LOG.log(Level.WARNING, "Unable to close GCS read channel", e);
+            }
+          }
         }
-        out.putNextEntry(new ZipEntry(fileName));
-        out.write(data, 0, data.length);
-        out.closeEntry();
-        fileCount.t++;
       }
       if (projectHistory.t != null) {
         byte[] data = projectHistory.t.getBytes(StorageUtil.DEFAULT_CHARSET);
@@ -1965,47 +2132,111 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
 
     if (fileCount.t == 0) {
-      // can't close out since will get a ZipException due to the lack of files
+      // Nothing was written to the stream, and the caller's stream is left untouched.
       throw new IllegalArgumentException("No files to download");
     }
 
     if (includeAndroidKeystore) {
+      final Result<byte[]> keystore = new Result<byte[]>();
+      keystore.t = null;
       try {
         runJobWithRetries(new JobRetryHelper() {
             @Override
             public void run(Objectify datastore) {
-              try {
-                Key<UserData> userKey = userKey(userId);
-                for (UserFileData ufd : datastore.query(UserFileData.class).ancestor(userKey)) {
-                  if (ufd.fileName.equals(StorageUtil.ANDROID_KEYSTORE_FILENAME) &&
-                      (ufd.content.length > 0)) {
-                    out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
-                    out.write(ufd.content, 0, ufd.content.length);
-                    out.closeEntry();
-                    fileCount.t++;
-                  }
+              Key<UserData> userKey = userKey(userId);
+              for (UserFileData ufd : datastore.query(UserFileData.class).ancestor(userKey)) {
+                if (ufd.fileName.equals(StorageUtil.ANDROID_KEYSTORE_FILENAME) &&
+                    (ufd.content.length > 0)) {
+                  keystore.t = ufd.content;
                 }
-              } catch (IOException e) {
-                throw CrashReport.createAndLogError(LOG, null,
-                    collectProjectErrorInfo(userId, projectId,
-                        StorageUtil.ANDROID_KEYSTORE_FILENAME), e);
               }
             }
         }, true);
       } catch (ObjectifyException e) {
         throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
       }
+      // The keystore is written outside of the job, so that a failure to write
+      // it reaches the caller as it is.
+      if (keystore.t != null) {
+        out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
+        out.write(keystore.t, 0, keystore.t.length);
+        out.closeEntry();
+        fileCount.t++;
+      }
     }
 
-    out.close();
+    out.finish();
+    return fileCount.t;
+  }
 
-    if (zipName == null) {
-      zipName = projectName.t + ".aia";
+  // Copies a GCS file whose read was started ahead of time into the zip.
+  // Returns false, without copying anything, if its first block can't be
+  // read or is empty, which happens if the file is missing; the caller then
+  // reads it again with copyGcsFile(), which retries and reports missing
+  // files. An empty file that does exist is copied there as well.
+  private boolean copyPrefetchedGcsFile(GcsInputChannel readChannel, OutputStream out)
+      throws IOException {
+    InputStream in = Channels.newInputStream(readChannel);
+    try {
+      byte[] buffer = new byte[GCS_EXPORT_BLOCK_SIZE];
+      int bytesRead;
+      try {
+        bytesRead = in.read(buffer);
+      } catch (IOException e) {
+        return false;
+      }
+      if (bytesRead == -1) {
+        return false;
+      }
+      while (bytesRead != -1) {
+        out.write(buffer, 0, bytesRead);
+        bytesRead = in.read(buffer);
+      }
+      return true;
+    } finally {
+      in.close();
+    }
+  }
+
+  private void copyGcsFile(FileData fd, OutputStream out, boolean fatalError)
+      throws IOException {
+    int count;
+    boolean npfHappened = false;
+    boolean recovered = false;
+    for (count = 0; count < 5; count++) {
+      GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fd.gcsName);
+      if (gcsService.getMetadata(gcsFileName) == null) {
+        // This happens if the object in GCS is non-existent, which would happen
+        // when people uploaded a zero length object. As of this change, we now
+        // store zero length objects into GCS, but there are plenty of older objects
+        // that are missing in GCS. The check is made before anything is copied, so
+        // that trying again never writes part of the file twice.
+        LOG.log(Level.WARNING, "exportProjectFile: NPF recorded for " + fd.gcsName);
+        npfHappened = true;
+        continue;
+      }
+      GcsInputChannel readChannel = gcsService.openReadChannel(gcsFileName, 0);
+      try {
+        ByteStreams.copy(Channels.newInputStream(readChannel), out);
+        recovered = true;
+        break;        // We got the data, break out of the loop!
+      } finally {
+        readChannel.close();
+      }
+    }
+
+    // report out on how things went above
+    if (npfHappened) {    // We lost at least once
+      if (recovered) {
+        LOG.log(Level.WARNING, "recovered from NPF in exportProjectFile filename = " + fd.gcsName +
+          " count = " + count);
+      } else {
+        LOG.log(Level.WARNING, "FATAL NPF in exportProjectFile filename = " + fd.gcsName);
+        if (fatalError) {
+          throw new IOException("FATAL Error reading file from GCS filename = " + fd.gcsName);
+        }
+      }
     }
-    ProjectSourceZip projectSourceZip =
-        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount.t);
-    projectSourceZip.setMetadata(projectName.t);
-    return projectSourceZip;
   }
 
   @Override
@@ -2338,6 +2569,12 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
   }
 
+  @VisibleForTesting
+  void deleteGcsObject(long projectId, String fileName) throws IOException {
+    FileData fd = ObjectifyService.begin().find(projectFileKey(projectKey(projectId), fileName));
+    gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName));
+  }
+
   @VisibleForTesting
   ProjectData getProject(long projectId) {
     return ObjectifyService.begin().find(projectKey(projectId));
@@ -16,6 +16,7 @@ import com.google.appinventor.shared.rpc.user.User;
 import com.google.appinventor.shared.rpc.user.SplashConfig;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Date;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -221,6 +222,14 @@ public interface StorageIo {
 
   UserProject getUserProject(String userId, long projectId);
 
+  /**
+   * Returns the UserProject objects of all of a user's projects, read
+   * together rather than one at a time.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @return list of UserProject objects
+   */
+  List<UserProject> getUserProjects(String userId);
+
   /**
    * Returns a project name.
    *
@@ -526,6 +535,24 @@ public interface StorageIo {
                                           @Nullable String zipName,
                                           boolean fatalError) throws IOException;
 
+  /**
+   *  Writes project files as a zip archive to a stream, without first
+   *  building the archive in a byte array
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param includeProjectHistory  whether or not to include the project history
+   * @param includeAndroidKeystore  whether or not to include the Android keystore
+   * @param fatalError set true to cause missing GCS file to throw exception
+   * @param out  the stream the zip archive is written to; it is not closed
+   *
+   * @return  the number of files in the zip archive
+   */
+  int exportProjectSourceZip(String userId, long projectId,
+                             boolean includeProjectHistory,
+                             boolean includeAndroidKeystore,
+                             boolean fatalError,
+                             OutputStream out) throws IOException;
+
   /**
    * Find a user's id given their email address. Note that this query is case
    * sensitive!
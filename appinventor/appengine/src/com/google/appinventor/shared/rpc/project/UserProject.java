@@ -8,12 +8,14 @@ package com.google.appinventor.shared.rpc.project;
 
 import com.google.gwt.user.client.rpc.IsSerializable;
 
+import java.io.Serializable;
+
 /**
  * Bundles user specific information about a project to send it over an RPC.
  *
  * @author lizlooney@google.com (Liz Looney)
  */
-public class UserProject implements IsSerializable {
+public class UserProject implements IsSerializable, Serializable {
   /**
    * The project's ID.
    */
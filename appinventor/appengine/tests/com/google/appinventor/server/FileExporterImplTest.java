@@ -135,6 +135,42 @@ public class FileExporterImplTest extends LocalDatastoreTestCase {
     }
   }
 
+  public void testExportProjectSourceZipToStream() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int fileCount = exporter.exportProjectSourceZip(USER_ID, projectId, true, false, false, out);
+    Map<String, byte[]> content = testExportProjectSourceZipHelper(
+        new ProjectSourceZip(PROJECT_NAME + ".aia", out.toByteArray(), fileCount));
+    assertEquals(3, content.size());
+    assertTrue(content.containsKey(FileExporter.REMIX_INFORMATION_FILE_PATH));
+  }
+
+  public void testExportProjectSourceZipToStreamWithNonExistingProject() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      exporter.exportProjectSourceZip(USER_ID, projectId + 1, false, false, false, out);
+      fail();
+    } catch (Exception e) {
+      assertTrue(e instanceof IllegalArgumentException ||
+                 e.getCause() instanceof IllegalArgumentException);
+    }
+    // Nothing was written before the missing files were noticed.
+    assertEquals(0, out.size());
+  }
+
+  public void testExportAllProjectsSourceZipToStream() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(1, exporter.exportAllProjectsSourceZip(USER_ID, out));
+    ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+    ZipEntry zipEntry = zis.getNextEntry();
+    assertEquals(PROJECT_NAME + ".aia", zipEntry.getName());
+    ByteArrayOutputStream project = new ByteArrayOutputStream();
+    ByteStreams.copy(zis, project);
+    Map<String, byte[]> content = testExportProjectSourceZipHelper(
+        new ProjectSourceZip(zipEntry.getName(), project.toByteArray(), 2));
+    assertEquals(2, content.size());
+    assertNull(zis.getNextEntry());
+  }
+
   public void testExportProjectOutputFileWithTarget() throws IOException {
     RawFile file = exporter.exportProjectOutputFile(USER_ID, projectId, "target1");
     assertEquals(TARGET1_NAME, file.getFileName());
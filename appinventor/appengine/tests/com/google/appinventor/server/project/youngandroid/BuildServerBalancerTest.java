@@ -0,0 +1,113 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.project.youngandroid;
+
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.TestCase;
+
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * Tests {@link BuildServerBalancer}.
+ *
+ */
+public class BuildServerBalancerTest extends TestCase {
+
+  private static JSONObject vars(String state, int active, int queued, String maxActive,
+      long liveHeap) throws Exception {
+    JSONObject vars = new JSONObject();
+    vars.put("state", state);
+    vars.put("active-build-tasks", "" + active);
+    vars.put("queued-build-tasks", "" + queued);
+    vars.put("maximum-simultaneous-build-tasks-allowed", maxActive);
+    vars.put("num-processors", "4");
+    vars.put("max-memory", "1000");
+    vars.put("live-heap", "" + liveHeap);
+    return vars;
+  }
+
+  private static List<String> hosts(List<BuildServerBalancer.Backend> backends) {
+    ImmutableList.Builder<String> hosts = ImmutableList.builder();
+    for (BuildServerBalancer.Backend backend : backends) {
+      hosts.add(backend.getHost());
+    }
+    return hosts.build();
+  }
+
+  public void testParseHosts() throws Exception {
+    assertEquals(ImmutableList.of("localhost:9990"),
+        BuildServerBalancer.parseHosts("localhost:9990"));
+    assertEquals(ImmutableList.of("a:9990", "b:9990"),
+        BuildServerBalancer.parseHosts(" a:9990, b:9990 ,"));
+  }
+
+  public void testLeastLoadedFirst() throws Exception {
+    long now = 1000000;
+    BuildServerBalancer.Backend small = new BuildServerBalancer.Backend("small");
+    small.update(vars("UP", 2, 0, "2", 100), now);
+    BuildServerBalancer.Backend big = new BuildServerBalancer.Backend("big");
+    big.update(vars("UP", 4, 0, "8", 100), now);
+    BuildServerBalancer.Backend unlimited = new BuildServerBalancer.Backend("unlimited");
+    unlimited.update(vars("UP", 3, 0, "unlimited", 100), now);
+
+    // Each server's load is relative to its number of build slots.
+    assertEquals(ImmutableList.of("big", "unlimited", "small"),
+        hosts(BuildServerBalancer.rank(ImmutableList.of(small, big, unlimited), now)));
+
+    // Builds sent since the last poll count too.
+    big.addBuild();
+    big.addBuild();
+    big.addBuild();
+    assertEquals(ImmutableList.of("unlimited", "big", "small"),
+        hosts(BuildServerBalancer.rank(ImmutableList.of(small, big, unlimited), now)));
+  }
+
+  public void testHeapBreaksTies() throws Exception {
+    long now = 1000000;
+    BuildServerBalancer.Backend full = new BuildServerBalancer.Backend("full");
+    full.update(vars("UP", 1, 0, "4", 900), now);
+    BuildServerBalancer.Backend empty = new BuildServerBalancer.Backend("empty");
+    empty.update(vars("UP", 1, 0, "4", 100), now);
+    assertEquals(ImmutableList.of("empty", "full"),
+        hosts(BuildServerBalancer.rank(ImmutableList.of(full, empty), now)));
+  }
+
+  public void testUnhealthyServersLast() throws Exception {
+    long now = 1000000;
+    BuildServerBalancer.Backend busy = new BuildServerBalancer.Backend("busy");
+    busy.update(vars("UP", 8, 10, "8", 500), now);
+    BuildServerBalancer.Backend shutting = new BuildServerBalancer.Backend("shutting");
+    shutting.update(vars("SHUTTING", 0, 0, "8", 100), now);
+    BuildServerBalancer.Backend failed = new BuildServerBalancer.Backend("failed");
+    failed.update(vars("UP", 0, 0, "8", 100), now);
+    failed.fail(now);
+
+    assertTrue(busy.isHealthy(now));
+    assertFalse(shutting.isHealthy(now));
+    assertFalse(failed.isHealthy(now));
+    assertEquals("busy",
+        BuildServerBalancer.rank(ImmutableList.of(shutting, failed, busy), now).get(0).getHost());
+
+    // A failed server is tried again after the backoff.
+    long later = now + BuildServerBalancer.FAILURE_BACKOFF_MS;
+    assertTrue(failed.isHealthy(later));
+    assertTrue(failed.needsPoll(now + BuildServerBalancer.POLL_INTERVAL_MS));
+    assertFalse(failed.needsPoll(now + 1));
+  }
+
+  public void testOnlyOneRequestPolls() throws Exception {
+    long now = 1000000;
+    BuildServerBalancer.Backend backend = new BuildServerBalancer.Backend("host");
+    assertTrue(backend.claimPoll(now));
+    // The poll is still going on, so no other request polls the server.
+    assertFalse(backend.claimPoll(now + 1));
+    assertFalse(backend.needsPoll(now + 1));
+    assertTrue(backend.claimPoll(now + BuildServerBalancer.POLL_INTERVAL_MS));
+  }
+}
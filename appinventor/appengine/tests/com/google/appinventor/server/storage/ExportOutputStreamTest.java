@@ -0,0 +1,87 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link ExportOutputStream}.
+ *
+ */
+public class ExportOutputStreamTest extends TestCase {
+
+  // Remembers whether it was closed.
+  private static class CallerStream extends ByteArrayOutputStream {
+    boolean closed = false;
+
+    @Override
+    public void close() throws IOException {
+      closed = true;
+    }
+  }
+
+  public void testClosingAFinishedZipLeavesTheCallerStreamOpen() throws Exception {
+    CallerStream caller = new CallerStream();
+    ExportOutputStream destination = new ExportOutputStream(caller);
+    ZipOutputStream zip = new ZipOutputStream(destination);
+    zip.putNextEntry(new ZipEntry("a.txt"));
+    zip.write("hello".getBytes("UTF-8"));
+    zip.closeEntry();
+    destination.closeZip(zip, true);
+
+    assertFalse(caller.closed);
+    ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(caller.toByteArray()));
+    assertEquals("a.txt", in.getNextEntry().getName());
+    assertNull(in.getNextEntry());
+  }
+
+  public void testClosingAFailedZipWritesNothingMore() throws Exception {
+    CallerStream caller = new CallerStream();
+    ExportOutputStream destination = new ExportOutputStream(caller);
+    ZipOutputStream zip = new ZipOutputStream(destination);
+    zip.putNextEntry(new ZipEntry("a.txt"));
+    int written = caller.size();
+    destination.closeZip(zip, false);
+
+    assertFalse(caller.closed);
+    assertEquals(written, caller.size());
+  }
+
+  public void testWriteFailureIsRemembered() throws Exception {
+    final IOException failure = new IOException("connection reset");
+    ExportOutputStream destination = new ExportOutputStream(new ByteArrayOutputStream() {
+      @Override
+      public void write(byte[] b, int off, int len) {
+        throw new RuntimeException("not expected");
+      }
+
+      @Override
+      public void flush() throws IOException {
+        throw failure;
+      }
+    });
+    destination.rethrowWriteFailure();
+    try {
+      destination.flush();
+      fail();
+    } catch (IOException e) {
+      assertSame(failure, e);
+    }
+    try {
+      destination.rethrowWriteFailure();
+      fail();
+    } catch (IOException e) {
+      assertSame(failure, e);
+    }
+  }
+}
@@ -17,14 +17,23 @@ import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
 import com.google.appinventor.shared.rpc.user.User;
 import com.google.appinventor.shared.storage.StorageUtil;
+import com.google.common.io.ByteStreams;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 /**
  * Tests for {@link ObjectifyStorageIo}.
@@ -477,6 +486,63 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     assertNull(result);
   }
 
+  public void testGetUserProjects() {
+    final String USER_ID = "1550";
+    storage.getUser(USER_ID);
+    assertTrue(storage.getUserProjects(USER_ID).isEmpty());
+    long projectId1 = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    long projectId2 = createProject(USER_ID, "Project2", FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    List<UserProject> userProjects = storage.getUserProjects(USER_ID);
+    assertEquals(2, userProjects.size());
+    for (UserProject userProject : userProjects) {
+      if (userProject.getProjectId() == projectId1) {
+        assertEquals(PROJECT_NAME, userProject.getProjectName());
+      } else {
+        assertEquals(projectId2, userProject.getProjectId());
+        assertEquals("Project2", userProject.getProjectName());
+      }
+      assertEquals(FAKE_PROJECT_TYPE, userProject.getProjectType());
+    }
+
+    // The cached list must not outlive changes to the user's projects.
+    storage.setProjectGalleryId(USER_ID, projectId2, 42);
+    storage.deleteProject(USER_ID, projectId1);
+    userProjects = storage.getUserProjects(USER_ID);
+    assertEquals(1, userProjects.size());
+    assertEquals(projectId2, userProjects.get(0).getProjectId());
+    assertEquals(42, userProjects.get(0).getGalleryId());
+  }
+
+  public void testProjectListReadBeforeAChangeIsNotCached() {
+    final String USER_ID = "1560";
+    final long[] deletedProjectId = new long[1];
+    // Deletes a project right after the next job, which is the one reading the list.
+    final boolean[] deleteAfterNextJob = new boolean[1];
+    ObjectifyStorageIo storage = new ObjectifyStorageIo() {
+      @Override
+      void runJobWithRetries(JobRetryHelper job, boolean useTransaction)
+          throws ObjectifyException {
+        super.runJobWithRetries(job, useTransaction);
+        if (deleteAfterNextJob[0]) {
+          deleteAfterNextJob[0] = false;
+          deleteProject(USER_ID, deletedProjectId[0]);
+        }
+      }
+    };
+    storage.getUser(USER_ID);
+    deletedProjectId[0] =
+        createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME, storage);
+    long projectId2 =
+        createProject(USER_ID, "Project2", FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME, storage);
+
+    // The list read before the deletion still has the deleted project, but isn't cached.
+    deleteAfterNextJob[0] = true;
+    assertEquals(2, storage.getUserProjects(USER_ID).size());
+    List<UserProject> userProjects = storage.getUserProjects(USER_ID);
+    assertEquals(1, userProjects.size());
+    assertEquals(projectId2, userProjects.get(0).getProjectId());
+  }
+
   public void testWrongUserThrowsException() throws Exception {
     final String USER_ID = "1600";
     final String USER_ID2 = "1700";
@@ -494,6 +560,97 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     }
   }
 
+  public void testExportWriteFailureIsNotWrapped() throws Exception {
+    final String USER_ID = "1800";
+    storage.getUser(USER_ID);
+    long projectId = createProject(
+        USER_ID, PROJECT_NAME, YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE,
+        FORM_QUALIFIED_NAME);
+    // Random bytes don't compress, so the zip is written while the asset is copied.
+    byte[] asset = new byte[256 * 1024];
+    new Random(0).nextBytes(asset);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, ASSET_FILE_NAME1);
+    storage.uploadRawFile(projectId, ASSET_FILE_NAME1, USER_ID, true, asset);
+    assertTrue(storage.isGcsFile(projectId, ASSET_FILE_NAME1));
+
+    final IOException failure = new IOException("connection reset");
+    OutputStream out = new OutputStream() {
+      private int count = 0;
+
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        count += len;
+        if (count > 64 * 1024) {
+          throw failure;
+        }
+      }
+    };
+    try {
+      storage.exportProjectSourceZip(USER_ID, projectId, false, false, false, out);
+      fail();
+    } catch (IOException e) {
+      assertSame(failure, e);
+    }
+  }
+
+  public void testExportMoreGcsFilesThanArePrefetched() throws Exception {
+    final String USER_ID = "1810";
+    storage.getUser(USER_ID);
+    long projectId = createProject(
+        USER_ID, PROJECT_NAME, YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE,
+        FORM_QUALIFIED_NAME);
+    // More assets than the 8 reads that are open at once by default, one of them empty.
+    Map<String, byte[]> assets = new HashMap<String, byte[]>();
+    for (int i = 0; i < 20; i++) {
+      byte[] content = new byte[i * 10000];
+      new Random(i).nextBytes(content);
+      assets.put("assets/asset" + i + ".bin", content);
+    }
+    for (Map.Entry<String, byte[]> asset : assets.entrySet()) {
+      storage.addSourceFilesToProject(USER_ID, projectId, false, asset.getKey());
+      storage.uploadRawFile(projectId, asset.getKey(), USER_ID, true, asset.getValue());
+      assertTrue(storage.isGcsFile(projectId, asset.getKey()));
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    storage.exportProjectSourceZip(USER_ID, projectId, false, false, true, out);
+
+    Map<String, byte[]> exported = new HashMap<String, byte[]>();
+    ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+    for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+      exported.put(entry.getName(), ByteStreams.toByteArray(in));
+    }
+    for (Map.Entry<String, byte[]> asset : assets.entrySet()) {
+      assertTrue(asset.getKey(), exported.containsKey(asset.getKey()));
+      assertTrue(asset.getKey(), Arrays.equals(asset.getValue(), exported.get(asset.getKey())));
+    }
+  }
+
+  public void testExportMissingGcsFileFails() throws Exception {
+    final String USER_ID = "1820";
+    storage.getUser(USER_ID);
+    long projectId = createProject(
+        USER_ID, PROJECT_NAME, YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE,
+        FORM_QUALIFIED_NAME);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, ASSET_FILE_NAME1);
+    storage.uploadRawFile(projectId, ASSET_FILE_NAME1, USER_ID, true, ASSET_FILE_CONTENT1);
+    assertTrue(storage.isGcsFile(projectId, ASSET_FILE_NAME1));
+    storage.deleteGcsObject(projectId, ASSET_FILE_NAME1);
+
+    try {
+      storage.exportProjectSourceZip(USER_ID, projectId, false, false, true,
+          new ByteArrayOutputStream());
+      fail();
+    } catch (IOException e) {
+      // Expected: the missing file isn't exported as an empty one.
+    }
+  }
+
 
   /*
    * Fail on the Nth call to runJobWithRetries, where N is the value of the
@@ -0,0 +1,263 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.common.version.GitBuildId;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A content-addressed cache of built APKs.
+ *
+ * <p>The key of a build is a hash of every file in the project zip (which includes the sources,
+ * assets and keystore, and therefore determines the component set), whether the build is for the
+ * companion, and the build server version. Building the same inputs again returns the cached APK
+ * and build messages without running the compiler.
+ *
+ * <p>Only projects that bring their own keystore are cached. A project without a keystore gets a
+ * newly generated one on every build, and the same private key must never be handed out twice.
+ *
+ * <p>Entries are stored as files in a directory and the least recently used ones are deleted
+ * when the cache grows over its size limit. The cache is disabled until {@link #configure} is
+ * called with a directory.
+ */
+final class ApkCache {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ApkCache.class.getName());
+
+  private static final String APK_SUFFIX = ".apk";
+  private static final String MESSAGES_SUFFIX = ".out";
+
+  private static volatile File cacheDir = null;
+  private static volatile long maxBytes = 0;
+
+  /**
+   * A build found in the cache.
+   */
+  static final class CachedBuild {
+    private final File apk;
+    private final String apkName;
+    private final String messages;
+
+    private CachedBuild(File apk, String apkName, String messages) {
+      this.apk = apk;
+      this.apkName = apkName;
+      this.messages = messages;
+    }
+
+    File getApk() {
+      return apk;
+    }
+
+    /**
+     * Returns the file name the APK had when it was built.
+     */
+    String getApkName() {
+      return apkName;
+    }
+
+    String getMessages() {
+      return messages;
+    }
+  }
+
+  private ApkCache() {
+  }
+
+  /**
+   * Configures the cache.
+   *
+   * @param dir  the directory holding the cache; {@code null} disables the cache
+   * @param maxMb  the maximum size of the cache, in MB
+   */
+  static void configure(String dir, int maxMb) {
+    if (dir == null) {
+      cacheDir = null;
+      return;
+    }
+    File directory = new File(dir);
+    directory.mkdirs();
+    maxBytes = maxMb * 1024L * 1024L;
+    cacheDir = directory;
+  }
+
+  static boolean isEnabled() {
+    return cacheDir != null;
+  }
+
+  /**
+   * Computes the cache key of a build.
+   *
+   * @param inputZip  the project zip
+   * @param isForCompanion  whether the build is for the companion
+   * @return  the key, or {@code null} if the build must not be cached
+   */
+  static String computeKey(ZipFile inputZip, boolean isForCompanion) throws IOException {
+    if (inputZip.getEntry(YoungAndroidConstants.PROJECT_KEYSTORE_LOCATION) == null) {
+      return null;
+    }
+    return hashInputs(inputZip, isForCompanion);
+  }
+
+  /**
+   * Computes a hash of the inputs of a build: every file in the project zip, whether the build
+   * is for the companion, and the build server version.
+   *
+   * @param inputZip  the project zip
+   * @param isForCompanion  whether the build is for the companion
+   */
+  static String hashInputs(ZipFile inputZip, boolean isForCompanion) throws IOException {
+    // Hash the entries in name order, so the order of the entries in the zip doesn't matter.
+    List<ZipEntry> entries = Lists.newArrayList();
+    Enumeration<? extends ZipEntry> inputZipEnumeration = inputZip.entries();
+    while (inputZipEnumeration.hasMoreElements()) {
+      ZipEntry zipEntry = inputZipEnumeration.nextElement();
+      if (!zipEntry.isDirectory()) {
+        entries.add(zipEntry);
+      }
+    }
+    Collections.sort(entries, new Comparator<ZipEntry>() {
+      @Override
+      public int compare(ZipEntry a, ZipEntry b) {
+        return a.getName().compareTo(b.getName());
+      }
+    });
+
+    Hasher hasher = Hashing.sha256().newHasher();
+    hasher.putString(GitBuildId.getVersion(), Charsets.UTF_8);
+    hasher.putBoolean(isForCompanion);
+    hasher.putInt(entries.size());
+    byte[] buffer = new byte[8192];
+    for (ZipEntry zipEntry : entries) {
+      byte[] name = zipEntry.getName().getBytes(Charsets.UTF_8);
+      hasher.putInt(name.length).putBytes(name);
+      hasher.putLong(zipEntry.getSize());
+      InputStream in = inputZip.getInputStream(zipEntry);
+      try {
+        int length;
+        while ((length = in.read(buffer)) != -1) {
+          hasher.putBytes(buffer, 0, length);
+        }
+      } finally {
+        in.close();
+      }
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Returns the cached build for the given key, or {@code null} if there is none.
+   */
+  static CachedBuild lookup(String key) {
+    File dir = cacheDir;
+    if (dir == null || key == null) {
+      return null;
+    }
+    File apk = new File(dir, key + APK_SUFFIX);
+    File messages = new File(dir, key + MESSAGES_SUFFIX);
+    if (!apk.isFile() || !messages.isFile()) {
+      return null;
+    }
+    try {
+      // The first line of the messages file is the name of the APK.
+      String content = Files.toString(messages, Charsets.UTF_8);
+      int newline = content.indexOf('\n');
+      if (newline == -1) {
+        return null;
+      }
+      CachedBuild cachedBuild = new CachedBuild(apk, content.substring(0, newline),
+          content.substring(newline + 1));
+      // Mark the entry as recently used.
+      long now = System.currentTimeMillis();
+      apk.setLastModified(now);
+      messages.setLastModified(now);
+      return cachedBuild;
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to read cached build " + key, e);
+      return null;
+    }
+  }
+
+  /**
+   * Adds a successful build to the cache.
+   *
+   * @param key  the key returned by {@link #computeKey}
+   * @param apk  the built APK, which keeps its file name in the cache
+   * @param messages  the build messages
+   */
+  static void store(String key, File apk, String messages) {
+    File dir = cacheDir;
+    if (dir == null || key == null) {
+      return;
+    }
+    try {
+      // Write to temp files first, so that concurrent lookups never see a partial entry.
+      File tmpApk = File.createTempFile(key, APK_SUFFIX, dir);
+      File tmpMessages = File.createTempFile(key, MESSAGES_SUFFIX, dir);
+      Files.copy(apk, tmpApk);
+      Files.write(apk.getName() + "\n" + messages, tmpMessages, Charsets.UTF_8);
+      if (!tmpMessages.renameTo(new File(dir, key + MESSAGES_SUFFIX)) ||
+          !tmpApk.renameTo(new File(dir, key + APK_SUFFIX))) {
+        tmpApk.delete();
+        tmpMessages.delete();
+        return;
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to cache build " + key, e);
+      return;
+    }
+    evict(dir);
+  }
+
+  /*
+   * Deletes the least recently used entries until the cache fits in maxBytes.
+   */
+  private static synchronized void evict(File dir) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    long total = 0;
+    for (File file : files) {
+      total += file.length();
+    }
+    if (total <= maxBytes) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+      }
+    });
+    for (File file : files) {
+      if (total <= maxBytes) {
+        break;
+      }
+      long length = file.length();
+      if (file.delete()) {
+        total -= length;
+      }
+    }
+  }
+}
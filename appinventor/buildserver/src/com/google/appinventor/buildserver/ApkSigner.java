@@ -0,0 +1,333 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.BaseEncoding;
+
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.DEROutputStream;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Signs and aligns an APK in a single pass, without running jarsigner and zipalign.
+ *
+ * <p>The entries of the unsigned APK are copied to the signed APK while their SHA-1 digests are
+ * computed. Uncompressed entries are padded so that their data starts at a multiple of
+ * {@link #ALIGNMENT} bytes, which is what zipalign does. Finally the JAR signature files
+ * ({@code META-INF/MANIFEST.MF}, {@code META-INF/CERT.SF} and {@code META-INF/CERT.RSA}) are
+ * added, the same way the Android SDK's own signing code does it.
+ */
+final class ApkSigner {
+  // The alignment of uncompressed entries, in bytes.
+  static final int ALIGNMENT = 4;
+
+  private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+  private static final String SIGNATURE_NAME = "META-INF/CERT.SF";
+  private static final String SIGNATURE_BLOCK_NAME = "META-INF/CERT.RSA";
+  private static final String DIGEST_ALGORITHM = "SHA1";
+  private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+  private static final String CREATED_BY = "1.0 (Android)";
+
+  // Manifest lines can't be longer than this many bytes, not counting the line break.
+  private static final int MAX_LINE_LENGTH = 72;
+
+  private final PrivateKey privateKey;
+  private final X509Certificate certificate;
+
+  /**
+   * Creates an ApkSigner for the given key and certificate.
+   */
+  ApkSigner(PrivateKey privateKey, X509Certificate certificate) {
+    this.privateKey = privateKey;
+    this.certificate = certificate;
+  }
+
+  /**
+   * Creates an ApkSigner for a key in a keystore.
+   *
+   * @param keystore  the keystore file, in JKS or PKCS12 format
+   * @param password  the password of the keystore and of the key
+   * @param alias  the alias of the key
+   */
+  static ApkSigner fromKeystore(File keystore, String password, String alias)
+      throws IOException, GeneralSecurityException {
+    KeyStore keyStore = loadKeyStore(keystore, password.toCharArray());
+    PrivateKey privateKey = (PrivateKey) keyStore.getKey(alias, password.toCharArray());
+    X509Certificate certificate = (X509Certificate) keyStore.getCertificate(alias);
+    if (privateKey == null || certificate == null) {
+      throw new GeneralSecurityException("No key " + alias + " in " + keystore);
+    }
+    return new ApkSigner(privateKey, certificate);
+  }
+
+  private static KeyStore loadKeyStore(File keystore, char[] password)
+      throws IOException, GeneralSecurityException {
+    GeneralSecurityException failure = null;
+    // Older keytools create JKS keystores, newer ones create PKCS12 keystores.
+    for (String type : new String[] { "JKS", "PKCS12" }) {
+      KeyStore keyStore = KeyStore.getInstance(type);
+      InputStream in = new FileInputStream(keystore);
+      try {
+        keyStore.load(in, password);
+        return keyStore;
+      } catch (IOException e) {
+        failure = new GeneralSecurityException("Unable to load keystore " + keystore, e);
+      } finally {
+        in.close();
+      }
+    }
+    throw failure;
+  }
+
+  /**
+   * Writes a signed and aligned copy of an unsigned APK.
+   *
+   * @param unsignedApk  the APK to sign
+   * @param signedApk  the file to write the signed APK to
+   */
+  void sign(File unsignedApk, File signedApk) throws IOException, GeneralSecurityException {
+    ZipFile input = new ZipFile(unsignedApk);
+    try {
+      CountingOutputStream counter =
+          new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(signedApk)));
+      ZipOutputStream output = new ZipOutputStream(counter);
+      try {
+        MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        // The digests of the entries, in the order they were written.
+        Map<String, byte[]> entryDigests = Maps.newLinkedHashMap();
+        byte[] buffer = new byte[8192];
+        for (ZipEntry entry : Collections.list(input.entries())) {
+          String name = entry.getName();
+          if (entry.isDirectory() || isSignatureFile(name)) {
+            continue;
+          }
+          output.putNextEntry(copyEntry(entry, counter.getCount()));
+          InputStream in = input.getInputStream(entry);
+          try {
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+              digest.update(buffer, 0, length);
+              output.write(buffer, 0, length);
+            }
+          } finally {
+            in.close();
+          }
+          output.closeEntry();
+          entryDigests.put(name, digest.digest());
+        }
+
+        byte[] manifest = writeManifest(entryDigests, output);
+        byte[] signature = writeSignature(entryDigests, manifest, output);
+        writeSignatureBlock(signature, output);
+      } finally {
+        output.close();
+      }
+    } finally {
+      input.close();
+    }
+  }
+
+  private static boolean isSignatureFile(String name) {
+    if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) != -1) {
+      return false;
+    }
+    return name.equals(MANIFEST_NAME) || name.endsWith(".SF") || name.endsWith(".RSA") ||
+        name.endsWith(".DSA") || name.endsWith(".EC");
+  }
+
+  /*
+   * Returns the entry to write for the given entry of the unsigned APK, which will be written at
+   * the given offset. Uncompressed entries get an extra field that aligns their data.
+   */
+  private static ZipEntry copyEntry(ZipEntry entry, long offset) {
+    ZipEntry copy = new ZipEntry(entry.getName());
+    copy.setTime(entry.getTime());
+    copy.setMethod(entry.getMethod());
+    if (entry.getMethod() == ZipEntry.STORED) {
+      copy.setSize(entry.getSize());
+      copy.setCompressedSize(entry.getCompressedSize());
+      copy.setCrc(entry.getCrc());
+      // The data follows the 30 byte local file header, the name and the extra field.
+      long dataOffset = offset + 30 + entry.getName().getBytes(Charsets.UTF_8).length;
+      int padding = (int) ((ALIGNMENT - dataOffset % ALIGNMENT) % ALIGNMENT);
+      if (padding > 0) {
+        copy.setExtra(new byte[padding]);
+      }
+    }
+    return copy;
+  }
+
+  private static byte[] writeManifest(Map<String, byte[]> entryDigests, ZipOutputStream output)
+      throws IOException {
+    ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+    writeAttribute(manifest, "Manifest-Version", "1.0");
+    writeAttribute(manifest, "Created-By", CREATED_BY);
+    manifest.write(newLine());
+    for (Map.Entry<String, byte[]> entryDigest : entryDigests.entrySet()) {
+      manifest.write(getManifestSection(entryDigest.getKey(), entryDigest.getValue()));
+    }
+    byte[] bytes = manifest.toByteArray();
+    writeEntry(output, MANIFEST_NAME, bytes);
+    return bytes;
+  }
+
+  private static byte[] writeSignature(Map<String, byte[]> entryDigests, byte[] manifest,
+      ZipOutputStream output) throws IOException, GeneralSecurityException {
+    MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+    ByteArrayOutputStream signature = new ByteArrayOutputStream();
+    writeAttribute(signature, "Signature-Version", "1.0");
+    writeAttribute(signature, "Created-By", CREATED_BY);
+    writeAttribute(signature, DIGEST_ALGORITHM + "-Digest-Manifest",
+        BaseEncoding.base64().encode(digest.digest(manifest)));
+    signature.write(newLine());
+    // Each section of the signature file holds the digest of the entry's manifest section.
+    for (Map.Entry<String, byte[]> entryDigest : entryDigests.entrySet()) {
+      byte[] section = getManifestSection(entryDigest.getKey(), entryDigest.getValue());
+      writeAttribute(signature, "Name", entryDigest.getKey());
+      writeAttribute(signature, DIGEST_ALGORITHM + "-Digest",
+          BaseEncoding.base64().encode(digest.digest(section)));
+      signature.write(newLine());
+    }
+    byte[] bytes = signature.toByteArray();
+    writeEntry(output, SIGNATURE_NAME, bytes);
+    return bytes;
+  }
+
+  private void writeSignatureBlock(byte[] signature, ZipOutputStream output)
+      throws IOException, GeneralSecurityException {
+    try {
+      CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+      ContentSigner signer = new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(privateKey);
+      // Android only accepts signatures without signed attributes.
+      generator.addSignerInfoGenerator(
+          new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().build())
+              .setDirectSignature(true)
+              .build(signer, certificate));
+      generator.addCertificates(new JcaCertStore(Collections.singletonList(certificate)));
+      CMSSignedData signedData = generator.generate(new CMSProcessableByteArray(signature), false);
+
+      // Android requires the signature block to be DER encoded.
+      ByteArrayOutputStream signatureBlock = new ByteArrayOutputStream();
+      ASN1InputStream asn1 = new ASN1InputStream(signedData.getEncoded());
+      try {
+        DEROutputStream der = new DEROutputStream(signatureBlock);
+        der.writeObject(asn1.readObject());
+        der.close();
+      } finally {
+        asn1.close();
+      }
+      writeEntry(output, SIGNATURE_BLOCK_NAME, signatureBlock.toByteArray());
+    } catch (GeneralSecurityException e) {
+      throw e;
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      // The Bouncy Castle operator and CMS exceptions.
+      throw new GeneralSecurityException("Unable to sign the APK", e);
+    }
+  }
+
+  private static byte[] getManifestSection(String name, byte[] entryDigest) throws IOException {
+    ByteArrayOutputStream section = new ByteArrayOutputStream();
+    writeAttribute(section, "Name", name);
+    writeAttribute(section, DIGEST_ALGORITHM + "-Digest",
+        BaseEncoding.base64().encode(entryDigest));
+    section.write(newLine());
+    return section.toByteArray();
+  }
+
+  /*
+   * Writes a manifest attribute, breaking it into continuation lines that start with a space
+   * when it is too long. Lines are never broken in the middle of a UTF-8 character.
+   */
+  private static void writeAttribute(OutputStream out, String name, String value)
+      throws IOException {
+    byte[] line = (name + ": " + value).getBytes(Charsets.UTF_8);
+    int start = 0;
+    int maxLength = MAX_LINE_LENGTH;
+    while (line.length - start > maxLength) {
+      int end = start + maxLength;
+      // Continuation bytes of a UTF-8 character look like 10xxxxxx.
+      while ((line[end] & 0xC0) == 0x80) {
+        end--;
+      }
+      out.write(line, start, end - start);
+      out.write(newLine());
+      out.write(' ');
+      start = end;
+      maxLength = MAX_LINE_LENGTH - 1;
+    }
+    out.write(line, start, line.length - start);
+    out.write(newLine());
+  }
+
+  private static byte[] newLine() {
+    return new byte[] { '\r', '\n' };
+  }
+
+  private static void writeEntry(ZipOutputStream output, String name, byte[] content)
+      throws IOException {
+    output.putNextEntry(new ZipEntry(name));
+    output.write(content);
+    output.closeEntry();
+  }
+
+  /*
+   * Counts the bytes written to the APK, so that the offset of each entry is known.
+   */
+  private static final class CountingOutputStream extends FilterOutputStream {
+    private long count;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+
+    long getCount() {
+      return count;
+    }
+  }
+}
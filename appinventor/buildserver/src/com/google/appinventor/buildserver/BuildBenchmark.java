@@ -0,0 +1,296 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.zip.ZipFile;
+
+/**
+ * Measures the throughput of the build pipeline over a corpus of sample projects.
+ *
+ * <p>The corpus is a directory of project ZIP files, as sent by the App Engine server to
+ * build-from-zip. It should cover the usual shapes of projects: small, multi-screen and
+ * asset-heavy ones. Projects whose file name contains {@code "companion"} are built as the
+ * MIT AI2 Companion.
+ *
+ * <p>Each project is built several times at each concurrency level, in one or both of these
+ * modes:
+ * <ul>
+ * <li>cold: a fresh dex cache for every build, and no class cache, resident Kawa compilers or
+ * resident dexers.
+ * <li>warm: a shared dex cache and class cache, resident Kawa compilers and resident dexers,
+ * primed by one build of each project that isn't measured.
+ * </ul>
+ * The APK cache is never used, since it would skip the pipeline altogether.
+ *
+ * <p>For each run the benchmark prints the number of builds per minute and the latency of each
+ * stage, as recorded by {@link BuildMetrics}.
+ */
+public final class BuildBenchmark {
+
+  static class CommandLineOptions {
+    @Option(name = "--corpusDir", required = true,
+            usage = "the directory containing the ZIP files of the projects to build")
+    File corpusDir;
+
+    @Option(name = "--userName",
+            usage = "the name of the user building the projects")
+    String userName = "benchmark";
+
+    @Option(name = "--mode",
+            usage = "cold, warm or both")
+    String mode = "both";
+
+    @Option(name = "--concurrency",
+            usage = "comma separated numbers of builds running in parallel")
+    String concurrency = "1,2,4";
+
+    @Option(name = "--iterations",
+            usage = "number of times each project is built at each concurrency level")
+    int iterations = 3;
+
+    @Option(name = "--childProcessRamMb",
+            usage = "Maximum ram that can be used by a child processes, in MB.")
+    int childProcessRamMb = 2048;
+
+    @Option(name = "--maxSimultaneousKawaCompiles",
+            usage = "Maximum number of Kawa compilations that can run in parallel. 0 means one " +
+            "per available processor.")
+    int maxSimultaneousKawaCompiles = 0;
+
+    @Option(name = "--maxSimultaneousDx",
+            usage = "Maximum number of DX runs that can happen in parallel. 0 means one per " +
+            "available processor.")
+    int maxSimultaneousDx = 0;
+
+    @Option(name = "--pruneRuntime",
+            usage = "Remove the runtime classes a project can't reach before running DX.")
+    boolean pruneRuntime = false;
+
+    @Option(name = "--prunedRuntimeCacheMb",
+            usage = "Maximum size of the pruned runtime jars in the dex cache, together with the " +
+            "files dexed from them, in MB.")
+    int prunedRuntimeCacheMb = 512;
+  }
+
+  private static final CommandLineOptions commandLineOptions = new CommandLineOptions();
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildBenchmark.class.getName());
+
+  private static final double[] PERCENTILES = { 50, 95 };
+
+  private static final PrintStream out = System.out;
+
+  private BuildBenchmark() {
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args  command line arguments
+   */
+  public static void main(String[] args) throws Exception {
+    CmdLineParser cmdLineParser = new CmdLineParser(commandLineOptions);
+    try {
+      cmdLineParser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      cmdLineParser.printUsage(System.err);
+      System.exit(1);
+    }
+
+    List<File> projects = findProjects(commandLineOptions.corpusDir);
+    if (projects.isEmpty()) {
+      System.err.println("No project ZIP files in " + commandLineOptions.corpusDir);
+      System.exit(1);
+    }
+    List<Integer> concurrencyLevels = Lists.newArrayList();
+    for (String level : commandLineOptions.concurrency.split(",")) {
+      concurrencyLevels.add(Integer.parseInt(level.trim()));
+    }
+    String mode = commandLineOptions.mode;
+    if (!mode.equals("cold") && !mode.equals("warm") && !mode.equals("both")) {
+      System.err.println("Unknown mode: " + mode);
+      System.exit(1);
+    }
+
+    // Warm runs keep as many resident Kawa compilers as builds running in parallel.
+    int residentKawaCompilers = mode.equals("cold") ? 0 : Collections.max(concurrencyLevels);
+    int childProcessRamBudgetMb = StageScheduler.getDefaultRamBudgetMb(
+        commandLineOptions.childProcessRamMb, residentKawaCompilers);
+    StageScheduler.configure(commandLineOptions.maxSimultaneousKawaCompiles,
+        commandLineOptions.maxSimultaneousDx, childProcessRamBudgetMb);
+    ApkCache.configure(null, 0);
+    RuntimePruner.configure(commandLineOptions.pruneRuntime,
+        commandLineOptions.prunedRuntimeCacheMb);
+
+    out.println("Corpus: " + projects.size() + " projects in " + commandLineOptions.corpusDir);
+    out.println("Processors: " + Runtime.getRuntime().availableProcessors());
+    boolean succeeded = true;
+    for (int concurrency : concurrencyLevels) {
+      if (!mode.equals("warm")) {
+        succeeded &= runCold(projects, concurrency);
+      }
+      if (!mode.equals("cold")) {
+        succeeded &= runWarm(projects, concurrency);
+      }
+    }
+    System.exit(succeeded ? 0 : 1);
+  }
+
+  private static List<File> findProjects(File corpusDir) {
+    List<File> projects = Lists.newArrayList();
+    File[] files = corpusDir.listFiles();
+    if (files != null) {
+      Arrays.sort(files);
+      for (File file : files) {
+        String name = file.getName();
+        if (file.isFile() && (name.endsWith(".zip") || name.endsWith(".aia"))) {
+          projects.add(file);
+        }
+      }
+    }
+    return projects;
+  }
+
+  private static boolean runCold(List<File> projects, int concurrency) throws Exception {
+    KawaCompilerPool.configure(0, 1);
+    ResidentDexer.configure(0);
+    ScreenClassCache.configure(null, 0);
+    // Each build gets its own dex cache, so every library is pre-dexed again.
+    return run("cold", projects, concurrency, null);
+  }
+
+  private static boolean runWarm(List<File> projects, int concurrency) throws Exception {
+    File cacheDir = Files.createTempDir();
+    try {
+      KawaCompilerPool.configure(concurrency, 50);
+      Compiler.prewarmKawaCompilers(commandLineOptions.childProcessRamMb);
+      ResidentDexer.configure(concurrency);
+      ScreenClassCache.configure(new File(cacheDir, "classes").getPath(), 512);
+      String dexCacheDir = new File(cacheDir, "dex").getPath();
+
+      // Prime the caches and the resident compilers with one build of each project.
+      for (File project : projects) {
+        build(project, dexCacheDir);
+      }
+      return run("warm", projects, concurrency, dexCacheDir);
+    } finally {
+      ScreenClassCache.configure(null, 0);
+      KawaCompilerPool.configure(0, 1);
+      ResidentDexer.configure(0);
+      FileUtils.deleteDirectory(cacheDir);
+    }
+  }
+
+  /**
+   * Builds each project {@code iterations} times with the given number of builds running in
+   * parallel, and prints the results.
+   *
+   * @param dexCacheDir  the dex cache shared by all builds, or {@code null} to give each build
+   *     its own
+   * @return  whether all builds succeeded
+   */
+  private static boolean run(String mode, List<File> projects, int concurrency,
+      final String dexCacheDir) throws InterruptedException {
+    List<Callable<Boolean>> builds = Lists.newArrayList();
+    for (int i = 0; i < commandLineOptions.iterations; i++) {
+      for (final File project : projects) {
+        builds.add(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws IOException {
+            return build(project, dexCacheDir);
+          }
+        });
+      }
+    }
+
+    BuildMetrics.reset();
+    ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+    long start = System.currentTimeMillis();
+    int failures = 0;
+    try {
+      for (Future<Boolean> future : executor.invokeAll(builds)) {
+        try {
+          if (!future.get()) {
+            failures++;
+          }
+        } catch (ExecutionException e) {
+          LOG.warning("Build failed: " + e.getCause());
+          failures++;
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+    long elapsedMs = System.currentTimeMillis() - start;
+
+    out.println();
+    out.println(String.format("mode=%s concurrency=%d builds=%d failures=%d time=%.1fs " +
+        "builds/minute=%.2f", mode, concurrency, builds.size(), failures, elapsedMs / 1000.0,
+        builds.size() * 60000.0 / Math.max(1, elapsedMs)));
+    out.println(String.format("  %-32s %6s %9s %9s %9s %9s", "stage", "count", "mean-ms",
+        "p50-ms", "p95-ms", "max-ms"));
+    for (Map.Entry<String, LatencyHistogram> entry : BuildMetrics.getHistograms().entrySet()) {
+      LatencyHistogram histogram = entry.getValue();
+      long count = histogram.getCount();
+      out.println(String.format("  %-32s %6d %9d %9d %9d %9d", entry.getKey(), count,
+          count == 0 ? 0 : histogram.getSumMs() / count,
+          histogram.getPercentileMs(PERCENTILES[0]), histogram.getPercentileMs(PERCENTILES[1]),
+          histogram.getMaxMs()));
+    }
+    return failures == 0;
+  }
+
+  /**
+   * Builds a project in a temporary directory that is deleted afterwards.
+   *
+   * @param dexCacheDir  the dex cache to use, or {@code null} to use a new one
+   * @return  whether the build succeeded
+   */
+  private static boolean build(File project, String dexCacheDir) throws IOException {
+    File outputDir = Files.createTempDir();
+    ZipFile zip = new ZipFile(project);
+    try {
+      if (dexCacheDir == null) {
+        dexCacheDir = new File(outputDir, "dexCache").getPath();
+      }
+      boolean isForCompanion = project.getName().contains("companion");
+      long start = System.currentTimeMillis();
+      Result result = new ProjectBuilder().build(commandLineOptions.userName, zip, outputDir,
+          isForCompanion, commandLineOptions.childProcessRamMb, dexCacheDir);
+      BuildMetrics.recordSince("build", start);
+      if (result.failed()) {
+        LOG.warning("Build of " + project.getName() + " failed:\n" + result.getError());
+      }
+      return result.succeeded();
+    } finally {
+      zip.close();
+      FileUtils.deleteDirectory(outputDir);
+    }
+  }
+}
@@ -0,0 +1,161 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The latency histograms of the build server, one for each stage of a build.
+ *
+ * <p>Stages are identified by short names such as {@code "kawa"} or {@code "queue-wait"}. The
+ * histograms can be exported as JSON or in the Prometheus text format.
+ */
+final class BuildMetrics {
+  private static final ConcurrentMap<String, LatencyHistogram> histograms =
+      new ConcurrentHashMap<String, LatencyHistogram>();
+
+  private static final double[] PERCENTILES = { 50, 95, 99 };
+
+  private BuildMetrics() {
+  }
+
+  /**
+   * Records the latency of a stage.
+   *
+   * @param stage  the name of the stage
+   * @param latencyMs  the latency, in milliseconds
+   */
+  static void record(String stage, long latencyMs) {
+    LatencyHistogram histogram = histograms.get(stage);
+    if (histogram == null) {
+      LatencyHistogram newHistogram = new LatencyHistogram();
+      histogram = histograms.putIfAbsent(stage, newHistogram);
+      if (histogram == null) {
+        histogram = newHistogram;
+      }
+    }
+    histogram.record(latencyMs);
+  }
+
+  /**
+   * Records the time elapsed since the given start time as the latency of a stage.
+   *
+   * @param stage  the name of the stage
+   * @param startMs  the start time, as returned by {@link System#currentTimeMillis}
+   */
+  static void recordSince(String stage, long startMs) {
+    record(stage, System.currentTimeMillis() - startMs);
+  }
+
+  /**
+   * Discards everything recorded so far.
+   */
+  static void reset() {
+    histograms.clear();
+  }
+
+  /**
+   * Returns the histograms, sorted by stage name.
+   */
+  static SortedMap<String, LatencyHistogram> getHistograms() {
+    return new TreeMap<String, LatencyHistogram>(histograms);
+  }
+
+  /**
+   * Returns the count, sum, maximum and percentiles of each stage as a JSON object.
+   */
+  static JSONObject toJson() throws JSONException {
+    JSONObject json = new JSONObject();
+    for (Map.Entry<String, LatencyHistogram> entry : getHistograms().entrySet()) {
+      LatencyHistogram histogram = entry.getValue();
+      JSONObject stage = new JSONObject();
+      stage.put("count", histogram.getCount());
+      stage.put("sum-ms", histogram.getSumMs());
+      stage.put("max-ms", histogram.getMaxMs());
+      for (double percentile : PERCENTILES) {
+        stage.put("p" + (int) percentile + "-ms", histogram.getPercentileMs(percentile));
+      }
+      json.put(entry.getKey(), stage);
+    }
+    return json;
+  }
+
+  /**
+   * Returns the histograms in the Prometheus text exposition format.
+   */
+  static String toPrometheusText() {
+    String name = "buildserver_stage_latency_seconds";
+    StringBuilder text = new StringBuilder();
+    text.append("# HELP ").append(name).append(" Latency of the stages of builds.\n");
+    text.append("# TYPE ").append(name).append(" histogram\n");
+    for (Map.Entry<String, LatencyHistogram> entry : getHistograms().entrySet()) {
+      LatencyHistogram histogram = entry.getValue();
+      String stage = "stage=\"" + entry.getKey() + "\"";
+      long cumulative = 0;
+      for (int i = 0; i <= LatencyHistogram.BUCKET_BOUNDS_MS.length; i++) {
+        cumulative += histogram.getBucketCount(i);
+        String bound = i < LatencyHistogram.BUCKET_BOUNDS_MS.length
+            ? toSeconds(LatencyHistogram.BUCKET_BOUNDS_MS[i])
+            : "+Inf";
+        text.append(name).append("_bucket{").append(stage).append(",le=\"").append(bound)
+            .append("\"} ").append(cumulative).append('\n');
+      }
+      text.append(name).append("_sum{").append(stage).append("} ")
+          .append(toSeconds(histogram.getSumMs())).append('\n');
+      text.append(name).append("_count{").append(stage).append("} ")
+          .append(histogram.getCount()).append('\n');
+    }
+    return text.toString();
+  }
+
+  private static String toSeconds(long ms) {
+    return Double.toString(ms / 1000.0);
+  }
+
+  /**
+   * Times consecutive stages. Each call to {@link #next} ends the current stage, if any, and
+   * starts the next one.
+   */
+  static final class StageTimer {
+    private final String prefix;
+    private String stage;
+    private long stageStartMs;
+
+    /**
+     * Creates a StageTimer whose stage names all start with the given prefix.
+     */
+    StageTimer(String prefix) {
+      this.prefix = prefix;
+    }
+
+    /**
+     * Records the current stage and starts the given one.
+     */
+    void next(String nextStage) {
+      finish();
+      stage = nextStage;
+      stageStartMs = System.currentTimeMillis();
+    }
+
+    /**
+     * Records the current stage. Stages that are never finished (for instance because they
+     * failed) are not recorded.
+     */
+    void finish() {
+      if (stage != null) {
+        recordSince(prefix + stage, stageStartMs);
+        stage = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,180 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The progress of one build: the stage it is in, how far along it is, and when it started and
+ * last changed.
+ *
+ * <p>The progress of the builds of the build server is kept in a registry, keyed by build id, so
+ * that it can be queried while builds run. The build id is chosen by the caller: the App Engine
+ * server sends one with each asynchronous build, and polls for its progress with the same id.
+ * The progress of a finished build is kept for {@link #RETENTION_MILLIS} after it finished.
+ */
+final class BuildProgress {
+  static final long RETENTION_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  // The progress of the registered builds, keyed by build id.
+  private static final ConcurrentMap<String, BuildProgress> registry =
+      new ConcurrentHashMap<String, BuildProgress>();
+
+  private final String buildId;
+  private final long startTimeMs;
+
+  // Guarded by this.
+  private String stage = "queued";
+  private int percent = 0;
+  private long updateTimeMs;
+  private boolean finished = false;
+  private boolean succeeded = false;
+
+  /**
+   * Creates the progress of a build that isn't registered, for builds that nobody queries.
+   */
+  BuildProgress() {
+    this("");
+  }
+
+  private BuildProgress(String buildId) {
+    this.buildId = buildId;
+    this.startTimeMs = System.currentTimeMillis();
+    this.updateTimeMs = startTimeMs;
+  }
+
+  /**
+   * Registers a new build, replacing any earlier build with the same id.
+   *
+   * @param buildId  the id of the build
+   * @return  the progress of the build, in its "queued" stage
+   */
+  static BuildProgress register(String buildId) {
+    removeExpired();
+    BuildProgress progress = new BuildProgress(buildId);
+    registry.put(buildId, progress);
+    return progress;
+  }
+
+  /**
+   * Registers another id for a registered build, so that its progress can be queried with
+   * either id.
+   */
+  static void alias(String buildId, BuildProgress progress) {
+    registry.put(buildId, progress);
+  }
+
+  /**
+   * Returns the progress of the build with the given id, or {@code null} if there is no such
+   * build or it finished too long ago.
+   */
+  static BuildProgress get(String buildId) {
+    BuildProgress progress = registry.get(buildId);
+    return progress == null || progress.isExpired() ? null : progress;
+  }
+
+  private static void removeExpired() {
+    for (Iterator<BuildProgress> iterator = registry.values().iterator(); iterator.hasNext(); ) {
+      if (iterator.next().isExpired()) {
+        iterator.remove();
+      }
+    }
+  }
+
+  String getBuildId() {
+    return buildId;
+  }
+
+  synchronized String getStage() {
+    return stage;
+  }
+
+  synchronized int getPercent() {
+    return percent;
+  }
+
+  synchronized long getUpdateTimeMs() {
+    return updateTimeMs;
+  }
+
+  synchronized boolean isFinished() {
+    return finished;
+  }
+
+  /**
+   * Records that the build entered a new stage.
+   *
+   * @param newStage  the name of the stage
+   * @param newPercent  how much of the build is done, between 0 and 100
+   */
+  synchronized void update(String newStage, int newPercent) {
+    stage = newStage;
+    percent = newPercent;
+    changed();
+  }
+
+  /**
+   * Records that the build finished.
+   */
+  synchronized void finish(boolean buildSucceeded) {
+    stage = buildSucceeded ? "done" : "failed";
+    percent = 100;
+    finished = true;
+    succeeded = buildSucceeded;
+    changed();
+  }
+
+  // Must be called while holding the lock.
+  private void changed() {
+    // Keep the update times distinct, so that they can be used to wait for the next change.
+    updateTimeMs = Math.max(updateTimeMs + 1, System.currentTimeMillis());
+    notifyAll();
+  }
+
+  /**
+   * Waits until the progress changes after the given update time, the build finishes or the
+   * timeout expires.
+   *
+   * @param sinceUpdateTimeMs  an update time returned by {@link #getUpdateTimeMs}
+   * @param timeoutMs  the maximum time to wait, in milliseconds
+   */
+  synchronized void awaitChange(long sinceUpdateTimeMs, long timeoutMs)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    long remaining = timeoutMs;
+    while (updateTimeMs <= sinceUpdateTimeMs && !finished && remaining > 0) {
+      wait(remaining);
+      remaining = deadline - System.currentTimeMillis();
+    }
+  }
+
+  private synchronized boolean isExpired() {
+    return finished && System.currentTimeMillis() - updateTimeMs > RETENTION_MILLIS;
+  }
+
+  /**
+   * Returns the progress as a JSON object.
+   */
+  synchronized JSONObject toJson() throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("build-id", buildId);
+    json.put("stage", stage);
+    json.put("percent", percent);
+    json.put("start-time", startTimeMs);
+    json.put("update-time", updateTimeMs);
+    json.put("finished", finished);
+    if (finished) {
+      json.put("succeeded", succeeded);
+    }
+    return json;
+  }
+}
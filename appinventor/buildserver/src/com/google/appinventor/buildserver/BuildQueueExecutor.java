@@ -0,0 +1,309 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An {@link Executor} used for executing build tasks.
+ *
+ * <p>This executor allows only a certain number of simultaneous tasks. When all of them are
+ * busy, additional tasks wait in a bounded queue; once the queue is full, tasks are rejected.
+ * High priority tasks (companion builds) run before normal ones. Within each priority, waiting
+ * tasks are taken from their users in turn, so one user submitting many builds can't hold up
+ * everybody else.</p>
+ *
+ * <p>An optional {@link Admission} can hold back tasks even though the maximum number of
+ * simultaneous tasks isn't reached, for instance while memory is short. Those tasks wait in the
+ * queue until an active task finishes, in the place of the free slots they couldn't take, so they
+ * wait even with a queue size of 0, and no more tasks are waiting or active than without the
+ * admission. A task is always started when no other task is active.</p>
+ *
+ * <p>With a queue size of 0 and no admission this executor behaves like a plain non-queuing
+ * executor.</p>
+ *
+ * @author lizlooney@google.com (Liz Looney)
+ */
+final class BuildQueueExecutor implements Executor {
+  /**
+   * Decides whether one more task can start.
+   */
+  interface Admission {
+    /**
+     * Returns whether a task can start while the given number of tasks are active.
+     */
+    boolean canStart(int activeTasks);
+  }
+
+  // The maximum number of active tasks. O means unlimited.
+  private final int maxActiveTasks;
+
+  // The maximum number of waiting tasks.
+  private final int maxQueuedTasks;
+
+  // Decides whether tasks can start below maxActiveTasks. null means they always can.
+  private final Admission admission;
+
+  private final AtomicInteger activeTaskCount = new AtomicInteger(0);
+  private final AtomicInteger completedTaskCount = new AtomicInteger(0);
+  private final AtomicInteger heldBackTaskCount = new AtomicInteger(0);
+
+  // Waiting tasks. Guarded by lock.
+  private final UserQueue highPriorityQueue = new UserQueue();
+  private final UserQueue normalPriorityQueue = new UserQueue();
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildQueueExecutor.class.getName());
+
+  // lock is used so that tasks are started, queued and dequeued by one thread at a time.
+  private final Object lock = new Object();
+
+  /**
+   * Creates a BuildQueueExecutor.
+   *
+   * @param maxActiveTasks the maximum number of active tasks; 0 means unlimited
+   * @param maxQueuedTasks the maximum number of tasks waiting for an active task to finish
+   */
+  BuildQueueExecutor(int maxActiveTasks, int maxQueuedTasks) {
+    this(maxActiveTasks, maxQueuedTasks, null);
+  }
+
+  /**
+   * Creates a BuildQueueExecutor whose tasks must also be admitted by the given admission.
+   *
+   * @param maxActiveTasks the maximum number of active tasks; 0 means unlimited
+   * @param maxQueuedTasks the maximum number of tasks waiting for an active task to finish
+   * @param admission decides whether a task can start; null means tasks always can
+   */
+  BuildQueueExecutor(int maxActiveTasks, int maxQueuedTasks, Admission admission) {
+    this.maxActiveTasks = maxActiveTasks;
+    this.maxQueuedTasks = maxQueuedTasks;
+    this.admission = admission;
+  }
+
+  /**
+   * Executes a normal priority task that isn't attributed to any user.
+   */
+  @Override
+  public void execute(Runnable runnable) {
+    submit(runnable, "", false);
+  }
+
+  /**
+   * Starts the given task, or queues it if the maximum number of tasks is already active.
+   *
+   * @param runnable the task
+   * @param user the user the task belongs to
+   * @param highPriority whether the task should run before normal priority tasks
+   * @return the task's position in the queue, where 1 is the next task to start; 0 if the task
+   *     started right away
+   * @throws RejectedExecutionException if the task can be neither started nor queued
+   */
+  int submit(Runnable runnable, String user, boolean highPriority) {
+    synchronized (lock) {
+      // Check whether the executor is below maximum capacity. Tasks that are already waiting
+      // go first.
+      boolean slotFree = hasFreeSlot();
+      if (getQueuedTaskCount() == 0 && slotFree && isAdmitted()) {
+        start(runnable);
+        return 0;
+      }
+      if (getQueuedTaskCount() >= maxQueuedTasks + getFreeSlotCount()) {
+        // If the executor and the queue are at maximum capacity, reject the task.
+        throw new RejectedExecutionException();
+      }
+      if (slotFree) {
+        heldBackTaskCount.incrementAndGet();
+        LOG.info("Holding back task for " + user + " while " + activeTaskCount.get() +
+            " are active");
+      }
+      (highPriority ? highPriorityQueue : normalPriorityQueue).add(user, runnable);
+      int position = highPriority
+          ? highPriorityQueue.positionOf(runnable)
+          : highPriorityQueue.size() + normalPriorityQueue.positionOf(runnable);
+      LOG.info("Queued task for " + user + " at position " + position);
+      return position;
+    }
+  }
+
+  // Must be called while holding lock.
+  private boolean hasFreeSlot() {
+    return getFreeSlotCount() > 0;
+  }
+
+  // Returns the number of tasks that could start before the maximum is reached. Must be called
+  // while holding lock.
+  private int getFreeSlotCount() {
+    if (maxActiveTasks == 0) {
+      return Integer.MAX_VALUE - maxQueuedTasks;
+    }
+    return Math.max(0, maxActiveTasks - activeTaskCount.get());
+  }
+
+  // Must be called while holding lock.
+  private boolean isAdmitted() {
+    int active = activeTaskCount.get();
+    return admission == null || active == 0 || admission.canStart(active);
+  }
+
+  // Must be called while holding lock.
+  private boolean canStartAnother() {
+    return hasFreeSlot() && isAdmitted();
+  }
+
+  // Starts waiting tasks that were held back by the admission, while it lets them. Must be called
+  // while holding lock.
+  private void startAdmittedTasks() {
+    while (getQueuedTaskCount() > 0 && canStartAnother()) {
+      Runnable runnable = highPriorityQueue.poll();
+      if (runnable == null) {
+        runnable = normalPriorityQueue.poll();
+      }
+      start(runnable);
+    }
+  }
+
+  // Must be called while holding lock.
+  private void start(final Runnable first) {
+    // Create a new thread for the task. When the task is done, the thread continues with the next
+    // waiting task, if any.
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        Runnable runnable = first;
+        while (runnable != null) {
+          try {
+            runnable.run();
+          } catch (Throwable t) {
+            // Keep serving the queue. Otherwise the waiting tasks would never run and this
+            // thread's slot would be lost.
+            LOG.log(Level.SEVERE, "Task failed", t);
+          }
+          synchronized (lock) {
+            runnable = highPriorityQueue.poll();
+            if (runnable == null) {
+              runnable = normalPriorityQueue.poll();
+            }
+            if (runnable == null) {
+              activeTaskCount.decrementAndGet();
+            }
+            startAdmittedTasks();
+          }
+          completedTaskCount.incrementAndGet();
+        }
+      }
+    });
+    activeTaskCount.incrementAndGet();
+    thread.start();
+  }
+
+  public int getMaxActiveTasks() {
+    return maxActiveTasks;
+  }
+
+  public int getMaxQueuedTasks() {
+    return maxQueuedTasks;
+  }
+
+  public int getActiveTaskCount() {
+    return activeTaskCount.get();
+  }
+
+  public int getCompletedTaskCount() {
+    return completedTaskCount.get();
+  }
+
+  /**
+   * Returns the number of tasks that had to wait although the maximum number of active tasks
+   * wasn't reached, because the admission held them or the tasks before them back.
+   */
+  public int getHeldBackTaskCount() {
+    return heldBackTaskCount.get();
+  }
+
+  public int getQueuedTaskCount() {
+    synchronized (lock) {
+      return highPriorityQueue.size() + normalPriorityQueue.size();
+    }
+  }
+
+  /*
+   * Waiting tasks of one priority, served one user at a time in round-robin order.
+   * Not thread-safe.
+   */
+  private static final class UserQueue {
+    // The users' tasks, in the order in which the users will be served.
+    private final LinkedHashMap<String, LinkedList<Runnable>> tasksByUser = Maps.newLinkedHashMap();
+    private int size;
+
+    void add(String user, Runnable runnable) {
+      LinkedList<Runnable> tasks = tasksByUser.get(user);
+      if (tasks == null) {
+        tasks = Lists.newLinkedList();
+        tasksByUser.put(user, tasks);
+      }
+      tasks.addLast(runnable);
+      size++;
+    }
+
+    Runnable poll() {
+      Iterator<Map.Entry<String, LinkedList<Runnable>>> users = tasksByUser.entrySet().iterator();
+      if (!users.hasNext()) {
+        return null;
+      }
+      Map.Entry<String, LinkedList<Runnable>> next = users.next();
+      users.remove();
+      Runnable runnable = next.getValue().removeFirst();
+      if (!next.getValue().isEmpty()) {
+        // The user goes to the back of the line.
+        tasksByUser.put(next.getKey(), next.getValue());
+      }
+      size--;
+      return runnable;
+    }
+
+    /*
+     * Returns the position of the given task in the order in which poll() returns tasks,
+     * starting at 1.
+     */
+    int positionOf(Runnable runnable) {
+      List<LinkedList<Runnable>> rounds = Lists.newArrayList();
+      for (LinkedList<Runnable> tasks : tasksByUser.values()) {
+        rounds.add(Lists.newLinkedList(tasks));
+      }
+      int position = 0;
+      while (!rounds.isEmpty()) {
+        Iterator<LinkedList<Runnable>> iterator = rounds.iterator();
+        while (iterator.hasNext()) {
+          LinkedList<Runnable> tasks = iterator.next();
+          position++;
+          if (tasks.removeFirst() == runnable) {
+            return position;
+          }
+          if (tasks.isEmpty()) {
+            iterator.remove();
+          }
+        }
+      }
+      return position;
+    }
+
+    int size() {
+      return size;
+    }
+  }
+}
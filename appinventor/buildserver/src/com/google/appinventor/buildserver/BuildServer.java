@@ -7,7 +7,7 @@ package com.google.appinventor.buildserver;
 
 import com.google.appinventor.common.version.GitBuildId;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.io.ByteStreams;
+import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 
 import com.sun.grizzly.http.SelectorThread;
@@ -20,7 +20,6 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.spi.StringArrayOptionHandler;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -32,15 +31,18 @@ import java.lang.management.MemoryMXBean;
 import java.lang.management.OperatingSystemMXBean;
 import java.lang.management.RuntimeMXBean;
 import java.lang.Math;
-import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.URL;
 import java.text.DateFormat;
 import java.util.Date;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -79,6 +81,11 @@ public class BuildServer {
       usage = "Maximum number of builds that can run in parallel. O means unlimited.")
     int maxSimultaneousBuilds = 0;  // The default is unlimited.
 
+    @Option(name = "--maxQueuedBuilds",
+      usage = "Maximum number of builds that can wait for a running build to finish. 0 means " +
+      "builds are rejected when --maxSimultaneousBuilds builds are running.")
+    int maxQueuedBuilds = 0;
+
     @Option(name = "--port",
       usage = "The port number to bind to on the local machine.")
     int port = 9990;
@@ -95,6 +102,122 @@ public class BuildServer {
             usage = "the directory to cache the pre-dexed libraries")
     String dexCacheDir = null;
 
+    @Option(name = "--resourceCacheDir",
+            usage = "the directory to extract the tools and libraries used by builds to, in a " +
+            "resources-<version>-<hash> subdirectory, where the hash covers the git fingerprint " +
+            "and the build server jar. It is kept across restarts of the same build of the " +
+            "build server. If not specified, they are extracted to a temporary directory.")
+    String resourceCacheDir = null;
+
+    @Option(name = "--apkCacheDir",
+            usage = "the directory to cache built APKs, keyed by the project contents. " +
+            "If not specified, APKs are not cached.")
+    String apkCacheDir = null;
+
+    @Option(name = "--apkCacheMaxMb",
+            usage = "Maximum size of the APK cache, in MB.")
+    int apkCacheMaxMb = 1024;
+
+    @Option(name = "--classCacheDir",
+            usage = "the directory to cache the classes compiled from each screen. " +
+            "If not specified, classes are not cached.")
+    String classCacheDir = null;
+
+    @Option(name = "--classCacheMaxMb",
+            usage = "Maximum size of the class cache, in MB.")
+    int classCacheMaxMb = 512;
+
+    @Option(name = "--ramWorkspaceDir",
+            usage = "Directory on a RAM-backed file system, such as tmpfs, where builds do their " +
+            "work. Builds that don't fit in its budget work in the temporary directory. If not " +
+            "set, all builds work in the temporary directory.")
+    String ramWorkspaceDir = null;
+
+    @Option(name = "--ramWorkspaceMb",
+            usage = "Total size of the build workspaces in the RAM workspace directory, in MB. " +
+            "0 means the size of its file system.")
+    int ramWorkspaceMb = 0;
+
+    @Option(name = "--ramWorkspaceBuildMb",
+            usage = "Space reserved in the RAM workspace directory for each build, in MB, on top " +
+            "of twice the size of its project.")
+    int ramWorkspaceBuildMb = 128;
+
+    @Option(name = "--kawaCompilerPoolSize",
+            usage = "Number of idle resident Kawa compilers kept between builds. 0 means Kawa is " +
+            "launched as a new process for every build.")
+    int kawaCompilerPoolSize = 2;
+
+    @Option(name = "--kawaCompilerMaxBuilds",
+            usage = "Number of builds a resident Kawa compiler serves before it is restarted.")
+    int kawaCompilerMaxBuilds = 50;
+
+    @Option(name = "--residentDexers",
+            usage = "Number of idle dx instances kept loaded in the build server. 0 means dx is " +
+            "launched as a new process for every invocation. dx then runs in the build server's " +
+            "heap, which must be sized accordingly.")
+    int residentDexers = 0;
+
+    @Option(name = "--pruneRuntime",
+            usage = "Remove the component runtime classes a project can't reach before running " +
+            "DX. Companion builds always get the whole runtime.")
+    boolean pruneRuntime = false;
+
+    @Option(name = "--prunedRuntimeCacheMb",
+            usage = "Maximum size of the pruned runtime jars in the dex cache, together with the " +
+            "files dexed from them, in MB.")
+    int prunedRuntimeCacheMb = 512;
+
+    @Option(name = "--keyPairPoolSize",
+            usage = "Number of RSA key pairs generated ahead of time for new keystores. " +
+            "0 means key pairs are generated when they are needed.")
+    int keyPairPoolSize = 10;
+
+    @Option(name = "--maxSimultaneousKawaCompiles",
+            usage = "Maximum number of Kawa compilations that can run in parallel. 0 means one " +
+            "per available processor.")
+    int maxSimultaneousKawaCompiles = 0;
+
+    @Option(name = "--maxSimultaneousDx",
+            usage = "Maximum number of DX runs that can happen in parallel. 0 means one per " +
+            "available processor.")
+    int maxSimultaneousDx = 0;
+
+    @Option(name = "--buildHeapMb",
+            usage = "Heap needed by a build, in MB. A build only starts if the live heap leaves " +
+            "this much room, unless no other build is running. Until then it waits in the queue, " +
+            "in the place of the slot it couldn't take. 0 disables the check.")
+    int buildHeapMb = 256;
+
+    @Option(name = "--maxOffHeapMb",
+            usage = "Maximum non-heap and direct buffer memory of the build server, in MB. " +
+            "Builds don't start while it is exceeded. 0 means unlimited.")
+    int maxOffHeapMb = 0;
+
+    @Option(name = "--childProcessRamBudgetMb",
+            usage = "Total ram that can be used by simultaneous Kawa and DX child processes, in " +
+            "MB. 0 means unlimited. If not specified, it is the physical memory less the " +
+            "build server's heap and the ram of the resident Kawa compilers.")
+    int childProcessRamBudgetMb = -1;
+
+    @Option(name = "--callbackThreads",
+            usage = "Number of build results that can be sent to their callback URLs in parallel.")
+    int callbackThreads = 4;
+
+    @Option(name = "--maxPendingCallbacks",
+            usage = "Maximum number of build results waiting to be sent to their callback URLs. " +
+            "Builds wait for a delivery to finish when it is reached.")
+    int maxPendingCallbacks = 64;
+
+    @Option(name = "--callbackAttempts",
+            usage = "Number of times the delivery of a build result is attempted before it is " +
+            "given up.")
+    int callbackAttempts = 5;
+
+    @Option(name = "--callbackRetryDelayMs",
+            usage = "Delay before the first retry of a failed delivery, in milliseconds. It " +
+            "doubles with every retry.")
+    long callbackRetryDelayMs = 2000;
   }
 
   private static final CommandLineOptions commandLineOptions = new CommandLineOptions();
@@ -109,6 +232,22 @@ public class BuildServer {
   private static final MediaType ZIP_MEDIA_TYPE =
     new MediaType("application", "zip", ImmutableMap.of("charset", "utf-8"));
 
+  // Response header giving the position of a queued build in the build queue.
+  static final String QUEUE_POSITION_HEADER = "X-Build-Queue-Position";
+
+  // The longest a progress request waits for the progress to change.
+  private static final long MAX_PROGRESS_WAIT_MS = 10000;
+
+  // The longest the build server waits for pending callbacks when it is stopped.
+  private static final long CALLBACK_DRAIN_MS = 30000;
+
+  // The number of progress requests that can wait at the same time. A waiting request holds one
+  // of Grizzly's worker threads, of which there are only 5, so most of them must stay free for
+  // build requests and the health and vars pages. Progress requests beyond this limit are
+  // answered right away.
+  private static final int MAX_PROGRESS_WAITERS = 2;
+  private static final Semaphore progressWaiters = new Semaphore(MAX_PROGRESS_WAITERS);
+
   private static final AtomicInteger buildCount = new AtomicInteger(0);
 
   // The number of build requests for this server run
@@ -130,7 +269,16 @@ public class BuildServer {
   // NOTE(lizlooney) - the buildExecutor must be created after the command line options are
   // processed in main(). If it is created here, the number of simultaneous builds will always be
   // the default value, even if the --maxSimultaneousBuilds option is on the command line.
-  private static NonQueuingExecutor buildExecutor;
+  private static BuildQueueExecutor buildExecutor;
+
+  // The asynchronous builds that are queued or running, so that identical requests share a build.
+  private static final InFlightBuilds inFlightBuilds = new InFlightBuilds();
+
+  // Decides whether there is enough memory to start a build. null if the check is disabled.
+  private static MemoryMonitor memoryMonitor;
+
+  // Sends the results of asynchronous builds to their callback URLs.
+  private static CallbackDelivery callbackDelivery;
 
   // The input zip file. It will be deleted in cleanUp.
   private File inputZip;
@@ -147,6 +295,9 @@ public class BuildServer {
   // The zip file where we put all the build results for this request.
   private File outputZip;
 
+  // The progress of the build of this request.
+  private BuildProgress progress = new BuildProgress();
+
   // non-zero means we are shutting down, if currentTimeMillis is > then this, then we are
   // completely shutdown, otherwise we are just providing NOT OK for health checks but
   // otherwise still accepting jobs. This avoids having people get an error if the load
@@ -174,10 +325,15 @@ public class BuildServer {
     }
   }
 
+  /**
+   * Returns the state, load and configuration of the build server.
+   *
+   * @param format -- "json" for a JSON object with one string per variable, which the App Engine
+   *     server uses to choose a build server; anything else for an HTML page
+   */
   @GET
   @Path("vars")
-  @Produces(MediaType.TEXT_HTML)
-  public Response var() throws IOException {
+  public Response var(@QueryParam("format") String format) throws IOException {
     Map<String, String> variables = new LinkedHashMap<String, String>();
 
     // Runtime
@@ -213,10 +369,21 @@ public class BuildServer {
     variables.put("max-memory", runtime.maxMemory() + "");
     variables.put("used-heap", memoryBean.getHeapMemoryUsage().getUsed() + "");
     variables.put("used-non-heap", memoryBean.getNonHeapMemoryUsage().getUsed() + "");
+    variables.put("live-heap", MemoryMonitor.getLiveHeapBytes() + "");
+    variables.put("off-heap", MemoryMonitor.getOffHeapBytes() + "");
+    variables.put("measured-builds", MemoryMonitor.getMeasuredBuildCount() + "");
+    if (MemoryMonitor.getAllocatedBytes() >= 0) {
+      variables.put("allocated-bytes-in-builds", MemoryMonitor.getAllocatedBytes() + "");
+    }
+    if (memoryMonitor != null) {
+      variables.put("builds-deferred-for-memory", buildExecutor.getHeldBackTaskCount() + "");
+    }
 
     // Build requests
     variables.put("count-async-build-requests", asyncBuildRequests.get() + "");
     variables.put("rejected-async-build-requests", rejectedAsyncBuildRequests.get() + "");
+    variables.put("coalesced-async-build-requests",
+        inFlightBuilds.getAttachedRequestCount() + "");
     variables.put("successful-async-build-requests", successfulBuildRequests.get() + "");
     variables.put("failed-async-build-requests", failedBuildRequests.get() + "");
 
@@ -231,7 +398,36 @@ public class BuildServer {
     maximumActiveBuildTasks = Math.max(maximumActiveBuildTasks, buildExecutor.getActiveTaskCount());
     variables.put("maximum-simultaneous-build-tasks-occurred", maximumActiveBuildTasks + "");
     variables.put("active-build-tasks", buildExecutor.getActiveTaskCount() + "");
+    variables.put("maximum-queued-build-tasks-allowed", buildExecutor.getMaxQueuedTasks() + "");
+    variables.put("queued-build-tasks", buildExecutor.getQueuedTaskCount() + "");
+    variables.put("in-flight-builds", inFlightBuilds.getCount() + "");
+    variables.put("ram-workspaces", BuildWorkspace.getRamWorkspaceCount() + "");
+    variables.put("disk-fallback-workspaces", BuildWorkspace.getFallbackCount() + "");
+    variables.put("ram-workspace-reserved-bytes", BuildWorkspace.getReservedBytes() + "");
+
+    // Callback deliveries
+    variables.put("pending-callback-deliveries", callbackDelivery.getPendingCount() + "");
+    variables.put("completed-callback-deliveries", callbackDelivery.getDeliveredCount() + "");
+    variables.put("failed-callback-deliveries", callbackDelivery.getFailedCount() + "");
+    variables.put("retried-callback-deliveries", callbackDelivery.getRetryCount() + "");
+    StageScheduler stageScheduler = StageScheduler.getInstance();
+    for (StageScheduler.Stage stage : StageScheduler.Stage.values()) {
+      String name = stage.name().toLowerCase();
+      variables.put("maximum-simultaneous-" + name + "-stages", stageScheduler.getLimit(stage) + "");
+      variables.put("active-" + name + "-stages", stageScheduler.getActiveCount(stage) + "");
+      variables.put("waiting-" + name + "-stages", stageScheduler.getWaitingCount(stage) + "");
+    }
+    if (stageScheduler.getAvailableRamMb() >= 0) {
+      variables.put("available-child-process-ram-mb", stageScheduler.getAvailableRamMb() + "");
+    }
+    variables.put("idle-kawa-compilers", KawaCompilerPool.getIdleWorkerCount() + "");
+    variables.put("idle-resident-dexers", ResidentDexer.getIdleDexerCount() + "");
+    variables.put("pooled-key-pairs", KeyStoreGenerator.getPooledKeyPairCount() + "");
 
+    if ("json".equals(format)) {
+      return Response.ok(new JSONObject(variables).toString(), MediaType.APPLICATION_JSON_TYPE)
+          .build();
+    }
     StringBuilder html = new StringBuilder();
     html.append("<html><body><tt>");
     for (Map.Entry<String, String> variable : variables.entrySet()) {
@@ -242,6 +438,64 @@ public class BuildServer {
     return Response.ok(html.toString(), MediaType.TEXT_HTML_TYPE).build();
   }
 
+  /**
+   * Returns the latency histograms of the build stages.
+   *
+   * @param format -- "json" for a JSON object with the count, sum, maximum and percentiles of
+   *     each stage; anything else for the Prometheus text format
+   */
+  @GET
+  @Path("metrics")
+  public Response metrics(@QueryParam("format") String format) throws IOException {
+    if ("json".equals(format)) {
+      try {
+        return Response.ok(BuildMetrics.toJson().toString(), MediaType.APPLICATION_JSON_TYPE)
+            .build();
+      } catch (JSONException e) {
+        throw new IOException(e);
+      }
+    }
+    return Response.ok(BuildMetrics.toPrometheusText(), "text/plain; version=0.0.4").build();
+  }
+
+  /**
+   * Returns the progress of an asynchronous build as a JSON object with its stage, percent,
+   * start and update times, and whether it finished.
+   *
+   * @param buildId -- the buildId parameter of the build, or its callback URL if it had none
+   * @param since -- an update time returned earlier. If the wait parameter is given, the
+   *     response is delayed until the progress changes after this time.
+   * @param waitMs -- the maximum time to wait for a change, in milliseconds. The response
+   *     may come sooner, without a change, when other progress requests are waiting.
+   */
+  @GET
+  @Path("progress")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response progress(@QueryParam("buildId") String buildId,
+                           @QueryParam("since") long since,
+                           @QueryParam("wait") long waitMs) throws IOException {
+    BuildProgress buildProgress = buildId == null ? null : BuildProgress.get(buildId);
+    if (buildProgress == null) {
+      return Response.status(Response.Status.NOT_FOUND).type(MediaType.TEXT_PLAIN_TYPE)
+        .entity("No such build").build();
+    }
+    if (waitMs > 0 && progressWaiters.tryAcquire()) {
+      try {
+        buildProgress.awaitChange(since, Math.min(waitMs, MAX_PROGRESS_WAIT_MS));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        progressWaiters.release();
+      }
+    }
+    try {
+      return Response.ok(buildProgress.toJson().toString(), MediaType.APPLICATION_JSON_TYPE)
+        .build();
+    } catch (JSONException e) {
+      throw new IOException(e);
+    }
+  }
+
   /**
    * Indicate that the server is shutting down.
    *
@@ -298,7 +552,7 @@ public class BuildServer {
         .entity("Entry point unavailable unless debugging.").build();
 
     try {
-      build(userName, zipFile);
+      build(userName, zipFile, false);
       String attachedFilename = outputApk.getName();
       FileInputStream outputApkDeleteOnClose = new DeleteFileOnCloseFileInputStream(outputApk);
       // Set the outputApk field to null so that it won't be deleted in cleanUp().
@@ -341,7 +595,7 @@ public class BuildServer {
         .entity("Entry point unavailable unless debugging.").build();
 
     try {
-      buildAndCreateZip(userName, inputZipFile);
+      buildAndCreateZip(userName, inputZipFile, false);
       String attachedFilename = outputZip.getName();
       FileInputStream outputZipDeleteOnClose = new DeleteFileOnCloseFileInputStream(outputZip);
       // Set the outputZip field to null so that it won't be deleted in cleanUp().
@@ -378,8 +632,14 @@ public class BuildServer {
    * @param gitBuildVersion  The value of GitBuildId.getVersion() sent from
    *     YoungAndroidProjectService.build.
    * @param callbackUrlStr An url to send the build results back to.
+   * @param isForCompanion  Whether to build the MIT AI2 Companion. Companion builds are queued
+   *     ahead of other builds.
+   * @param buildId  The id used to ask for the progress of the build. If it is missing, the
+   *     callback URL is used.
    * @param inputZipFile  The zip file representing the App Inventor source code.
-   * @return a status response, typically OK (200) or SERVICE_UNAVAILABLE (503).
+   * @return a status response, typically OK (200) or SERVICE_UNAVAILABLE (503). If the build
+   *     had to wait for other builds, the {@value #QUEUE_POSITION_HEADER} header contains its
+   *     position in the build queue, where 1 means it is the next build to start.
    */
   @POST
   @Path("build-all-from-zip-async")
@@ -388,16 +648,24 @@ public class BuildServer {
     @QueryParam("uname") final String userName,
     @QueryParam("callback") final String callbackUrlStr,
     @QueryParam("gitBuildVersion") final String gitBuildVersion,
+    @QueryParam("isForCompanion") final boolean isForCompanion,
+    @QueryParam("buildId") String buildId,
     final File inputZipFile) throws IOException {
     // Set the inputZip field so we can delete the input zip file later in
     // cleanUp.
     inputZip = inputZipFile;
     inputZip.deleteOnExit(); // In case build server is killed before cleanUp executes.
     String requesting_host = (new URL(callbackUrlStr)).getHost();
+    if (buildId == null || buildId.isEmpty()) {
+      buildId = callbackUrlStr;
+    }
 
     //for the request for update part, the file should be empty
     if (inputZip.length() == 0L) {
       cleanUp();
+      BuildProgress buildProgress = BuildProgress.get(buildId);
+      return Response.ok().type(MediaType.TEXT_PLAIN_TYPE)
+        .entity("" + (buildProgress == null ? 0 : buildProgress.getPercent())).build();
     } else {
       if (getShutdownState() == ShutdownState.DOWN) {
         LOG.info("request received while shutdown completely");
@@ -442,59 +710,92 @@ public class BuildServer {
         }
       }
 
+      final String coalescingKey = computeCoalescingKey(userName, inputZipFile, isForCompanion);
+      final InFlightBuilds.Build inFlightBuild;
+      if (coalescingKey == null) {
+        inFlightBuild = null;
+        progress = BuildProgress.register(buildId);
+      } else {
+        inFlightBuild = inFlightBuilds.startOrAttach(coalescingKey, buildId, callbackUrlStr);
+        if (inFlightBuild == null) {
+          // An identical build is already queued or running. Its result will be sent to our
+          // callback URL too.
+          LOG.info("Attached the request to the identical build in flight for " + userName);
+          cleanUp();
+          BuildProgress buildProgress = BuildProgress.get(buildId);
+          return Response.ok().type(MediaType.TEXT_PLAIN_TYPE)
+            .entity("" + (buildProgress == null ? 0 : buildProgress.getPercent())).build();
+        }
+        progress = inFlightBuild.getProgress();
+      }
+      final long submitTime = System.currentTimeMillis();
       Runnable buildTask = new Runnable() {
           @Override
           public void run() {
             int count = buildCount.incrementAndGet();
+            BuildMetrics.recordSince("queue-wait", submitTime);
+            MemoryMonitor.BuildUsage memoryUsage = MemoryMonitor.startBuild();
+            boolean buildSucceeded = false;
+            boolean handedOff = false;
             try {
               LOG.info("START NEW BUILD " + count);
-              checkMemory();
-              buildAndCreateZip(userName, inputZipFile);
-              // Send zip back to the callbackUrl
-              LOG.info("CallbackURL: " + callbackUrlStr);
-              URL callbackUrl = new URL(callbackUrlStr);
-              HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
-              connection.setDoOutput(true);
-              connection.setRequestMethod("POST");
-              // Make sure we aren't misinterpreted as
-              // form-url-encoded
-              connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
-              connection.setConnectTimeout(60000);
-              connection.setReadTimeout(60000);
-              BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
-              try {
-                BufferedInputStream bufferedInputStream = new BufferedInputStream(
-                  new FileInputStream(outputZip));
-                try {
-                  ByteStreams.copy(bufferedInputStream,bufferedOutputStream);
-                  checkMemory();
-                  bufferedOutputStream.flush();
-                } finally {
-                  bufferedInputStream.close();
-                }
-              } finally {
-                bufferedOutputStream.close();
+              long buildStart = System.currentTimeMillis();
+              buildSucceeded = buildAndCreateZip(userName, inputZipFile, isForCompanion);
+              BuildMetrics.recordSince("build", buildStart);
+              progress.update("callback-upload", 100);
+              // Send zip back to the callbackUrl, and to the callback URLs of the identical
+              // requests attached to this build. The deliveries run on their own pool, so this
+              // build slot is free for the next build while the zip is uploaded.
+              List<String> callbackUrls = Lists.newArrayList(callbackUrlStr);
+              if (inFlightBuild != null) {
+                callbackUrls.addAll(inFlightBuilds.close(inFlightBuild));
               }
-              if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {LOG.severe("Bad Response Code!: "+ connection.getResponseCode());
-                // TODO(user) Maybe do some retries
+              final File resultZip = outputZip;
+              final boolean succeeded = buildSucceeded;
+              // Set the outputZip field to null so that it won't be deleted in cleanUp().
+              outputZip = null;
+              final AtomicInteger remainingDeliveries = new AtomicInteger(callbackUrls.size());
+              final AtomicBoolean allDelivered = new AtomicBoolean(true);
+              CallbackDelivery.Listener listener = new CallbackDelivery.Listener() {
+                  @Override
+                  public void finished(boolean delivered) {
+                    if (!delivered) {
+                      allDelivered.set(false);
+                    }
+                    if (remainingDeliveries.decrementAndGet() == 0) {
+                      resultZip.delete();
+                      progress.finish(succeeded && allDelivered.get());
+                    }
+                  }
+                };
+              for (String url : callbackUrls) {
+                LOG.info("CallbackURL: " + url);
+                callbackDelivery.deliver(url, resultZip, listener);
               }
+              handedOff = true;
             } catch (Exception e) {
               // TODO(user): Maybe send a failure callback
               LOG.severe("Exception: " + e.getMessage()+ " and the length is of inputZip is "+ inputZip.length());
             } finally {
               cleanUp();
-              checkMemory();
-              LOG.info("BUILD " + count + " FINISHED");
+              if (!handedOff) {
+                closeInFlightBuild(inFlightBuild, "Temporary build error, try again.");
+                progress.finish(false);
+              }
+              LOG.info("BUILD " + count + " FINISHED: " + memoryUsage.finish());
             }
           }
         };
+      int queuePosition;
       try {
-        buildExecutor.execute(buildTask);
+        queuePosition = buildExecutor.submit(buildTask, userName, isForCompanion);
       } catch (RejectedExecutionException e) {
         // This request was rejected because all threads in the build
-        // executor are busy.
+        // executor are busy and the queue is full.
         rejectedAsyncBuildRequests.incrementAndGet();
         cleanUp();
+        closeInFlightBuild(inFlightBuild, "The build server is currently at maximum capacity.");
+        progress.finish(false);
         // Here, we use SERVICE_UNAVAILABLE (response code 503), which
         // means (according to rfc2616, section 10) "The server is
         // currently unable to handle the request due to a temporary
@@ -503,14 +804,22 @@ public class BuildServer {
         // alleviated after some delay."
         return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE).entity("The build server is currently at maximum capacity.").build();
       }
+      if (queuePosition > 0) {
+        return Response.ok().type(MediaType.TEXT_PLAIN_TYPE)
+          .header(QUEUE_POSITION_HEADER, queuePosition)
+          .entity("" + progress.getPercent()).build();
+      }
+      return Response.ok().type(MediaType.TEXT_PLAIN_TYPE)
+        .entity("" + progress.getPercent()).build();
     }
-    return Response.ok().type(MediaType.TEXT_PLAIN_TYPE)
-      .entity("" + projectBuilder.getProgress()).build();
   }
 
-  private void buildAndCreateZip(String userName, File inputZipFile)
+  /*
+   * Builds the project and puts the results in outputZip. Returns whether the build succeeded.
+   */
+  private boolean buildAndCreateZip(String userName, File inputZipFile, boolean isForCompanion)
     throws IOException, JSONException {
-    Result buildResult = build(userName, inputZipFile);
+    Result buildResult = build(userName, inputZipFile, isForCompanion);
     boolean buildSucceeded = buildResult.succeeded();
     outputZip = File.createTempFile(inputZipFile.getName(), ".zip");
     outputZip.deleteOnExit();  // In case build server is killed before cleanUp executes.
@@ -535,6 +844,7 @@ public class BuildServer {
     zipPrintStream.flush();
     zipOutputStream.flush();
     zipOutputStream.close();
+    return buildSucceeded;
   }
 
   private String genBuildOutput(Result buildResult) throws JSONException {
@@ -548,15 +858,15 @@ public class BuildServer {
     return buildOutputJsonObj.toString();
   }
 
-  private Result build(String userName, File zipFile) throws IOException {
+  private Result build(String userName, File zipFile, boolean isForCompanion) throws IOException {
     outputDir = Files.createTempDir();
     // We call outputDir.deleteOnExit() here, in case build server is killed before cleanUp
     // executes. However, it is likely that the directory won't be empty and therefore, won't
     // actually be deleted. That's only if the build server is killed (via ctrl+c) while a build
     // is happening, so we should be careful about that.
     outputDir.deleteOnExit();
-    Result buildResult = projectBuilder.build(userName, new ZipFile(zipFile), outputDir, false,
-      commandLineOptions.childProcessRamMb, commandLineOptions.dexCacheDir);
+    Result buildResult = projectBuilder.build(userName, new ZipFile(zipFile), outputDir, isForCompanion,
+      commandLineOptions.childProcessRamMb, commandLineOptions.dexCacheDir, progress);
     String buildOutput = buildResult.getOutput();
     LOG.info("Build output: " + buildOutput);
     String buildError = buildResult.getError();
@@ -569,10 +879,39 @@ public class BuildServer {
     if (outputKeystore != null) {
       outputKeystore.deleteOnExit();  // In case build server is killed before cleanUp executes.
     }
-    checkMemory();
     return buildResult;
   }
 
+  /**
+   * Returns the key under which identical build requests share a build: the user and a hash of
+   * the inputs of the build. Returns null if the input zip can't be read, in which case the
+   * request isn't shared.
+   */
+  private static String computeCoalescingKey(String userName, File inputZipFile,
+      boolean isForCompanion) {
+    try {
+      ZipFile zipFile = new ZipFile(inputZipFile);
+      try {
+        return userName + "/" + ApkCache.hashInputs(zipFile, isForCompanion);
+      } finally {
+        zipFile.close();
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to hash the input zip", e);
+      return null;
+    }
+  }
+
+  /**
+   * Closes an in-flight build that ends without a result. The requests attached to it are sent
+   * a failed result with the given error, since they wait for their callback.
+   */
+  private static void closeInFlightBuild(InFlightBuilds.Build inFlightBuild, String error) {
+    if (inFlightBuild != null) {
+      inFlightBuilds.abandon(inFlightBuild, error, callbackDelivery);
+    }
+  }
+
   private void cleanUp() {
     if (inputZip != null) {
       inputZip.delete();
@@ -591,13 +930,6 @@ public class BuildServer {
     }
   }
 
-  private static void checkMemory() {
-    MemoryMXBean mBean = ManagementFactory.getMemoryMXBean();
-    mBean.gc();
-    LOG.info("Build " + buildCount + " current used memory: "
-      + mBean.getHeapMemoryUsage().getUsed() + " bytes");
-  }
-
   public static void main(String[] args) throws IOException {
     // TODO(markf): Eventually we'll figure out how to appropriately start and stop the server when
     // it's run in a production environment.   For now, just kill the process
@@ -612,7 +944,50 @@ public class BuildServer {
     }
 
     // Now that the command line options have been processed, we can create the buildExecutor.
-    buildExecutor = new NonQueuingExecutor(commandLineOptions.maxSimultaneousBuilds);
+    int childProcessRamBudgetMb = commandLineOptions.childProcessRamBudgetMb;
+    if (childProcessRamBudgetMb < 0) {
+      childProcessRamBudgetMb = StageScheduler.getDefaultRamBudgetMb(
+          commandLineOptions.childProcessRamMb, commandLineOptions.kawaCompilerPoolSize);
+    }
+    StageScheduler.configure(commandLineOptions.maxSimultaneousKawaCompiles,
+        commandLineOptions.maxSimultaneousDx, childProcessRamBudgetMb);
+    if (commandLineOptions.buildHeapMb > 0) {
+      memoryMonitor = new MemoryMonitor(commandLineOptions.buildHeapMb,
+          commandLineOptions.maxOffHeapMb, commandLineOptions.childProcessRamMb);
+    }
+    buildExecutor = new BuildQueueExecutor(commandLineOptions.maxSimultaneousBuilds,
+        commandLineOptions.maxQueuedBuilds, memoryMonitor);
+    callbackDelivery = new CallbackDelivery(commandLineOptions.callbackThreads,
+        commandLineOptions.maxPendingCallbacks, commandLineOptions.callbackAttempts,
+        commandLineOptions.callbackRetryDelayMs);
+    // The build server is stopped by a signal once /shutdown took it out of service. Give the
+    // results that are still being delivered a chance to reach App Engine, which doesn't poll.
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        callbackDelivery.shutdown(CALLBACK_DRAIN_MS);
+      }
+    });
+
+    // Extract the tools and libraries before the first build request arrives.
+    ResourceCache.configure(commandLineOptions.resourceCacheDir,
+        ResourceCache.getVersionKey(GitBuildId.getVersion(), GitBuildId.getFingerprint(),
+            ResourceCache.getCodeSource()));
+    Compiler.extractResources();
+
+    // Start the resident Kawa compilers before the first build request arrives.
+    KawaCompilerPool.configure(commandLineOptions.kawaCompilerPoolSize,
+        commandLineOptions.kawaCompilerMaxBuilds);
+    Compiler.prewarmKawaCompilers(commandLineOptions.childProcessRamMb);
+    ResidentDexer.configure(commandLineOptions.residentDexers);
+    RuntimePruner.configure(commandLineOptions.pruneRuntime,
+        commandLineOptions.prunedRuntimeCacheMb);
+    KeyStoreGenerator.configure(commandLineOptions.keyPairPoolSize);
+    ApkCache.configure(commandLineOptions.apkCacheDir, commandLineOptions.apkCacheMaxMb);
+    ScreenClassCache.configure(commandLineOptions.classCacheDir,
+        commandLineOptions.classCacheMaxMb);
+    BuildWorkspace.configure(commandLineOptions.ramWorkspaceDir,
+        commandLineOptions.ramWorkspaceMb, commandLineOptions.ramWorkspaceBuildMb);
 
     int port = commandLineOptions.port;
     SelectorThread threadSelector = GrizzlyServerFactory.create("http://localhost:" + port + "/");
@@ -624,6 +999,7 @@ public class BuildServer {
       LOG.info("Maximum simultanous builds = unlimited!");
     } else {
       LOG.info("Maximum simultanous builds = " + commandLineOptions.maxSimultaneousBuilds);
+      LOG.info("Maximum queued builds = " + commandLineOptions.maxQueuedBuilds);
     }
     LOG.info("Visit: http://" + hostAddress + ":" + port +
       "/buildserver/health for server health");
@@ -0,0 +1,195 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The working directory of one build, where the project is extracted and the YAIL, class, dex,
+ * resource and APK files are written.
+ *
+ * <p>Workspaces are created beneath the system's temporary directory, unless a RAM workspace
+ * directory (typically on a tmpfs mount) is configured with {@link #configure}. Then each build
+ * reserves an estimate of the space it needs from the RAM budget, and gets a workspace in RAM if
+ * the estimate fits in what is left of the budget and of the file system. Otherwise it falls
+ * back to the temporary directory. The reservation is returned when the workspace is deleted.
+ *
+ * <p>The estimate of a build is a fixed amount plus twice the uncompressed size of the project,
+ * which covers the extracted project and the copies of its assets in the APK.
+ */
+final class BuildWorkspace {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildWorkspace.class.getName());
+
+  private static final int TEMP_DIR_ATTEMPTS = 10000;
+
+  private static volatile File ramDir = null;
+  private static volatile long budgetBytes = 0;
+  private static volatile long buildBytes = 0;
+
+  private static final AtomicLong reservedBytes = new AtomicLong();
+  private static final AtomicInteger ramWorkspaceCount = new AtomicInteger();
+  private static final AtomicInteger fallbackCount = new AtomicInteger();
+
+  private final File root;
+  // The bytes reserved from the RAM budget, or 0 if the workspace is on disk.
+  private final long reservation;
+
+  private BuildWorkspace(File root, long reservation) {
+    this.root = root;
+    this.reservation = reservation;
+  }
+
+  /**
+   * Configures the RAM workspaces.
+   *
+   * @param dir  the directory holding the RAM workspaces; {@code null} puts all workspaces in
+   *     the system's temporary directory
+   * @param budgetMb  the maximum total size of the RAM workspaces, in MB; 0 means the size of
+   *     the file system holding the directory
+   * @param buildMb  the fixed part of the space reserved for each build, in MB
+   */
+  static void configure(String dir, int budgetMb, int buildMb) {
+    if (dir == null) {
+      ramDir = null;
+      return;
+    }
+    File directory = new File(dir);
+    directory.mkdirs();
+    budgetBytes = budgetMb > 0 ? budgetMb * 1024L * 1024L : directory.getTotalSpace();
+    buildBytes = buildMb * 1024L * 1024L;
+    ramDir = directory;
+  }
+
+  /**
+   * Creates the workspace of a build of the given project.
+   *
+   * @throws IllegalStateException if the directory could not be created
+   */
+  static BuildWorkspace create(ZipFile inputZip) {
+    long projectBytes = 0;
+    Enumeration<? extends ZipEntry> inputZipEnumeration = inputZip.entries();
+    while (inputZipEnumeration.hasMoreElements()) {
+      projectBytes += Math.max(0, inputZipEnumeration.nextElement().getSize());
+    }
+    return create(projectBytes);
+  }
+
+  /**
+   * Creates the workspace of a build of a project of the given uncompressed size.
+   *
+   * @throws IllegalStateException if the directory could not be created
+   */
+  static BuildWorkspace create(long projectBytes) {
+    File directory = ramDir;
+    if (directory != null) {
+      long estimate = buildBytes + 2 * projectBytes;
+      if (reserve(estimate)) {
+        File root = directory.getUsableSpace() >= estimate ? createNewTempDir(directory) : null;
+        if (root != null) {
+          ramWorkspaceCount.incrementAndGet();
+          return new BuildWorkspace(root, estimate);
+        }
+        reservedBytes.addAndGet(-estimate);
+      }
+      LOG.info("No room for a RAM workspace of " + estimate + " bytes, using the disk");
+      fallbackCount.incrementAndGet();
+    }
+    File baseDir = new File(System.getProperty("java.io.tmpdir"));
+    File root = createNewTempDir(baseDir);
+    if (root == null) {
+      throw new IllegalStateException("Failed to create directory within "
+          + TEMP_DIR_ATTEMPTS + " attempts in " + baseDir);
+    }
+    return new BuildWorkspace(root, 0);
+  }
+
+  private static boolean reserve(long bytes) {
+    while (true) {
+      long reserved = reservedBytes.get();
+      if (reserved + bytes > budgetBytes) {
+        return false;
+      }
+      if (reservedBytes.compareAndSet(reserved, reserved + bytes)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Creates a new directory beneath the given directory, and returns it. The name of the
+   * directory will contain the current time (in millis), and a random number.
+   *
+   * <p>This method assumes that the volume is writable, has free inodes and free blocks, and
+   * that it will not be called thousands of times per second.
+   *
+   * @return the newly-created directory, or {@code null} if it could not be created
+   */
+  private static File createNewTempDir(File baseDir) {
+    String baseNamePrefix = System.currentTimeMillis() + "_" + Math.random() + "-";
+
+    for (int counter = 0; counter < TEMP_DIR_ATTEMPTS; counter++) {
+      File tempDir = new File(baseDir, baseNamePrefix + counter);
+      if (tempDir.exists()) {
+        continue;
+      }
+      if (tempDir.mkdir()) {
+        return tempDir;
+      }
+    }
+    LOG.warning("Failed to create directory within " + TEMP_DIR_ATTEMPTS + " attempts (tried "
+        + baseNamePrefix + "0 to " + baseNamePrefix + (TEMP_DIR_ATTEMPTS - 1) + ") in " + baseDir);
+    return null;
+  }
+
+  File getRoot() {
+    return root;
+  }
+
+  /**
+   * Deletes the workspace and returns its reservation to the RAM budget.
+   */
+  void delete() throws IOException {
+    try {
+      // On some platforms (OS/X), the java.io.tmpdir contains a symlink. We need to use the
+      // canonical path here so that the whole directory is deleted.
+      FileUtils.deleteDirectory(new File(root.getCanonicalPath()));
+    } finally {
+      reservedBytes.addAndGet(-reservation);
+    }
+  }
+
+  /**
+   * Returns the bytes reserved by the RAM workspaces in use.
+   */
+  static long getReservedBytes() {
+    return reservedBytes.get();
+  }
+
+  /**
+   * Returns the number of workspaces that were created in RAM.
+   */
+  static int getRamWorkspaceCount() {
+    return ramWorkspaceCount.get();
+  }
+
+  /**
+   * Returns the number of workspaces that were put on disk because the RAM budget was used up.
+   */
+  static int getFallbackCount() {
+    return fallbackCount.get();
+  }
+}
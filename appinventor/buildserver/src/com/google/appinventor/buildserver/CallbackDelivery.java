@@ -0,0 +1,221 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers the results of asynchronous builds to their callback URLs, so that build threads
+ * don't wait for the upload.
+ *
+ * <p>Deliveries run on a small pool of their own. A delivery that fails with an I/O error, a
+ * timeout or a server error (5xx, 408 or 429) is retried after a delay that doubles with every
+ * attempt. The result zip is streamed from disk, so it is never held in memory.
+ *
+ * <p>The number of pending deliveries is bounded. When the bound is reached, {@link #deliver}
+ * waits for a delivery to finish, which slows down the builds until the callbacks catch up.
+ */
+final class CallbackDelivery {
+
+  /**
+   * Notified when a delivery is over.
+   */
+  interface Listener {
+    /**
+     * Called once the result was delivered, or when all attempts failed.
+     */
+    void finished(boolean delivered);
+  }
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(CallbackDelivery.class.getName());
+
+  private static final int TIMEOUT_MS = 60000;
+
+  private final ScheduledExecutorService executor;
+  private final Semaphore pendingSlots;
+  private final int maxPending;
+  private final int maxAttempts;
+  private final long initialBackoffMs;
+
+  private final AtomicInteger deliveredCount = new AtomicInteger();
+  private final AtomicInteger failedCount = new AtomicInteger();
+  private final AtomicInteger retryCount = new AtomicInteger();
+
+  /**
+   * Creates a CallbackDelivery.
+   *
+   * @param threads  the number of deliveries that can run at the same time
+   * @param maxPending  the maximum number of deliveries that are running or waiting
+   * @param maxAttempts  the number of times a delivery is attempted before it is given up
+   * @param initialBackoffMs  the delay before the first retry, in milliseconds
+   */
+  CallbackDelivery(int threads, int maxPending, int maxAttempts, long initialBackoffMs) {
+    ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(threads);
+    pool.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    this.executor = pool;
+    this.maxPending = maxPending;
+    this.pendingSlots = new Semaphore(maxPending, true);
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.initialBackoffMs = initialBackoffMs;
+  }
+
+  /**
+   * Delivers a result zip to a callback URL with a POST request.
+   *
+   * @param callbackUrl  the callback URL
+   * @param resultZip  the zip file to send; it must not change until the listener is notified
+   * @param listener  notified once the delivery is over
+   */
+  void deliver(String callbackUrl, File resultZip, Listener listener) {
+    pendingSlots.acquireUninterruptibly();
+    new Delivery(callbackUrl, resultZip, listener).schedule(0);
+  }
+
+  int getPendingCount() {
+    return maxPending - pendingSlots.availablePermits();
+  }
+
+  int getDeliveredCount() {
+    return deliveredCount.get();
+  }
+
+  int getFailedCount() {
+    return failedCount.get();
+  }
+
+  int getRetryCount() {
+    return retryCount.get();
+  }
+
+  /**
+   * Stops the deliveries, after waiting for the pending ones to finish. New deliveries wait until
+   * then, and the deliveries that are still pending afterwards are dropped.
+   *
+   * @param timeoutMs  the longest to wait for the pending deliveries, in milliseconds
+   * @return  the number of deliveries that were dropped
+   */
+  int shutdown(long timeoutMs) {
+    boolean drained = false;
+    try {
+      drained = pendingSlots.tryAcquire(maxPending, timeoutMs, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    int dropped = drained ? 0 : getPendingCount();
+    executor.shutdownNow();
+    if (dropped > 0) {
+      LOG.severe("Dropping " + dropped + " build result deliveries at shutdown");
+    } else {
+      LOG.info("All build result deliveries finished before shutdown");
+    }
+    return dropped;
+  }
+
+  /**
+   * Sends the zip file and returns the HTTP response code.
+   */
+  private static int post(String callbackUrl, File resultZip) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(callbackUrl).openConnection();
+    try {
+      connection.setDoOutput(true);
+      connection.setRequestMethod("POST");
+      // Make sure we aren't misinterpreted as form-url-encoded
+      connection.addRequestProperty("Content-Type", "application/zip; charset=utf-8");
+      connection.setConnectTimeout(TIMEOUT_MS);
+      connection.setReadTimeout(TIMEOUT_MS);
+      // Without this, HttpURLConnection buffers the whole body in memory.
+      connection.setFixedLengthStreamingMode(resultZip.length());
+      OutputStream out = connection.getOutputStream();
+      try {
+        Files.copy(resultZip, out);
+      } finally {
+        out.close();
+      }
+      return connection.getResponseCode();
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private static boolean isRetryable(int responseCode) {
+    return responseCode >= 500
+        || responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+        || responseCode == 429;  // Too Many Requests
+  }
+
+  private final class Delivery implements Runnable {
+    private final String callbackUrl;
+    private final File resultZip;
+    private final Listener listener;
+    private final long startTimeMs = System.currentTimeMillis();
+    private int attempts = 0;
+
+    Delivery(String callbackUrl, File resultZip, Listener listener) {
+      this.callbackUrl = callbackUrl;
+      this.resultZip = resultZip;
+      this.listener = listener;
+    }
+
+    void schedule(long delayMs) {
+      executor.schedule(this, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run() {
+      attempts++;
+      boolean retry;
+      try {
+        long attemptStart = System.currentTimeMillis();
+        int responseCode = post(callbackUrl, resultZip);
+        BuildMetrics.recordSince("callback-attempt", attemptStart);
+        if (responseCode == HttpURLConnection.HTTP_OK) {
+          BuildMetrics.recordSince("callback-delivery", startTimeMs);
+          deliveredCount.incrementAndGet();
+          finish(true);
+          return;
+        }
+        LOG.severe("Bad Response Code!: " + responseCode + " from " + callbackUrl);
+        retry = isRetryable(responseCode);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to deliver the build result to " + callbackUrl, e);
+        retry = true;
+      } catch (RuntimeException e) {
+        LOG.log(Level.SEVERE, "Unable to deliver the build result to " + callbackUrl, e);
+        retry = false;
+      }
+      if (retry && attempts < maxAttempts) {
+        retryCount.incrementAndGet();
+        long delayMs = initialBackoffMs << (attempts - 1);
+        LOG.info("Retrying the delivery to " + callbackUrl + " in " + delayMs + " ms");
+        schedule(delayMs);
+      } else {
+        LOG.severe("Giving up the delivery to " + callbackUrl + " after " + attempts +
+            " attempts");
+        failedCount.incrementAndGet();
+        finish(false);
+      }
+    }
+
+    private void finish(boolean delivered) {
+      pendingSlots.release();
+      listener.finished(delivered);
+    }
+  }
+}
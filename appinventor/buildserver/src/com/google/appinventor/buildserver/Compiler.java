@@ -7,24 +7,20 @@
 package com.google.appinventor.buildserver;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
-import com.google.common.io.Resources;
 
 import com.android.sdklib.build.ApkBuilder;
 
-import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
-import org.codehaus.jettison.json.JSONObject;
 
 import java.awt.image.BufferedImage;
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.OutputStreamWriter;
 import java.io.FileReader;
@@ -38,8 +34,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -54,11 +52,6 @@ import javax.imageio.ImageIO;
  * @author lizlooney@google.com (Liz Looney)
  */
 public final class Compiler {
-  public static int currentProgress = 10;
-
-  // Kawa and DX processes can use a lot of memory. We only launch one Kawa or DX process at a time.
-  private static final Object SYNC_KAWA_OR_DX = new Object();
-
   // TODO(sharon): temporary until we add support for new activities
   private static final String LIST_ACTIVITY_CLASS =
       "com.google.appinventor.components.runtime.ListPickerActivity";
@@ -98,9 +91,6 @@ public final class Compiler {
 
   private static final String DEFAULT_MIN_SDK = "4";
 
-  private static final String COMPONENT_BUILD_INFO =
-      RUNTIME_FILES_DIR + "simple_components_build_info.json";
-
   /*
    * Resource paths to yail runtime, runtime library files and sdk tools.
    * To get the real file paths, call getResource() with one of these constants.
@@ -125,37 +115,13 @@ public final class Compiler {
   @VisibleForTesting
   static final String YAIL_RUNTIME =
       RUNTIME_FILES_DIR + "runtime.scm";
-  private static final String MAC_ZIPALIGN_TOOL =
-      "/tools/mac/zipalign";
-  private static final String WINDOWS_ZIPALIGN_TOOL =
-      "/tools/windows/zipalign";
-  private static final String LINUX_ZIPALIGN_TOOL =
-      "/tools/linux/zipalign";
+  // The module class compiled from YAIL_RUNTIME, relative to the classes directory.
+  private static final String YAIL_RUNTIME_CLASS =
+      "com/google/youngandroid/runtime.class";
 
   // Logging support
   private static final Logger LOG = Logger.getLogger(Compiler.class.getName());
 
-  private final ConcurrentMap<String, Set<String>> componentPermissions =
-      new ConcurrentHashMap<String, Set<String>>();
-
-  private final ConcurrentMap<String, Set<String>> componentLibraries =
-      new ConcurrentHashMap<String, Set<String>>();
-
-  private final ConcurrentMap<String, Set<String>> componentNativeLibraries =
-      new ConcurrentHashMap<String, Set<String>>();
-
-  private final ConcurrentMap<String, Set<String>> componentAssets =
-    new ConcurrentHashMap<String, Set<String>>();
-
-  /**
-   * Map used to hold the names and paths of resources that we've written out
-   * as temp files.
-   * Don't use this map directly. Please call getResource() with one of the
-   * constants above to get the (temp file) path to a resource.
-   */
-  private static final ConcurrentMap<String, File> resources =
-      new ConcurrentHashMap<String, File>();
-
   // TODO(user,lizlooney): i18n here and in lines below that call String.format(...)
   private static final String ERROR_IN_STAGE =
       "Error: Your build failed due to an error in the %s stage, " +
@@ -180,41 +146,28 @@ public final class Compiler {
   private Set<String> assetsNeeded; // Set of component assets
   private File libsDir; // The directory that will contain any native libraries for packaging
   private String dexCacheDir;
+  private final BuildProgress progress;
 
   /*
    * Generate the set of Android permissions needed by this project.
    */
   @VisibleForTesting
   Set<String> generatePermissions() {
-    // Before we can use componentPermissions, we have to call loadJsonInfo() for permissions.
-    try {
-      loadJsonInfo(componentPermissions, PERMISSIONS_TARGET);
-      if (project != null) {    // Only do this if we have a project (testing doesn't provide one :-( ).
-        LOG.log(Level.INFO, "usesLocation = " + project.getUsesLocation());
-        if (project.getUsesLocation().equals("True")) { // Add location permissions if any WebViewer requests it
-          Set<String> locationPermissions = Sets.newHashSet(); // via a Property.
-          // See ProjectEditor.recordLocationSettings()
-          locationPermissions.add("android.permission.ACCESS_FINE_LOCATION");
-          locationPermissions.add("android.permission.ACCESS_COARSE_LOCATION");
-          locationPermissions.add("android.permission.ACCESS_MOCK_LOCATION");
-          componentPermissions.put("WebViewer", locationPermissions);
-        }
-      }
-    } catch (IOException e) {
-      // This is fatal.
-      e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "Permissions"));
-      return null;
-    } catch (JSONException e) {
-      // This is fatal, but shouldn't actually ever happen.
-      e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "Permissions"));
+    ComponentBuildInfo buildInfo = loadBuildInfo("Permissions");
+    if (buildInfo == null) {
       return null;
     }
 
-    Set<String> permissions = Sets.newHashSet();
-    for (String componentType : componentTypes) {
-      permissions.addAll(componentPermissions.get(componentType));
+    Set<String> permissions = Sets.newHashSet(buildInfo.get(PERMISSIONS_TARGET, componentTypes));
+    if (project != null) {    // Only do this if we have a project (testing doesn't provide one :-( ).
+      LOG.log(Level.INFO, "usesLocation = " + project.getUsesLocation());
+      // Add location permissions if any WebViewer requests it via a Property.
+      // See ProjectEditor.recordLocationSettings()
+      if (project.getUsesLocation().equals("True") && componentTypes.contains("WebViewer")) {
+        permissions.add("android.permission.ACCESS_FINE_LOCATION");
+        permissions.add("android.permission.ACCESS_COARSE_LOCATION");
+        permissions.add("android.permission.ACCESS_MOCK_LOCATION");
+      }
     }
     if (isForCompanion) {      // This is so ACRA can do a logcat on phones older then Jelly Bean
       permissions.add("android.permission.READ_LOGS");
@@ -228,23 +181,10 @@ public final class Compiler {
    */
   @VisibleForTesting
   void generateLibraryNames() {
-    // Before we can use componentLibraries, we have to call loadComponentLibraries().
-    try {
-      loadJsonInfo(componentLibraries, LIBRARIES_TARGET);
-    } catch (IOException e) {
-      // This is fatal.
-      e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "Libraries"));
-    } catch (JSONException e) {
-      // This is fatal, but shouldn't actually ever happen.
-      e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "Libraries"));
-    }
-
-    librariesNeeded = Sets.newHashSet();
-    for (String componentType : componentTypes) {
-      librariesNeeded.addAll(componentLibraries.get(componentType));
-    }
+    ComponentBuildInfo buildInfo = loadBuildInfo("Libraries");
+    librariesNeeded = buildInfo == null
+        ? Sets.<String>newHashSet()
+        : Sets.newHashSet(buildInfo.get(LIBRARIES_TARGET, componentTypes));
     System.out.println("Libraries needed, n= " + librariesNeeded.size());
   }
 
@@ -253,23 +193,10 @@ public final class Compiler {
    */
   @VisibleForTesting
   void generateNativeLibraryNames() {
-    // Before we can use componentLibraries, we have to call loadComponentLibraries().
-    try {
-      loadJsonInfo(componentNativeLibraries, NATIVE_TARGET);
-    } catch (IOException e) {
-      // This is fatal.
-      e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "Native Libraries"));
-    } catch (JSONException e) {
-      // This is fatal, but shouldn't actually ever happen.
-      e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "Native Libraries"));
-    }
-
-    nativeLibrariesNeeded = Sets.newHashSet();
-    for (String componentType : componentTypes) {
-      nativeLibrariesNeeded.addAll(componentNativeLibraries.get(componentType));
-    }
+    ComponentBuildInfo buildInfo = loadBuildInfo("Native Libraries");
+    nativeLibrariesNeeded = buildInfo == null
+        ? Sets.<String>newHashSet()
+        : Sets.newHashSet(buildInfo.get(NATIVE_TARGET, componentTypes));
     System.out.println("Native Libraries needed, n= " + nativeLibrariesNeeded.size());
   }
 
@@ -278,24 +205,29 @@ public final class Compiler {
    */
   @VisibleForTesting
   void generateAssets() {
-    // Before we can use componentAssets, we have to call loadJsonInfo() for assets.
+    ComponentBuildInfo buildInfo = loadBuildInfo("Assets");
+    assetsNeeded = buildInfo == null
+        ? Sets.<String>newHashSet()
+        : Sets.newHashSet(buildInfo.get(ASSETS_TARGET, componentTypes));
+    System.out.println("Component assets needed, n= " + assetsNeeded.size());
+  }
+
+  /*
+   * Returns the component build info, or null after reporting an error in the given stage.
+   */
+  private ComponentBuildInfo loadBuildInfo(String stage) {
     try {
-      loadJsonInfo(componentAssets, ASSETS_TARGET);
+      return ComponentBuildInfo.getInstance();
     } catch (IOException e) {
       // This is fatal.
       e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "Assets"));
+      userErrors.print(String.format(ERROR_IN_STAGE, stage));
     } catch (JSONException e) {
       // This is fatal, but shouldn't actually ever happen.
       e.printStackTrace();
-      userErrors.print(String.format(ERROR_IN_STAGE, "Assets"));
+      userErrors.print(String.format(ERROR_IN_STAGE, stage));
     }
-
-    assetsNeeded = Sets.newHashSet();
-    for (String componentType : componentTypes) {
-      assetsNeeded.addAll(componentAssets.get(componentType));
-    }
-    System.out.println("Component assets needed, n= " + assetsNeeded.size());
+    return null;
   }
 
 
@@ -500,6 +432,8 @@ public final class Compiler {
    * @param userErrors stream to write user-visible error messages
    * @param keystoreFilePath
    * @param childProcessRam   maximum RAM for child processes, in MBs.
+   * @param dexCacheDir  the directory to cache the pre-dexed libraries
+   * @param progress  the progress of the build, updated as the compilation goes
    * @return  {@code true} if the compilation succeeds, {@code false} otherwise
    * @throws JSONException
    * @throws IOException
@@ -507,12 +441,16 @@ public final class Compiler {
   public static boolean compile(Project project, Set<String> componentTypes,
                                 PrintStream out, PrintStream err, PrintStream userErrors,
                                 boolean isForCompanion, String keystoreFilePath,
-                                int childProcessRam, String dexCacheDir) throws IOException, JSONException {
+                                int childProcessRam, String dexCacheDir, BuildProgress progress)
+      throws IOException, JSONException {
     long start = System.currentTimeMillis();
 
+    // Time each stage of the compilation.
+    BuildMetrics.StageTimer stages = new BuildMetrics.StageTimer("compile-");
+
     // Create a new compiler instance for the compilation
     Compiler compiler = new Compiler(project, componentTypes, out, err, userErrors, isForCompanion,
-                                     childProcessRam, dexCacheDir);
+                                     childProcessRam, dexCacheDir, progress);
 
     // Get names of component-required libraries and assets.
     compiler.generateLibraryNames();
@@ -524,15 +462,18 @@ public final class Compiler {
 
     // Prepare application icon.
     out.println("________Preparing application icon");
+    stages.next("icon");
+    progress.update("icon", 5);
     File resDir = createDirectory(buildDir, "res");
     File drawableDir = createDirectory(resDir, "drawable");
     if (!compiler.prepareApplicationIcon(new File(drawableDir, "ya.png"))) {
       return false;
     }
-    setProgress(10);
 
     // Create anim directory and animation xml files
     out.println("________Creating animation xml");
+    stages.next("animation-xml");
+    progress.update("animation-xml", 10);
     File animDir = createDirectory(resDir, "anim");
     if (!compiler.createAnimationXml(animDir)) {
       return false;
@@ -540,42 +481,51 @@ public final class Compiler {
 
     // Determine android permissions.
     out.println("________Determining permissions");
+    stages.next("permissions");
+    progress.update("permissions", 10);
     Set<String> permissionsNeeded = compiler.generatePermissions();
     if (permissionsNeeded == null) {
       return false;
     }
-    setProgress(15);
 
     // Generate AndroidManifest.xml
     out.println("________Generating manifest file");
+    stages.next("manifest");
+    progress.update("manifest", 15);
     File manifestFile = new File(buildDir, "AndroidManifest.xml");
     if (!compiler.writeAndroidManifest(manifestFile, permissionsNeeded)) {
       return false;
     }
-    setProgress(20);
 
     // Insert native libraries
     out.println("________Attaching native libraries");
+    stages.next("native-libraries");
+    progress.update("native-libraries", 20);
     if (!compiler.insertNativeLibraries(buildDir)) {
       return false;
     }
 
     // Add raw assets to sub-directory of project assets.
     out.println("________Attaching component assets");
+    stages.next("component-assets");
+    progress.update("component-assets", 20);
     if (!compiler.attachComponentAssets()) {
       return false;
     }
 
     // Create class files.
     out.println("________Compiling source files");
+    stages.next("kawa");
+    progress.update("kawa", 20);
     File classesDir = createDirectory(buildDir, "classes");
     if (!compiler.generateClasses(classesDir)) {
       return false;
     }
-    setProgress(35);
 
     // Invoke dx on class files
     out.println("________Invoking DX");
+    stages.next("dx");
+    progress.update("dx", 35);
     // TODO(markf): Running DX is now pretty slow (~25 sec overhead the first time and ~15 sec
     // overhead for subsequent runs).  I think it's because of the need to dx the entire
     // kawa runtime every time.  We should probably only do that once and then copy all the
@@ -593,43 +543,44 @@ public final class Compiler {
     // Android SDK's Dex Ant task
     File tmpDir = createDirectory(buildDir, "tmp");
     String dexedClasses = tmpDir.getAbsolutePath() + File.separator + "classes.dex";
-    if (!compiler.runDx(classesDir, dexedClasses)) {
+    if (!compiler.runDx(classesDir, manifestFile, dexedClasses)) {
       return false;
     }
-    setProgress(85);
 
     // Invoke aapt to package everything up
     out.println("________Invoking AAPT");
+    stages.next("aapt");
+    progress.update("aapt", 85);
     File deployDir = createDirectory(buildDir, "deploy");
     String tmpPackageName = deployDir.getAbsolutePath() + File.separatorChar +
         project.getProjectName() + ".ap_";
     if (!compiler.runAaptPackage(manifestFile, resDir, tmpPackageName)) {
       return false;
     }
-    setProgress(90);
 
     // Seal the apk with ApkBuilder
     out.println("________Invoking ApkBuilder");
-    String apkAbsolutePath = deployDir.getAbsolutePath() + File.separatorChar +
-        project.getProjectName() + ".apk";
-    if (!compiler.runApkBuilder(apkAbsolutePath, tmpPackageName, dexedClasses)) {
-      return false;
-    }
-    setProgress(95);
-
-    // Sign the apk file
-    out.println("________Signing the apk file");
-    if (!compiler.runJarSigner(apkAbsolutePath, keystoreFilePath)) {
+    stages.next("apk-builder");
+    progress.update("apk-builder", 90);
+    String unsignedApkAbsolutePath = tmpDir.getAbsolutePath() + File.separatorChar +
+        project.getProjectName() + "-unsigned.apk";
+    if (!compiler.runApkBuilder(unsignedApkAbsolutePath, tmpPackageName, dexedClasses)) {
       return false;
     }
 
-    // ZipAlign the apk file
-    out.println("________ZipAligning the apk file");
-    if (!compiler.runZipAlign(apkAbsolutePath, tmpDir)) {
+    // Sign and zipalign the apk file
+    out.println("________Signing and aligning the apk file");
+    stages.next("sign-and-align");
+    progress.update("sign-and-align", 95);
+    String apkAbsolutePath = deployDir.getAbsolutePath() + File.separatorChar +
+        project.getProjectName() + ".apk";
+    if (!compiler.runApkSigner(unsignedApkAbsolutePath, apkAbsolutePath, keystoreFilePath)) {
       return false;
     }
 
-    setProgress(100);
+    stages.finish();
+    BuildMetrics.recordSince("compile", start);
+    progress.update("compiled", 100);
 
     out.println("Build finished in " +
         ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
@@ -719,6 +670,26 @@ public final class Compiler {
   Compiler(Project project, Set<String> componentTypes, PrintStream out, PrintStream err,
            PrintStream userErrors, boolean isForCompanion,
            int childProcessMaxRam, String dexCacheDir) {
+    this(project, componentTypes, out, err, userErrors, isForCompanion, childProcessMaxRam,
+        dexCacheDir, new BuildProgress());
+  }
+
+  /**
+   * Creates a new YAIL compiler that reports its progress.
+   *
+   * @param project  project to build
+   * @param componentTypes component types used in the project
+   * @param out  stdout stream for compiler messages
+   * @param err  stderr stream for compiler messages
+   * @param userErrors stream to write user-visible error messages
+   * @param isForCompanion  whether the compiler is building the companion
+   * @param childProcessMaxRam  maximum RAM for child processes, in MBs.
+   * @param dexCacheDir  the directory to cache the pre-dexed libraries
+   * @param progress  the progress of the build
+   */
+  private Compiler(Project project, Set<String> componentTypes, PrintStream out, PrintStream err,
+           PrintStream userErrors, boolean isForCompanion,
+           int childProcessMaxRam, String dexCacheDir, BuildProgress progress) {
     this.project = project;
     this.componentTypes = componentTypes;
     this.out = out;
@@ -727,6 +698,7 @@ public final class Compiler {
     this.isForCompanion = isForCompanion;
     this.childProcessRamMb = childProcessMaxRam;
     this.dexCacheDir = dexCacheDir;
+    this.progress = progress;
   }
 
   /*
@@ -777,66 +749,80 @@ public final class Compiler {
         return false;
       }
 
-      // Construct the class path including component libraries (jars)
-      String classpath =
-        getResource(KAWA_RUNTIME) + File.pathSeparator +
-        getResource(ACRA_RUNTIME) + File.pathSeparator +
-        getResource(SIMPLE_ANDROID_RUNTIME_JAR) + File.pathSeparator;
-
-      // Add component library names to classpath
-      System.out.println("Libraries Classpath, n " + librariesNeeded.size());
-      for (String library : librariesNeeded) {
-        classpath += getResource(RUNTIME_FILES_DIR + library) + File.pathSeparator;
-      }
-
-      classpath +=
-        getResource(ANDROID_RUNTIME);
-
+      String classpath = getKawaClasspath(librariesNeeded);
       System.out.println("Libraries Classpath = " + classpath);
 
       String yailRuntime = getResource(YAIL_RUNTIME);
-      List<String> kawaCommandArgs = Lists.newArrayList();
-      int mx = childProcessRamMb - 200;
-      Collections.addAll(kawaCommandArgs,
-          System.getProperty("java.home") + "/bin/java",
-          "-mx" + mx + "M",
-          "-cp", classpath,
-          "kawa.repl",
-          "-f", yailRuntime,
-          "-d", classesDir.getAbsolutePath(),
-          "-P", Signatures.getPackageName(project.getMainClass()) + ".",
-          "-C");
-      // TODO(lizlooney) - we are currently using (and have always used) absolute paths for the
-      // source file names. The resulting .class files contain references to the source file names,
-      // including the name of the tmp directory that contains them. We may be able to avoid that
-      // by using source file names that are relative to the project root and using the project
-      // root as the working directory for the Kawa compiler process.
-      kawaCommandArgs.addAll(sourceFileNames);
-      kawaCommandArgs.add(yailRuntime);
-      String[] kawaCommandLine = kawaCommandArgs.toArray(new String[kawaCommandArgs.size()]);
+      String packagePrefix = Signatures.getPackageName(project.getMainClass()) + ".";
+
+      // Reuse the classes of the source files that were compiled before, including the YAIL
+      // runtime, and only compile the others.
+      List<String> filesToCompile = Lists.newArrayList(sourceFileNames);
+      filesToCompile.add(yailRuntime);
+      List<String> classFilesToCompile = Lists.newArrayList(classFileNames);
+      classFilesToCompile.add(classesDir.getAbsolutePath() + "/" + YAIL_RUNTIME_CLASS);
+      List<String> cacheKeys = Lists.newArrayList();
+      if (ScreenClassCache.isEnabled()) {
+        for (int i = filesToCompile.size() - 1; i >= 0; i--) {
+          String key = ScreenClassCache.computeKey(new File(filesToCompile.get(i)),
+              packagePrefix, librariesNeeded);
+          if (ScreenClassCache.restore(key, new File(classFilesToCompile.get(i)))) {
+            out.println("Reusing the compiled classes of " + filesToCompile.get(i));
+            filesToCompile.remove(i);
+            classFilesToCompile.remove(i);
+          } else {
+            cacheKeys.add(0, key);
+          }
+        }
+        if (filesToCompile.isEmpty()) {
+          return true;
+        }
+      }
+
+      // The source files are split among as many Kawa runs as the stage scheduler lets proceed at
+      // once, so that the files of a large project are compiled on several cores at the same
+      // time without starting more compilers than can run. The files are dealt out in turn from
+      // the last one, so the YAIL runtime, which is the largest, shares its run with the fewest
+      // screens.
+      int runCount = Math.min(filesToCompile.size(),
+          StageScheduler.getInstance().getLimit(StageScheduler.Stage.KAWA));
+      List<List<String>> kawaRuns = Lists.newArrayList();
+      for (int i = 0; i < runCount; i++) {
+        List<String> kawaArgs = Lists.newArrayList();
+        Collections.addAll(kawaArgs,
+            "-d", classesDir.getAbsolutePath(),
+            "-P", packagePrefix,
+            "-C");
+        kawaRuns.add(kawaArgs);
+      }
+      for (int i = 0; i < filesToCompile.size(); i++) {
+        // TODO(lizlooney) - we are currently using (and have always used) absolute paths for the
+        // source file names. The resulting .class files contain references to the source file
+        // names, including the name of the tmp directory that contains them. We may be able to
+        // avoid that by using source file names that are relative to the project root and using
+        // the project root as the working directory for the Kawa compiler process.
+        kawaRuns.get(i % runCount).add(filesToCompile.get(filesToCompile.size() - 1 - i));
+      }
 
       long start = System.currentTimeMillis();
       // Capture Kawa compiler stderr. The ODE server parses out the warnings and errors and adds
       // them to the protocol buffer for logging purposes. (See
       // buildserver/ProjectBuilder.processCompilerOutout.
-      ByteArrayOutputStream kawaOutputStream = new ByteArrayOutputStream();
-      boolean kawaSuccess;
-      synchronized (SYNC_KAWA_OR_DX) {
-        kawaSuccess = Execution.execute(null, kawaCommandLine,
-            System.out, new PrintStream(kawaOutputStream));
-      }
-      if (!kawaSuccess) {
-        LOG.log(Level.SEVERE, "Kawa compile has failed.");
+      List<ByteArrayOutputStream> kawaOutputStreams =
+          runKawaInParallel(classpath, yailRuntime, kawaRuns);
+      // Print the output of each run in the order of the source files, no matter in which order
+      // the runs finished.
+      for (ByteArrayOutputStream kawaOutputStream : kawaOutputStreams) {
+        out.print(kawaOutputStream.toString());
       }
-      String kawaOutput = kawaOutputStream.toString();
-      out.print(kawaOutput);
       String kawaCompileTimeMessage = "Kawa compile time: " +
           ((System.currentTimeMillis() - start) / 1000.0) + " seconds";
       out.println(kawaCompileTimeMessage);
       LOG.info(kawaCompileTimeMessage);
 
       // Check that all of the class files were created.
-      // If they weren't, return with an error.
+      // If they weren't, report every screen that failed and return with an error.
+      boolean allClassFilesExist = true;
       for (String classFileName : classFileNames) {
         File classFile = new File(classFileName);
         if (!classFile.exists()) {
@@ -844,9 +830,16 @@ public final class Compiler {
           String screenName = classFileName.substring(classFileName.lastIndexOf('/') + 1,
               classFileName.lastIndexOf('.'));
           userErrors.print(String.format(COMPILATION_ERROR, screenName));
-          return false;
+          allClassFilesExist = false;
         }
       }
+      if (!allClassFilesExist) {
+        return false;
+      }
+
+      for (int i = 0; i < cacheKeys.size(); i++) {
+        ScreenClassCache.store(cacheKeys.get(i), new File(classFilesToCompile.get(i)));
+      }
     } catch (IOException e) {
       e.printStackTrace();
       userErrors.print(String.format(ERROR_IN_STAGE, "compile"));
@@ -856,94 +849,146 @@ public final class Compiler {
     return true;
   }
 
-  private boolean runJarSigner(String apkAbsolutePath, String keystoreAbsolutePath) {
-    // TODO(user): maybe make a command line flag for the jarsigner location
-    String javaHome = System.getProperty("java.home");
-    // This works on Mac OS X.
-    File jarsignerFile = new File(javaHome + File.separator + "bin" +
-        File.separator + "jarsigner");
-    if (!jarsignerFile.exists()) {
-      // This works when a JDK is installed with the JRE.
-      jarsignerFile = new File(javaHome + File.separator + ".." + File.separator + "bin" +
-          File.separator + "jarsigner");
-      if (System.getProperty("os.name").startsWith("Windows")) {
-        jarsignerFile = new File(javaHome + File.separator + ".." + File.separator + "bin" +
-            File.separator + "jarsigner.exe");
+  /*
+   * Runs Kawa once for each of the given argument lists, on up to as many threads as the stage
+   * scheduler lets Kawa runs proceed at once. Returns the error output of each run, in the order
+   * of the argument lists.
+   */
+  private List<ByteArrayOutputStream> runKawaInParallel(final String classpath,
+      final String yailRuntime, List<List<String>> kawaRuns) throws IOException {
+    List<ByteArrayOutputStream> kawaOutputStreams = Lists.newArrayList();
+    for (int i = 0; i < kawaRuns.size(); i++) {
+      kawaOutputStreams.add(new ByteArrayOutputStream());
+    }
+    if (kawaRuns.size() == 1) {
+      runKawa(classpath, yailRuntime, kawaRuns.get(0),
+          new PrintStream(kawaOutputStreams.get(0)));
+      return kawaOutputStreams;
+    }
+
+    int threads = Math.min(kawaRuns.size(),
+        StageScheduler.getInstance().getLimit(StageScheduler.Stage.KAWA));
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> results = Lists.newArrayList();
+      for (int i = 0; i < kawaRuns.size(); i++) {
+        final List<String> kawaArgs = kawaRuns.get(i);
+        final PrintStream kawaOutput = new PrintStream(kawaOutputStreams.get(i));
+        results.add(executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            runKawa(classpath, yailRuntime, kawaArgs, kawaOutput);
+          }
+        }));
       }
-      if (!jarsignerFile.exists()) {
-        LOG.warning("YAIL compiler - could not find jarsigner.");
-        err.println("YAIL compiler - could not find jarsigner.");
-        userErrors.print(String.format(ERROR_IN_STAGE, "JarSigner"));
-        return false;
+      for (Future<?> result : results) {
+        try {
+          result.get();
+        } catch (ExecutionException e) {
+          throw Throwables.propagate(e.getCause());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while running Kawa", e);
+        }
       }
+    } finally {
+      executor.shutdown();
     }
+    return kawaOutputStreams;
+  }
 
-    String[] jarsignerCommandLine = {
-        jarsignerFile.getAbsolutePath(),
-        "-digestalg", "SHA1",
-        "-sigalg", "MD5withRSA",
-        "-keystore", keystoreAbsolutePath,
-        "-storepass", "android",
-        apkAbsolutePath,
-        "AndroidKey"
-    };
-    if (!Execution.execute(null, jarsignerCommandLine, System.out, System.err)) {
-      LOG.warning("YAIL compiler - jarsigner execution failed.");
-      err.println("YAIL compiler - jarsigner execution failed.");
-      userErrors.print(String.format(ERROR_IN_STAGE, "JarSigner"));
-      return false;
+  /*
+   * Runs Kawa with the given arguments after loading the YAIL runtime, in a pooled compiler if
+   * the pool is enabled. A pooled compiler has loaded the YAIL runtime already.
+   */
+  private boolean runKawa(String classpath, String yailRuntime, List<String> kawaArgs,
+      PrintStream kawaOutput) {
+    int mx = childProcessRamMb - 200;
+    boolean kawaSuccess;
+    // Kawa processes can use a lot of memory. The stage scheduler limits how many run at once.
+    StageScheduler.Permit permit =
+        StageScheduler.getInstance().acquire(StageScheduler.Stage.KAWA, childProcessRamMb);
+    try {
+      if (KawaCompilerPool.isEnabled()) {
+        kawaSuccess = KawaCompilerPool.compile(mx, classpath, yailRuntime, kawaArgs, kawaOutput);
+      } else {
+        List<String> kawaCommandArgs = Lists.newArrayList();
+        Collections.addAll(kawaCommandArgs,
+            System.getProperty("java.home") + "/bin/java",
+            "-mx" + mx + "M",
+            "-cp", classpath,
+            "kawa.repl",
+            "-f", yailRuntime);
+        kawaCommandArgs.addAll(kawaArgs);
+        String[] kawaCommandLine = kawaCommandArgs.toArray(new String[kawaCommandArgs.size()]);
+        kawaSuccess = Execution.execute(null, kawaCommandLine, System.out, kawaOutput);
+      }
+    } finally {
+      permit.release();
     }
-
-    return true;
+    if (!kawaSuccess) {
+      LOG.log(Level.SEVERE, "Kawa compile has failed.");
+    }
+    kawaOutput.flush();
+    return kawaSuccess;
   }
 
-  private boolean runZipAlign(String apkAbsolutePath, File tmpDir) {
-    // TODO(user): add zipalign tool appinventor->lib->android->tools->linux and windows
-    // Need to make sure assets directory exists otherwise zipalign will fail.
-    createDirectory(project.getAssetsDirectory());
-    String zipAlignTool;
-    String osName = System.getProperty("os.name");
-    if (osName.equals("Mac OS X")) {
-      zipAlignTool = MAC_ZIPALIGN_TOOL;
-    } else if (osName.equals("Linux")) {
-      zipAlignTool = LINUX_ZIPALIGN_TOOL;
-    } else if (osName.startsWith("Windows")) {
-      zipAlignTool = WINDOWS_ZIPALIGN_TOOL;
-    } else {
-      LOG.warning("YAIL compiler - cannot run ZIPALIGN on OS " + osName);
-      err.println("YAIL compiler - cannot run ZIPALIGN on OS " + osName);
-      userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
-      return false;
+  /*
+   * Returns the class path used to run Kawa: the Kawa, ACRA and App Inventor runtimes, the given
+   * component libraries and the Android runtime.
+   */
+  private static String getKawaClasspath(Set<String> libraries) {
+    String classpath =
+      getResource(KAWA_RUNTIME) + File.pathSeparator +
+      getResource(ACRA_RUNTIME) + File.pathSeparator +
+      getResource(SIMPLE_ANDROID_RUNTIME_JAR) + File.pathSeparator;
+
+    // Add component library names to classpath. They are sorted so that the same set of
+    // libraries always yields the same class path, which lets builds share a Kawa compiler.
+    System.out.println("Libraries Classpath, n " + libraries.size());
+    for (String library : Sets.newTreeSet(libraries)) {
+      classpath += getResource(RUNTIME_FILES_DIR + library) + File.pathSeparator;
     }
-    // TODO: create tmp file for zipaling result
-    String zipAlignedPath = tmpDir.getAbsolutePath() + File.separator + "zipaligned.apk";
-    // zipalign -f -v 4 infile.zip outfile.zip
-    String[] zipAlignCommandLine = {
-        getResource(zipAlignTool),
-        "-f",
-        "4",
-        apkAbsolutePath,
-        zipAlignedPath
-    };
-    long startZipAlign = System.currentTimeMillis();
-    // Using System.err and System.out on purpose. Don't want to pollute build messages with
-    // tools output
-    if (!Execution.execute(null, zipAlignCommandLine, System.out, System.err)) {
-      LOG.warning("YAIL compiler - ZIPALIGN execution failed.");
-      err.println("YAIL compiler - ZIPALIGN execution failed.");
-      userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
-      return false;
+
+    classpath +=
+      getResource(ANDROID_RUNTIME);
+    return classpath;
+  }
+
+  /**
+   * Starts a resident Kawa compiler for projects that don't need any component libraries, if
+   * the Kawa compiler pool is enabled.
+   *
+   * @param childProcessRam   maximum RAM for child processes, in MBs.
+   */
+  public static void prewarmKawaCompilers(int childProcessRam) {
+    if (KawaCompilerPool.isEnabled()) {
+      KawaCompilerPool.prewarm(childProcessRam - 200,
+          getKawaClasspath(Collections.<String>emptySet()), getResource(YAIL_RUNTIME));
     }
-    if (!copyFile(zipAlignedPath, apkAbsolutePath)) {
-      LOG.warning("YAIL compiler - ZIPALIGN file copy failed.");
-      err.println("YAIL compiler - ZIPALIGN file copy failed.");
-      userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
+  }
+
+  /*
+   * Signs and zipaligns the apk in this JVM, instead of running jarsigner and zipalign.
+   */
+  private boolean runApkSigner(String unsignedApkAbsolutePath, String apkAbsolutePath,
+      String keystoreAbsolutePath) {
+    long startSign = System.currentTimeMillis();
+    try {
+      ApkSigner signer = ApkSigner.fromKeystore(new File(keystoreAbsolutePath),
+          KeyStoreGenerator.PASSWORD, KeyStoreGenerator.KEY_ALIAS);
+      signer.sign(new File(unsignedApkAbsolutePath), new File(apkAbsolutePath));
+    } catch (Exception e) {
+      e.printStackTrace();
+      LOG.warning("YAIL compiler - signing the apk failed.");
+      err.println("YAIL compiler - signing the apk failed.");
+      userErrors.print(String.format(ERROR_IN_STAGE, "JarSigner"));
       return false;
     }
-    String zipALignTimeMessage = "ZIPALIGN time: " +
-        ((System.currentTimeMillis() - startZipAlign) / 1000.0) + " seconds";
-    out.println(zipALignTimeMessage);
-    LOG.info(zipALignTimeMessage);
+    String signTimeMessage = "Signing and aligning time: " +
+        ((System.currentTimeMillis() - startSign) / 1000.0) + " seconds";
+    out.println(signTimeMessage);
+    LOG.info(signTimeMessage);
     return true;
   }
 
@@ -981,10 +1026,10 @@ public final class Compiler {
     return true;
   }
 
-  private boolean runDx(File classesDir, String dexedClasses) {
+  private boolean runDx(File classesDir, File manifestFile, String dexedClasses) {
     List<File> inputList = new ArrayList<File>();
     inputList.add(classesDir); //this is a directory, and won't be cached into the dex cache
-    inputList.add(new File(getResource(SIMPLE_ANDROID_RUNTIME_JAR)));
+    inputList.add(getRuntimeJarForDx(classesDir, manifestFile, dexedClasses));
     inputList.add(new File(getResource(KAWA_RUNTIME)));
     inputList.add(new File(getResource(ACRA_RUNTIME)));
 
@@ -1009,10 +1054,15 @@ public final class Compiler {
     // Using System.err and System.out on purpose. Don't want to pollute build messages with
     // tools output
     boolean dxSuccess;
-    synchronized (SYNC_KAWA_OR_DX) {
-      setProgress(50);
+    // DX processes can use a lot of memory. The stage scheduler limits how many run at once.
+    StageScheduler.Permit permit =
+        StageScheduler.getInstance().acquire(StageScheduler.Stage.DX, childProcessRamMb);
+    try {
+      progress.update("dx", 50);
       dxSuccess = dexTask.execute(inputList);
-      setProgress(75);
+      progress.update("dx", 75);
+    } finally {
+      permit.release();
     }
     if (!dxSuccess) {
       LOG.warning("YAIL compiler - DX execution failed.");
@@ -1028,18 +1078,50 @@ public final class Compiler {
     return true;
   }
 
-  private boolean runAaptPackage(File manifestFile, File resDir, String tmpPackageName) {
-    // Need to make sure assets directory exists otherwise aapt will fail.
-    createDirectory(project.getAssetsDirectory());
-    String aaptTool;
+  /*
+   * Returns the component runtime jar to dex: the whole runtime, or the part of it the project
+   * can reach if pruning is enabled. The companion needs the whole runtime.
+   */
+  private File getRuntimeJarForDx(File classesDir, File manifestFile, String dexedClasses) {
+    File runtimeJar = new File(getResource(SIMPLE_ANDROID_RUNTIME_JAR));
+    if (!RuntimePruner.isEnabled() || isForCompanion) {
+      return runtimeJar;
+    }
+    long startPrune = System.currentTimeMillis();
+    try {
+      // Put the pruned jar in the dex cache, so that builds with the same components share it.
+      File outputDir = dexCacheDir == null
+          ? new File(dexedClasses).getParentFile() : createDirectory(new File(dexCacheDir));
+      return RuntimePruner.prune(runtimeJar, componentTypes, classesDir, manifestFile, outputDir);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to prune the runtime, dexing all of it", e);
+      return runtimeJar;
+    } finally {
+      BuildMetrics.recordSince("runtime-pruning", startPrune);
+    }
+  }
+
+  /*
+   * Returns the resource path of aapt for this OS, or null if there is none.
+   */
+  private static String getAaptTool() {
     String osName = System.getProperty("os.name");
     if (osName.equals("Mac OS X")) {
-      aaptTool = MAC_AAPT_TOOL;
+      return MAC_AAPT_TOOL;
     } else if (osName.equals("Linux")) {
-      aaptTool = LINUX_AAPT_TOOL;
+      return LINUX_AAPT_TOOL;
     } else if (osName.startsWith("Windows")) {
-      aaptTool = WINDOWS_AAPT_TOOL;
-    } else {
+      return WINDOWS_AAPT_TOOL;
+    }
+    return null;
+  }
+
+  private boolean runAaptPackage(File manifestFile, File resDir, String tmpPackageName) {
+    // Need to make sure assets directory exists otherwise aapt will fail.
+    createDirectory(project.getAssetsDirectory());
+    String aaptTool = getAaptTool();
+    if (aaptTool == null) {
+      String osName = System.getProperty("os.name");
       LOG.warning("YAIL compiler - cannot run AAPT on OS " + osName);
       err.println("YAIL compiler - cannot run AAPT on OS " + osName);
       userErrors.print(String.format(ERROR_IN_STAGE, "AAPT"));
@@ -1124,98 +1206,43 @@ public final class Compiler {
   }
 
   /**
-   * Writes out the given resource as a temp file and returns the absolute path.
-   * Caches the location of the files, so we can reuse them.
+   * Returns the absolute path of the file holding the given resource, extracting it to the
+   * {@link ResourceCache} if necessary.
    *
    * @param resourcePath the name of the resource
    */
-  static synchronized String getResource(String resourcePath) {
+  static String getResource(String resourcePath) {
     try {
-      File file = resources.get(resourcePath);
-      if (file == null) {
-        String basename = PathUtil.basename(resourcePath);
-        String prefix;
-        String suffix;
-        int lastDot = basename.lastIndexOf(".");
-        if (lastDot != -1) {
-          prefix = basename.substring(0, lastDot);
-          suffix = basename.substring(lastDot);
-        } else {
-          prefix = basename;
-          suffix = "";
-        }
-        while (prefix.length() < 3) {
-          prefix = prefix + "_";
-        }
-        file = File.createTempFile(prefix, suffix);
-        file.setExecutable(true);
-        file.deleteOnExit();
-        file.getParentFile().mkdirs();
-        Files.copy(Resources.newInputStreamSupplier(Compiler.class.getResource(resourcePath)),
-            file);
-        resources.put(resourcePath, file);
-      }
-      return file.getAbsolutePath();
+      return ResourceCache.get(resourcePath).getAbsolutePath();
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
-  /*
-   *  Loads permissions and information on component libraries and assets.
-   */
-  private void loadJsonInfo(ConcurrentMap<String, Set<String>> infoMap, String targetInfo)
-      throws IOException, JSONException {
-    synchronized (infoMap) {
-      if (infoMap.isEmpty()) {
-        String buildInfoJson = Resources.toString(
-            Compiler.class.getResource(COMPONENT_BUILD_INFO), Charsets.UTF_8);
-
-        JSONArray componentsArray = new JSONArray(buildInfoJson);
-        int componentsLength = componentsArray.length();
-        for (int componentsIndex = 0; componentsIndex < componentsLength; componentsIndex++) {
-          JSONObject componentObject = componentsArray.getJSONObject(componentsIndex);
-          String name = componentObject.getString("name");
-
-          Set<String> infoGroupForThisComponent = Sets.newHashSet();
-
-          JSONArray infoArray = componentObject.getJSONArray(targetInfo);
-          int infoLength = infoArray.length();
-          for (int infoIndex = 0; infoIndex < infoLength; infoIndex++) {
-            String info = infoArray.getString(infoIndex);
-            infoGroupForThisComponent.add(info);
-          }
-
-          infoMap.put(name, infoGroupForThisComponent);
-        }
-      }
-    }
-  }
-
   /**
-   * Copy one file to another. If destination file does not exist, it is created.
-   *
-   * @param srcPath absolute path to source file
-   * @param dstPath absolute path to destination file
-   * @return  {@code true} if the copy succeeds, {@code false} otherwise
+   * Extracts the tools, the runtime libraries and the component libraries and assets to the
+   * {@link ResourceCache}, so that builds don't have to.
    */
-  private static Boolean copyFile(String srcPath, String dstPath) {
+  public static void extractResources() {
+    long start = System.currentTimeMillis();
+    List<String> resourcePaths = Lists.newArrayList(SIMPLE_ANDROID_RUNTIME_JAR, ANDROID_RUNTIME,
+        KAWA_RUNTIME, ACRA_RUNTIME, DX_JAR, YAIL_RUNTIME);
+    if (getAaptTool() != null) {
+      resourcePaths.add(getAaptTool());
+    }
     try {
-      FileInputStream in = new FileInputStream(srcPath);
-      FileOutputStream out = new FileOutputStream(dstPath);
-      byte[] buf = new byte[1024];
-      int len;
-      while ((len = in.read(buf)) > 0) {
-        out.write(buf, 0, len);
+      ComponentBuildInfo buildInfo = ComponentBuildInfo.getInstance();
+      for (String target : new String[] { LIBRARIES_TARGET, ASSETS_TARGET }) {
+        for (String file : buildInfo.getAll(target)) {
+          resourcePaths.add(RUNTIME_FILES_DIR + file);
+        }
       }
-      in.close();
-      out.close();
-    }
-    catch (IOException e) {
-      e.printStackTrace();
-      return false;
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "Unable to list the component libraries", e);
     }
-    return true;
+    int count = ResourceCache.extractAll(Sets.newLinkedHashSet(resourcePaths));
+    LOG.info("Extracted " + count + " resources in " +
+        (System.currentTimeMillis() - start) + " ms");
   }
 
   /**
@@ -1245,20 +1272,4 @@ public final class Compiler {
     }
     return dir;
   }
-
-  private static int setProgress(int increments) {
-    Compiler.currentProgress = increments;
-    LOG.info("The current progress is "
-              + Compiler.currentProgress + "%");
-    return Compiler.currentProgress;
-  }
-
-  public static int getProgress() {
-    if (Compiler.currentProgress==100) {
-      Compiler.currentProgress = 10;
-      return 100;
-    } else {
-      return Compiler.currentProgress;
-    }
-  }
 }
@@ -0,0 +1,133 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Resources;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable index of the component build info: the permissions, libraries, native libraries
+ * and assets each component type needs.
+ *
+ * <p>The index of the build info on the class path is built once per process by
+ * {@link #getInstance} and then shared by all builds without locking.
+ */
+final class ComponentBuildInfo {
+
+  private static final String COMPONENT_BUILD_INFO =
+      Compiler.RUNTIME_FILES_DIR + "simple_components_build_info.json";
+
+  private static volatile ComponentBuildInfo instance = null;
+
+  // The info of each target, such as "permissions", keyed by component type.
+  private final ImmutableMap<String, ImmutableMap<String, ImmutableSet<String>>> targets;
+
+  private ComponentBuildInfo(
+      ImmutableMap<String, ImmutableMap<String, ImmutableSet<String>>> targets) {
+    this.targets = targets;
+  }
+
+  /**
+   * Returns the index of the build info on the class path, loading it the first time.
+   */
+  static ComponentBuildInfo getInstance() throws IOException, JSONException {
+    ComponentBuildInfo buildInfo = instance;
+    if (buildInfo == null) {
+      synchronized (ComponentBuildInfo.class) {
+        if (instance == null) {
+          instance = parse(Resources.toString(
+              ComponentBuildInfo.class.getResource(COMPONENT_BUILD_INFO), Charsets.UTF_8));
+        }
+        buildInfo = instance;
+      }
+    }
+    return buildInfo;
+  }
+
+  /**
+   * Builds an index of the given build info.
+   *
+   * @param buildInfoJson  a JSON array with one object per component type, holding its name and
+   *     an array of strings for each target
+   */
+  static ComponentBuildInfo parse(String buildInfoJson) throws JSONException {
+    Map<String, ImmutableMap.Builder<String, ImmutableSet<String>>> builders =
+        new TreeMap<String, ImmutableMap.Builder<String, ImmutableSet<String>>>();
+    JSONArray componentsArray = new JSONArray(buildInfoJson);
+    for (int i = 0; i < componentsArray.length(); i++) {
+      JSONObject componentObject = componentsArray.getJSONObject(i);
+      String name = componentObject.getString("name");
+      Iterator<?> keys = componentObject.keys();
+      while (keys.hasNext()) {
+        String target = (String) keys.next();
+        JSONArray infoArray = componentObject.optJSONArray(target);
+        if (infoArray == null) {
+          continue;
+        }
+        ImmutableSet.Builder<String> info = ImmutableSet.builder();
+        for (int j = 0; j < infoArray.length(); j++) {
+          info.add(infoArray.getString(j));
+        }
+        ImmutableMap.Builder<String, ImmutableSet<String>> builder = builders.get(target);
+        if (builder == null) {
+          builder = ImmutableMap.builder();
+          builders.put(target, builder);
+        }
+        builder.put(name, info.build());
+      }
+    }
+    ImmutableMap.Builder<String, ImmutableMap<String, ImmutableSet<String>>> targets =
+        ImmutableMap.builder();
+    for (Map.Entry<String, ImmutableMap.Builder<String, ImmutableSet<String>>> entry :
+        builders.entrySet()) {
+      targets.put(entry.getKey(), entry.getValue().build());
+    }
+    return new ComponentBuildInfo(targets.build());
+  }
+
+  /**
+   * Returns the info of a target for a component type.
+   *
+   * @param target  the target, such as {@code "permissions"}
+   * @param componentType  the component type
+   * @return  the info, which is empty if the component type has none
+   */
+  ImmutableSet<String> get(String target, String componentType) {
+    ImmutableMap<String, ImmutableSet<String>> info = targets.get(target);
+    ImmutableSet<String> componentInfo = info == null ? null : info.get(componentType);
+    return componentInfo == null ? ImmutableSet.<String>of() : componentInfo;
+  }
+
+  /**
+   * Returns the info of a target for all the given component types.
+   */
+  ImmutableSet<String> get(String target, Iterable<String> componentTypes) {
+    ImmutableSet.Builder<String> info = ImmutableSet.builder();
+    for (String componentType : componentTypes) {
+      info.addAll(get(target, componentType));
+    }
+    return info.build();
+  }
+
+  /**
+   * Returns the info of a target for all component types.
+   */
+  ImmutableSet<String> getAll(String target) {
+    ImmutableMap<String, ImmutableSet<String>> info = targets.get(target);
+    return info == null ? ImmutableSet.<String>of() : get(target, info.keySet());
+  }
+}
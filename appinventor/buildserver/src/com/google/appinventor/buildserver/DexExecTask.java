@@ -27,6 +27,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 
+import com.google.common.base.Charsets;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
@@ -129,6 +130,8 @@ public class DexExecTask  {
                         System.out.println(
                             String.format("Using Pre-Dexed %1$s <- %2$s",
                               fileName, input.getAbsolutePath()));
+                        // Mark the file as recently used.
+                        dexedLib.setLastModified(System.currentTimeMillis());
                     }
 
                     // replace the input with the pre-dex libs.
@@ -139,6 +142,71 @@ public class DexExecTask  {
         }
     }
 
+    /**
+     * Replaces the pre-dexed libraries in the inputs with a single file that merges all of them,
+     * creating it if it doesn't exist yet. Builds that need the same set of libraries share the
+     * merged file, so the final dx run only has to dex the project's own classes and do one merge.
+     */
+    private boolean mergePreDexedLibraries(List<File> inputs) {
+        if (mDisableDexMerger) {
+            return true;
+        }
+
+        List<File> dexedLibs = new ArrayList<File>();
+        for (File input : inputs) {
+            if (input.isFile()) {
+                dexedLibs.add(input);
+            }
+        }
+        if (dexedLibs.size() < 2) {
+            return true;
+        }
+
+        // The names of the pre-dexed libraries contain the hashes of their contents.
+        List<String> dexedLibNames = new ArrayList<String>();
+        for (File dexedLib : dexedLibs) {
+            dexedLibNames.add(dexedLib.getName());
+        }
+        Collections.sort(dexedLibNames);
+        StringBuilder joinedNames = new StringBuilder();
+        String prefix = "dex-merged-";
+        for (String dexedLibName : dexedLibNames) {
+            joinedNames.append(dexedLibName).append('\n');
+            if (dexedLibName.contains(RuntimePruner.PRUNED_PREFIX)) {
+                // Merged with a pruned runtime, so the runtime pruner may evict it.
+                prefix = "dex-merged-" + RuntimePruner.PRUNED_PREFIX;
+            }
+        }
+        String hashed = Hashing.md5().hashString(joinedNames, Charsets.UTF_8).toString();
+        File mergedLibs = new File(mDexedLibs, prefix + hashed + ".jar");
+
+        synchronized(semaphore) {
+            if (mergedLibs.isFile() == false) {
+                System.out.println(
+                    String.format("Merging %1$d pre-dexed libraries -> %2$s",
+                      dexedLibs.size(), mergedLibs.getName()));
+
+                // Merge into a temporary file first, so a failed merge leaves nothing behind.
+                File tmpMergedLibs = new File(mDexedLibs, prefix + hashed + "-tmp.jar");
+                tmpMergedLibs.delete();
+                if (!runDx(dexedLibs, tmpMergedLibs.getAbsolutePath(), false /*showInputs*/) ||
+                    !tmpMergedLibs.renameTo(mergedLibs)) {
+                    tmpMergedLibs.delete();
+                    return false;
+                }
+            } else {
+                System.out.println(
+                    String.format("Using merged pre-dexed libraries %1$s", mergedLibs.getName()));
+                // Mark the file as recently used.
+                mergedLibs.setLastModified(System.currentTimeMillis());
+            }
+        }
+
+        inputs.removeAll(dexedLibs);
+        inputs.add(mergedLibs);
+        return true;
+    }
+
     private String getDexFileName(File inputFile) {
         // get the filename
         String name = inputFile.getName();
@@ -150,6 +218,10 @@ public class DexExecTask  {
 
         String hashed = getHashFor(inputFile);
 
+        if (name.startsWith(RuntimePruner.PRUNED_PREFIX)) {
+            // Dexed from a pruned runtime, so the runtime pruner may evict it.
+            return "dex-cached-" + RuntimePruner.PRUNED_PREFIX + hashed + ".jar";
+        }
         return "dex-cached-" + hashed + ".jar";
     }
 
@@ -173,6 +245,8 @@ public class DexExecTask  {
         // pre dex libraries if needed
         boolean successPredex = preDexLibraries(paths);
         if (!successPredex) return false;
+        boolean successMerge = mergePreDexedLibraries(paths);
+        if (!successMerge) return false;
 
         System.out.println(String.format(
                 "Converting compiled files and external libraries into %1$s...", mOutput));
@@ -185,35 +259,42 @@ public class DexExecTask  {
     }
 
     private boolean runDx(Collection<File> inputs, String output, boolean showInputs) {
-        int mx = mChildProcessRamMb - 200;
-
-        List<String> commandLineList = new ArrayList<String>();
-        commandLineList.add(System.getProperty("java.home") + "/bin/java");
-        commandLineList.add("-mx" + mx + "M");
-        commandLineList.add("-jar");
-        commandLineList.add(mExecutable);
-
-        commandLineList.add("--dex");
-        commandLineList.add("--positions=lines");
+        List<String> dxArgs = new ArrayList<String>();
+        dxArgs.add("--positions=lines");
 
         if (mNoLocals) {
-            commandLineList.add("--no-locals");
+            dxArgs.add("--no-locals");
         }
 
         if (mVerbose) {
-            commandLineList.add("--verbose");
+            dxArgs.add("--verbose");
         }
 
-        commandLineList.add("--output=" + output);
+        dxArgs.add("--output=" + output);
 
         for (File input : inputs) {
             String absPath = input.getAbsolutePath();
             if (showInputs) {
                 System.out.println("Input: " + absPath);
             }
-            commandLineList.add(absPath);
+            dxArgs.add(absPath);
+        }
+
+        if (ResidentDexer.isEnabled()) {
+            return ResidentDexer.dex(mExecutable, dxArgs, System.out, System.err);
         }
 
+        int mx = mChildProcessRamMb - 200;
+
+        List<String> commandLineList = new ArrayList<String>();
+        commandLineList.add(System.getProperty("java.home") + "/bin/java");
+        commandLineList.add("-mx" + mx + "M");
+        commandLineList.add("-jar");
+        commandLineList.add(mExecutable);
+
+        commandLineList.add("--dex");
+        commandLineList.addAll(dxArgs);
+
         // Convert command line to an array
         String[] dxCommandLine = new String[commandLineList.size()];
         commandLineList.toArray(dxCommandLine);
@@ -0,0 +1,175 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * The asynchronous builds that are queued or running, keyed by their user and inputs, so that
+ * identical requests can share one build.
+ *
+ * <p>The first request for a key starts a build. A request with the same key that arrives while
+ * that build is in flight doesn't start a build of its own: its callback URL is attached to the
+ * build, its build id shares the progress of the build, and it gets the same result. Once the
+ * build hands its result over for delivery it is closed, and the next request for the key starts
+ * a new build. If the build ends without a result, a failed result is sent to the attached
+ * requests instead, since they only wait for their callback.
+ */
+final class InFlightBuilds {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(InFlightBuilds.class.getName());
+
+  /**
+   * A build in flight.
+   */
+  static final class Build {
+    private final String key;
+    private final BuildProgress progress;
+
+    // Guarded by InFlightBuilds.this.
+    private final ImmutableList.Builder<String> attachedCallbackUrls = ImmutableList.builder();
+
+    private Build(String key, BuildProgress progress) {
+      this.key = key;
+      this.progress = progress;
+    }
+
+    BuildProgress getProgress() {
+      return progress;
+    }
+  }
+
+  // Guarded by this.
+  private final Map<String, Build> builds = Maps.newHashMap();
+  private int attachedRequestCount = 0;
+
+  /**
+   * Starts a build for a request, or attaches the request to the identical build in flight.
+   *
+   * @param key  the user and the hash of the inputs of the request
+   * @param buildId  the id used to ask for the progress of the request
+   * @param callbackUrl  the URL the result of the request is sent to
+   * @return  the new build, which the caller must run, or {@code null} if the request was
+   *     attached to a build in flight
+   */
+  synchronized Build startOrAttach(String key, String buildId, String callbackUrl) {
+    Build build = builds.get(key);
+    if (build == null) {
+      build = new Build(key, BuildProgress.register(buildId));
+      builds.put(key, build);
+      return build;
+    }
+    build.attachedCallbackUrls.add(callbackUrl);
+    attachedRequestCount++;
+    if (!buildId.equals(build.progress.getBuildId())) {
+      BuildProgress.alias(buildId, build.progress);
+    }
+    return null;
+  }
+
+  /**
+   * Closes a build, so that no more requests are attached to it. Closing a build more than once
+   * has no effect.
+   *
+   * @return  the callback URLs of the requests attached to the build
+   */
+  synchronized List<String> close(Build build) {
+    if (builds.get(build.key) == build) {
+      builds.remove(build.key);
+    }
+    return build.attachedCallbackUrls.build();
+  }
+
+  /**
+   * Closes a build that ends without a result, because it was rejected or failed, and sends a
+   * failed result to the callback URLs of the requests attached to it.
+   *
+   * @param error  the error reported to the attached requests
+   * @param callbackDelivery  delivers the failed result
+   */
+  void abandon(Build build, String error, CallbackDelivery callbackDelivery) {
+    List<String> callbackUrls = close(build);
+    if (callbackUrls.isEmpty()) {
+      return;
+    }
+    final File resultZip;
+    try {
+      resultZip = writeFailedResult(error);
+    } catch (IOException e) {
+      LOG.log(Level.SEVERE, "No result for " + callbackUrls.size() + " attached build requests",
+          e);
+      return;
+    }
+    final AtomicInteger remainingDeliveries = new AtomicInteger(callbackUrls.size());
+    CallbackDelivery.Listener listener = new CallbackDelivery.Listener() {
+      @Override
+      public void finished(boolean delivered) {
+        if (remainingDeliveries.decrementAndGet() == 0) {
+          resultZip.delete();
+        }
+      }
+    };
+    for (String callbackUrl : callbackUrls) {
+      LOG.info("Sending a failed result to attached request " + callbackUrl);
+      callbackDelivery.deliver(callbackUrl, resultZip, listener);
+    }
+  }
+
+  /**
+   * Writes a result zip that holds only the build.out of a failed build.
+   */
+  private static File writeFailedResult(String error) throws IOException {
+    File resultZip = File.createTempFile("failed-build", ".zip");
+    resultZip.deleteOnExit();  // In case build server is killed before the deliveries finish.
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(resultZip));
+    try {
+      JSONObject buildOutput = new JSONObject();
+      buildOutput.put("result", Result.GENERAL_FAILURE);
+      buildOutput.put("error", error);
+      buildOutput.put("output", "");
+      out.putNextEntry(new ZipEntry("build.out"));
+      out.write(buildOutput.toString().getBytes("UTF-8"));
+      out.closeEntry();
+    } catch (JSONException e) {
+      resultZip.delete();
+      throw new IOException(e);
+    } finally {
+      out.close();
+    }
+    return resultZip;
+  }
+
+  /**
+   * Returns the number of builds in flight.
+   */
+  synchronized int getCount() {
+    return builds.size();
+  }
+
+  /**
+   * Returns the number of requests that were attached to a build in flight instead of being
+   * built.
+   */
+  synchronized int getAttachedRequestCount() {
+    return attachedRequestCount;
+  }
+}
@@ -0,0 +1,289 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of resident Kawa compiler processes.
+ *
+ * <p>Launching a new JVM for every build means that each build pays for JVM startup, loading the
+ * Kawa classes and initializing the Scheme environment before it compiles a single line of YAIL.
+ * The pool keeps {@link KawaCompilerWorker} processes alive between builds so that subsequent
+ * builds run on a loaded and JIT-compiled Kawa.
+ *
+ * <p>Workers are keyed by their JVM command line (maximum heap, class path and YAIL runtime),
+ * because the class path depends on the component libraries a project needs. Each worker loads
+ * the YAIL runtime once, when it starts, and compiles each request in a fresh Scheme environment
+ * that inherits from it. A worker serves one build at a
+ * time and is retired after {@link #maxBuildsPerWorker} builds, so state that Kawa accumulates
+ * between compilations can't grow without bound. A worker whose process died (for example
+ * because Kawa exited on a compilation error) is never returned to the pool.
+ *
+ * <p>The pool is disabled until {@link #configure} is called with a positive size, in which case
+ * callers should fall back to running Kawa as a one-shot process.
+ */
+final class KawaCompilerPool {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(KawaCompilerPool.class.getName());
+
+  private static final Joiner ARG_JOINER = Joiner.on(KawaCompilerWorker.ARG_SEPARATOR);
+
+  // The maximum number of idle workers kept alive. 0 means the pool is disabled.
+  private static volatile int maxIdleWorkers = 0;
+
+  // The number of builds a worker serves before it is retired.
+  private static volatile int maxBuildsPerWorker = 50;
+
+  // Idle workers, keyed by their JVM command line. Guarded by itself.
+  private static final Map<String, LinkedList<Worker>> idleWorkers = Maps.newHashMap();
+  private static int idleWorkerCount = 0;
+
+  private KawaCompilerPool() {
+  }
+
+  /**
+   * Configures the pool.
+   *
+   * @param maxIdle  the maximum number of idle workers to keep alive; 0 disables the pool
+   * @param maxBuilds  the number of builds a worker serves before it is replaced
+   */
+  static void configure(int maxIdle, int maxBuilds) {
+    maxIdleWorkers = maxIdle;
+    maxBuildsPerWorker = Math.max(1, maxBuilds);
+    if (maxIdle == 0) {
+      shutdown();
+    }
+  }
+
+  static boolean isEnabled() {
+    return maxIdleWorkers > 0;
+  }
+
+  /**
+   * Starts a worker for the given JVM settings and adds it to the idle workers, so that the
+   * first build using these settings finds a warm compiler.
+   *
+   * @param maxHeapMb  maximum heap of the worker JVM, in MB
+   * @param classpath  class path containing Kawa and the component libraries
+   * @param runtime  the YAIL runtime file the worker loads when it starts
+   */
+  static void prewarm(int maxHeapMb, String classpath, String runtime) {
+    if (!isEnabled()) {
+      return;
+    }
+    try {
+      release(new Worker(workerCommandLine(maxHeapMb, classpath, runtime)));
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to start Kawa compiler worker", e);
+    }
+  }
+
+  /**
+   * Runs {@code kawa.repl} with the given arguments in a pooled worker that has loaded the
+   * given YAIL runtime.
+   *
+   * @param maxHeapMb  maximum heap of the worker JVM, in MB
+   * @param classpath  class path containing Kawa and the component libraries
+   * @param runtime  the YAIL runtime file, which the arguments must not load again
+   * @param kawaArgs  arguments for {@code kawa.repl}
+   * @param diagnostics  stream that receives the compiler's error output
+   * @return  {@code true} if the worker processed the request, {@code false} if it died
+   */
+  static boolean compile(int maxHeapMb, String classpath, String runtime, List<String> kawaArgs,
+                         PrintStream diagnostics) {
+    Worker worker;
+    try {
+      worker = acquire(workerCommandLine(maxHeapMb, classpath, runtime));
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to start Kawa compiler worker", e);
+      return false;
+    }
+    boolean completed = false;
+    try {
+      completed = worker.compile(kawaArgs, diagnostics);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Kawa compiler worker failed", e);
+    } finally {
+      if (completed) {
+        release(worker);
+      } else {
+        worker.destroy();
+      }
+    }
+    return completed;
+  }
+
+  /**
+   * Stops all idle workers.
+   */
+  static void shutdown() {
+    synchronized (idleWorkers) {
+      for (List<Worker> workers : idleWorkers.values()) {
+        for (Worker worker : workers) {
+          worker.destroy();
+        }
+      }
+      idleWorkers.clear();
+      idleWorkerCount = 0;
+    }
+  }
+
+  static int getIdleWorkerCount() {
+    synchronized (idleWorkers) {
+      return idleWorkerCount;
+    }
+  }
+
+  private static Worker acquire(List<String> commandLine) throws IOException {
+    String key = Joiner.on(' ').join(commandLine);
+    synchronized (idleWorkers) {
+      LinkedList<Worker> workers = idleWorkers.get(key);
+      while (workers != null && !workers.isEmpty()) {
+        Worker worker = workers.removeFirst();
+        idleWorkerCount--;
+        if (worker.isAlive()) {
+          return worker;
+        }
+        worker.destroy();
+      }
+    }
+    return new Worker(commandLine);
+  }
+
+  private static void release(Worker worker) {
+    synchronized (idleWorkers) {
+      if (worker.isAlive() && worker.builds < maxBuildsPerWorker &&
+          idleWorkerCount < maxIdleWorkers) {
+        LinkedList<Worker> workers = idleWorkers.get(worker.key);
+        if (workers == null) {
+          workers = Lists.newLinkedList();
+          idleWorkers.put(worker.key, workers);
+        }
+        workers.addLast(worker);
+        idleWorkerCount++;
+        return;
+      }
+    }
+    worker.destroy();
+  }
+
+  private static List<String> workerCommandLine(int maxHeapMb, String classpath,
+      String runtime) throws IOException {
+    List<String> commandLine = Lists.newArrayList();
+    commandLine.add(System.getProperty("java.home") + "/bin/java");
+    commandLine.add("-mx" + maxHeapMb + "M");
+    commandLine.add("-cp");
+    // The worker class itself comes last, so that Kawa and the component libraries take
+    // precedence over anything else on the build server's own class path.
+    commandLine.add(classpath + File.pathSeparator + workerClasspath());
+    commandLine.add(KawaCompilerWorker.class.getName());
+    commandLine.add(runtime);
+    return commandLine;
+  }
+
+  private static String workerClasspath() throws IOException {
+    try {
+      return new File(KawaCompilerWorker.class.getProtectionDomain().getCodeSource()
+          .getLocation().toURI()).getAbsolutePath();
+    } catch (URISyntaxException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /*
+   * A single resident Kawa compiler process.
+   */
+  private static final class Worker {
+    private final String key;
+    private final Process process;
+    private final Writer requests;
+    private final BufferedReader diagnostics;
+    private int builds;
+
+    Worker(List<String> commandLine) throws IOException {
+      key = Joiner.on(' ').join(commandLine);
+      LOG.info("Starting Kawa compiler worker: " + key);
+      process = new ProcessBuilder(commandLine).start();
+      requests = new OutputStreamWriter(process.getOutputStream(), "UTF-8");
+      diagnostics = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+      // Using System.out on purpose. Don't want to pollute build messages with Kawa's output.
+      redirect(process.getInputStream(), System.out);
+    }
+
+    boolean compile(List<String> kawaArgs, PrintStream out) throws IOException {
+      builds++;
+      requests.write(ARG_JOINER.join(kawaArgs));
+      requests.write('\n');
+      requests.flush();
+      String line;
+      while ((line = diagnostics.readLine()) != null) {
+        if (line.endsWith(KawaCompilerWorker.DONE_MARKER)) {
+          String rest = line.substring(0,
+              line.length() - KawaCompilerWorker.DONE_MARKER.length());
+          if (!rest.isEmpty()) {
+            out.println(rest);
+          }
+          return true;
+        }
+        out.println(line);
+      }
+      // The worker exited while compiling.
+      return false;
+    }
+
+    boolean isAlive() {
+      try {
+        process.exitValue();
+        return false;
+      } catch (IllegalThreadStateException e) {
+        return true;
+      }
+    }
+
+    void destroy() {
+      process.destroy();
+    }
+
+    private static void redirect(final InputStream input, final PrintStream output) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+            String line;
+            while ((line = reader.readLine()) != null) {
+              output.println(line);
+            }
+          } catch (IOException e) {
+            // OK to ignore...
+            LOG.log(Level.WARNING, "____I/O Redirection failure: ", e);
+          }
+        }
+      });
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+}
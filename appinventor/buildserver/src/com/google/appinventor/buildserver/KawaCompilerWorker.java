@@ -0,0 +1,113 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Main class of a resident Kawa compiler process.
+ *
+ * <p>A worker is launched by {@link KawaCompilerPool} with the Kawa runtime and the component
+ * libraries on its class path, and with the YAIL runtime ({@code runtime.scm}) as its only
+ * argument. The YAIL runtime is loaded into the Scheme environment once, when the worker starts.
+ * The worker then reads one compilation request per line from standard input (the
+ * {@code kawa.repl} arguments, separated by tabs), runs {@code kawa.repl.main} in this JVM and
+ * writes {@link #DONE_MARKER} to standard error. Compiler diagnostics are written to standard
+ * error, just as they are when Kawa is run as a one-shot process. When standard input is closed
+ * (for instance because the build server went away) the worker exits.
+ *
+ * <p>Each request runs in a fresh child of the environment that holds the YAIL runtime, so
+ * whatever a compilation defines is dropped when it finishes and the next build starts from the
+ * same state.
+ *
+ * <p>Kawa calls {@code System.exit} when a source file cannot be compiled. In that case the
+ * worker simply dies and the pool replaces it; the diagnostics written before the exit have
+ * already been delivered.
+ *
+ * <p>This class must only depend on the JDK and Kawa, since the worker's class path does not
+ * include the rest of the build server's libraries. Kawa itself is accessed reflectively because
+ * it is not on the build server's compile time class path.
+ */
+public final class KawaCompilerWorker {
+  /**
+   * Line written to standard error after each request has been processed.
+   */
+  static final String DONE_MARKER = "__KAWA_COMPILER_WORKER_DONE__";
+
+  static final String ARG_SEPARATOR = "\t";
+
+  private KawaCompilerWorker() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    PrintStream err = System.err;
+    PrintStream out = System.out;
+
+    // Load the Scheme language and the YAIL runtime before we accept any request, so that no
+    // build pays for them.
+    Object scheme = Class.forName("kawa.standard.Scheme").getMethod("getInstance").invoke(null);
+    Class<?> languageClass = Class.forName("gnu.expr.Language");
+    languageClass.getMethod("setDefaults", languageClass).invoke(null, scheme);
+    Class<?> environmentClass = Class.forName("gnu.mapping.Environment");
+    Method makeEnvironment =
+        environmentClass.getMethod("make", String.class, environmentClass);
+    Method setSaveCurrent = environmentClass.getMethod("setSaveCurrent", environmentClass);
+    Method restoreCurrent = environmentClass.getMethod("restoreCurrent", environmentClass);
+    Method kawaMain = Class.forName("kawa.repl").getMethod("main", String[].class);
+
+    String runtime = args.length > 0 ? args[0] : null;
+    boolean runtimeLoaded = false;
+    if (runtime != null) {
+      try {
+        runtimeLoaded = (Boolean) Class.forName("kawa.Shell")
+            .getMethod("runFileOrClass", String.class, boolean.class, int.class)
+            .invoke(null, runtime, false, 0);
+      } catch (InvocationTargetException e) {
+        e.getCause().printStackTrace(err);
+      }
+      if (!runtimeLoaded) {
+        // Fall back to loading the runtime for each request, as a one-shot Kawa run does.
+        err.println("Unable to load " + runtime + " once; loading it for each request");
+      }
+    }
+    Object baseEnvironment = environmentClass.getMethod("getCurrent").invoke(null);
+
+    BufferedReader requests = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+    String request;
+    while ((request = requests.readLine()) != null) {
+      if (request.isEmpty()) {
+        continue;
+      }
+      List<String> kawaArgs = new ArrayList<String>();
+      if (runtime != null && !runtimeLoaded) {
+        kawaArgs.add("-f");
+        kawaArgs.add(runtime);
+      }
+      kawaArgs.addAll(Arrays.asList(request.split(ARG_SEPARATOR)));
+      Object environment = makeEnvironment.invoke(null, "build", baseEnvironment);
+      Object savedEnvironment = setSaveCurrent.invoke(null, environment);
+      try {
+        kawaMain.invoke(null, (Object) kawaArgs.toArray(new String[kawaArgs.size()]));
+      } catch (InvocationTargetException e) {
+        e.getCause().printStackTrace(err);
+      } catch (Throwable t) {
+        t.printStackTrace(err);
+      } finally {
+        restoreCurrent.invoke(null, savedEnvironment);
+      }
+      out.flush();
+      err.println(DONE_MARKER);
+      err.flush();
+    }
+  }
+}
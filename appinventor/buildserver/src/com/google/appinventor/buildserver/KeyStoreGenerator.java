@@ -0,0 +1,166 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Creates the keystores of projects that don't have one yet, without running keytool.
+ *
+ * <p>Generating an RSA key pair is the slow part of creating a keystore, so key pairs are
+ * generated ahead of time by a background thread and kept in a small pool. A build that needs a
+ * new keystore takes a key pair from the pool, and only generates one itself if the pool is
+ * empty. Each key pair is used for one keystore only.
+ *
+ * <p>The keystores are the same as the ones keytool used to create: a JKS keystore with a 2048
+ * bit RSA key and a self-signed certificate that is valid for 10000 days. The pool is disabled
+ * until {@link #configure} is called with a positive size.
+ */
+final class KeyStoreGenerator {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(KeyStoreGenerator.class.getName());
+
+  static final String KEY_ALIAS = "AndroidKey";
+  static final String PASSWORD = "android";
+
+  private static final String KEY_ALGORITHM = "RSA";
+  private static final int KEY_SIZE = 2048;
+  private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+
+  /* Note: must expire after October 22, 2033, to be in the Android
+   * marketplace.  Android docs recommend "10000" as the expiration # of
+   * days.
+   */
+  private static final long VALIDITY_MILLIS = TimeUnit.DAYS.toMillis(10000);
+
+  private static final SecureRandom random = new SecureRandom();
+
+  // The pool of key pairs. null means the pool is disabled.
+  private static volatile BlockingQueue<KeyPair> keyPairs = null;
+
+  private KeyStoreGenerator() {
+  }
+
+  /**
+   * Configures the key pair pool and starts filling it in the background.
+   *
+   * @param poolSize  the number of key pairs generated ahead of time; 0 disables the pool
+   */
+  static synchronized void configure(int poolSize) {
+    if (keyPairs != null || poolSize <= 0) {
+      return;
+    }
+    final BlockingQueue<KeyPair> pool = new ArrayBlockingQueue<KeyPair>(poolSize);
+    keyPairs = pool;
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            // Blocks while the pool is full.
+            pool.put(generateKeyPair());
+          }
+        } catch (InterruptedException e) {
+          // Stop filling the pool.
+        } catch (GeneralSecurityException e) {
+          LOG.log(Level.SEVERE, "Unable to generate key pairs", e);
+        }
+      }
+    }, "KeyStoreGenerator key pair pool");
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.start();
+  }
+
+  static int getPooledKeyPairCount() {
+    BlockingQueue<KeyPair> pool = keyPairs;
+    return pool == null ? 0 : pool.size();
+  }
+
+  /**
+   * Writes a new keystore containing a new key pair and a self-signed certificate.
+   *
+   * @param keyStoreFile  the keystore file to write
+   * @param distinguishedName  the distinguished name of the certificate's subject and issuer,
+   *     in RFC 1779 or RFC 2253 format
+   */
+  static void generateKeyStore(File keyStoreFile, String distinguishedName)
+      throws IOException, GeneralSecurityException {
+    KeyPair keyPair = takeKeyPair();
+    X509Certificate certificate =
+        createCertificate(keyPair, new X500Principal(distinguishedName));
+
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    keyStore.load(null, null);
+    keyStore.setKeyEntry(KEY_ALIAS, keyPair.getPrivate(), PASSWORD.toCharArray(),
+        new Certificate[] { certificate });
+    OutputStream out = new FileOutputStream(keyStoreFile);
+    try {
+      keyStore.store(out, PASSWORD.toCharArray());
+    } finally {
+      out.close();
+    }
+  }
+
+  private static KeyPair takeKeyPair() throws GeneralSecurityException {
+    BlockingQueue<KeyPair> pool = keyPairs;
+    if (pool != null) {
+      KeyPair keyPair = pool.poll();
+      if (keyPair != null) {
+        return keyPair;
+      }
+      LOG.info("Key pair pool is empty");
+    }
+    return generateKeyPair();
+  }
+
+  private static KeyPair generateKeyPair() throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+    generator.initialize(KEY_SIZE, random);
+    return generator.generateKeyPair();
+  }
+
+  private static X509Certificate createCertificate(KeyPair keyPair, X500Principal name)
+      throws GeneralSecurityException {
+    long now = System.currentTimeMillis();
+    X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(name,
+        new BigInteger(64, random), new Date(now), new Date(now + VALIDITY_MILLIS), name,
+        keyPair.getPublic());
+    try {
+      return new JcaX509CertificateConverter().getCertificate(
+          builder.build(new JcaContentSignerBuilder(SIGNATURE_ALGORITHM)
+              .build(keyPair.getPrivate())));
+    } catch (OperatorCreationException e) {
+      throw new GeneralSecurityException(e);
+    }
+  }
+}
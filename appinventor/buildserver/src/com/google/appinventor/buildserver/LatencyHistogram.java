@@ -0,0 +1,102 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram of latencies, in milliseconds.
+ *
+ * <p>Latencies are counted in fixed buckets whose bounds grow roughly exponentially from 10 ms
+ * to 10 minutes, so that recording is cheap and the memory used doesn't grow with the number of
+ * samples. Percentiles are estimated by interpolating within the bucket that contains them.
+ */
+final class LatencyHistogram {
+  /**
+   * The inclusive upper bounds of the buckets, in milliseconds. There is one more bucket for the
+   * latencies above the last bound.
+   */
+  static final long[] BUCKET_BOUNDS_MS = {
+    10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 600000
+  };
+
+  private final AtomicLongArray bucketCounts = new AtomicLongArray(BUCKET_BOUNDS_MS.length + 1);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sumMs = new AtomicLong();
+  private final AtomicLong maxMs = new AtomicLong();
+
+  /**
+   * Records a latency.
+   */
+  void record(long latencyMs) {
+    latencyMs = Math.max(0, latencyMs);
+    int bucket = 0;
+    while (bucket < BUCKET_BOUNDS_MS.length && latencyMs > BUCKET_BOUNDS_MS[bucket]) {
+      bucket++;
+    }
+    bucketCounts.incrementAndGet(bucket);
+    count.incrementAndGet();
+    sumMs.addAndGet(latencyMs);
+    long max;
+    do {
+      max = maxMs.get();
+    } while (latencyMs > max && !maxMs.compareAndSet(max, latencyMs));
+  }
+
+  long getCount() {
+    return count.get();
+  }
+
+  long getSumMs() {
+    return sumMs.get();
+  }
+
+  long getMaxMs() {
+    return maxMs.get();
+  }
+
+  /**
+   * Returns the number of latencies in the given bucket, where bucket
+   * {@code BUCKET_BOUNDS_MS.length} holds the latencies above the last bound.
+   */
+  long getBucketCount(int bucket) {
+    return bucketCounts.get(bucket);
+  }
+
+  /**
+   * Estimates a percentile of the recorded latencies.
+   *
+   * @param percentile  the percentile, between 0 and 100
+   * @return  the estimated latency in milliseconds, or 0 if nothing was recorded
+   */
+  long getPercentileMs(double percentile) {
+    long[] counts = new long[bucketCounts.length()];
+    long total = 0;
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = bucketCounts.get(i);
+      total += counts[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    double rank = percentile / 100 * total;
+    long cumulative = 0;
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] > 0 && cumulative + counts[i] >= rank) {
+        long lower = i == 0 ? 0 : BUCKET_BOUNDS_MS[i - 1];
+        // The last bucket has no upper bound; the largest latency is the best estimate for it.
+        long upper = i < BUCKET_BOUNDS_MS.length
+            ? Math.min(BUCKET_BOUNDS_MS[i], maxMs.get())
+            : maxMs.get();
+        double fraction = (rank - cumulative) / counts[i];
+        return Math.max(lower, Math.round(lower + (upper - lower) * fraction));
+      }
+      cumulative += counts[i];
+    }
+    return maxMs.get();
+  }
+}
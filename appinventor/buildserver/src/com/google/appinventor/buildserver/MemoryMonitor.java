@@ -0,0 +1,226 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides whether the build server has enough memory to start another build, and measures the
+ * memory used by builds.
+ *
+ * <p>The decision never forces a garbage collection. The live heap is estimated from the usage of
+ * the heap pools right after their last collection, which the JVM records anyway. A build is
+ * admitted if the heap has room for one more build on top of the live heap, the off-heap memory
+ * (non-heap pools and direct buffers) is within its budget, and the child process RAM budget of
+ * the {@link StageScheduler} can hold one of the build's child processes.
+ *
+ * <p>For each build, {@link #startBuild} and {@link BuildUsage#finish} measure the bytes
+ * allocated by the build's thread and the time the JVM spent in garbage collection meanwhile.
+ * The collection time is recorded in {@link BuildMetrics} as the {@code "gc-pause"} stage. Since
+ * collections stop every build, it is the time the build was held up by them, whichever build
+ * caused them.
+ */
+final class MemoryMonitor implements BuildQueueExecutor.Admission {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(MemoryMonitor.class.getName());
+
+  private static final long MB = 1024L * 1024L;
+
+  private static final AtomicLong allocatedBytes = new AtomicLong();
+  private static final AtomicInteger measuredBuilds = new AtomicInteger();
+
+  // The heap a build needs, in bytes.
+  private final long buildHeapBytes;
+
+  // The maximum off-heap memory, in bytes. 0 means unlimited.
+  private final long maxOffHeapBytes;
+
+  // The RAM of a child process of a build, in MB.
+  private final int childProcessRamMb;
+
+  /**
+   * Creates a MemoryMonitor.
+   *
+   * @param buildHeapMb  the heap a build needs, in MB
+   * @param maxOffHeapMb  the maximum off-heap memory of the build server, in MB; 0 means
+   *     unlimited
+   * @param childProcessRamMb  the RAM of a child process of a build, in MB
+   */
+  MemoryMonitor(int buildHeapMb, int maxOffHeapMb, int childProcessRamMb) {
+    this.buildHeapBytes = buildHeapMb * MB;
+    this.maxOffHeapBytes = maxOffHeapMb * MB;
+    this.childProcessRamMb = childProcessRamMb;
+  }
+
+  @Override
+  public boolean canStart(int activeTasks) {
+    StageScheduler stageScheduler = StageScheduler.getInstance();
+    String shortage = findShortage(getLiveHeapBytes(), Runtime.getRuntime().maxMemory(),
+        getOffHeapBytes(), stageScheduler.getAvailableRamMb(), stageScheduler.getRamBudgetMb());
+    if (shortage != null) {
+      // The executor asks again whenever a build finishes, so this is logged at a lower level
+      // than the builds it holds back.
+      LOG.log(Level.FINE, "Not starting a build while " + activeTasks + " are active: " +
+          shortage);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns why a build can't start with the given memory, or {@code null} if it can.
+   *
+   * @param liveHeapBytes  the live heap, in bytes
+   * @param maxHeapBytes  the maximum heap, in bytes
+   * @param offHeapBytes  the off-heap memory in use, in bytes
+   * @param availableChildRamMb  the available child process RAM, in MB; negative if unlimited
+   * @param childRamBudgetMb  the total child process RAM, in MB; 0 if unlimited
+   */
+  String findShortage(long liveHeapBytes, long maxHeapBytes, long offHeapBytes,
+      int availableChildRamMb, int childRamBudgetMb) {
+    if (maxHeapBytes - liveHeapBytes < buildHeapBytes) {
+      return "live heap is " + liveHeapBytes / MB + " MB of " + maxHeapBytes / MB + " MB";
+    }
+    if (maxOffHeapBytes > 0 && offHeapBytes > maxOffHeapBytes) {
+      return "off-heap memory is " + offHeapBytes / MB + " MB";
+    }
+    // The scheduler admits a child process that needs more than the whole budget once the budget
+    // is free, so no more than the budget is needed.
+    if (availableChildRamMb >= 0
+        && availableChildRamMb < Math.min(childProcessRamMb, childRamBudgetMb)) {
+      return "available child process RAM is " + availableChildRamMb + " MB";
+    }
+    return null;
+  }
+
+  /**
+   * Returns the heap in use right after the last garbage collection of each heap pool, or the
+   * heap in use now for the pools that haven't been collected yet.
+   */
+  static long getLiveHeapBytes() {
+    long live = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+        MemoryUsage usage = pool.getCollectionUsage();
+        if (usage == null || usage.getCommitted() == 0) {
+          // The pool hasn't been collected yet, so all of it may be live.
+          usage = pool.getUsage();
+        }
+        live += usage.getUsed();
+      }
+    }
+    return live;
+  }
+
+  /**
+   * Returns the memory used by the non-heap pools and the direct and mapped buffers.
+   */
+  static long getOffHeapBytes() {
+    long used = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage().getUsed();
+    for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+      used += pool.getMemoryUsed();
+    }
+    return used;
+  }
+
+  /**
+   * Returns the bytes allocated by the threads of measured builds, or -1 if the JVM can't
+   * measure it.
+   */
+  static long getAllocatedBytes() {
+    return getAllocationBean() == null ? -1 : allocatedBytes.get();
+  }
+
+  static int getMeasuredBuildCount() {
+    return measuredBuilds.get();
+  }
+
+  /**
+   * Starts measuring the memory used by a build running on the current thread.
+   */
+  static BuildUsage startBuild() {
+    return new BuildUsage();
+  }
+
+  private static com.sun.management.ThreadMXBean getAllocationBean() {
+    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    if (threadBean instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean allocationBean =
+          (com.sun.management.ThreadMXBean) threadBean;
+      if (allocationBean.isThreadAllocatedMemorySupported()
+          && allocationBean.isThreadAllocatedMemoryEnabled()) {
+        return allocationBean;
+      }
+    }
+    return null;
+  }
+
+  private static long getThreadAllocatedBytes(long threadId) {
+    com.sun.management.ThreadMXBean allocationBean = getAllocationBean();
+    return allocationBean == null ? -1 : allocationBean.getThreadAllocatedBytes(threadId);
+  }
+
+  private static long getGcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+    }
+    return count;
+  }
+
+  private static long getGcTimeMs() {
+    long time = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      time += Math.max(0, gc.getCollectionTime());
+    }
+    return time;
+  }
+
+  /**
+   * The memory used by a build, measured between its creation and {@link #finish}.
+   */
+  static final class BuildUsage {
+    private final long threadId = Thread.currentThread().getId();
+    private final long startAllocatedBytes = getThreadAllocatedBytes(threadId);
+    private final long startGcCount = getGcCount();
+    private final long startGcTimeMs = getGcTimeMs();
+
+    private BuildUsage() {
+    }
+
+    /**
+     * Stops measuring, records the garbage collection time and returns a description of the
+     * memory used, for logging. Must be called on the thread that started the build.
+     */
+    String finish() {
+      long gcCount = getGcCount() - startGcCount;
+      long gcTimeMs = getGcTimeMs() - startGcTimeMs;
+      BuildMetrics.record("gc-pause", gcTimeMs);
+      measuredBuilds.incrementAndGet();
+      StringBuilder description = new StringBuilder();
+      long endAllocatedBytes = getThreadAllocatedBytes(threadId);
+      if (startAllocatedBytes >= 0 && endAllocatedBytes >= 0) {
+        long allocated = endAllocatedBytes - startAllocatedBytes;
+        allocatedBytes.addAndGet(allocated);
+        description.append("allocated ").append(allocated / MB).append(" MB, ");
+      }
+      description.append(gcCount).append(" garbage collections took ").append(gcTimeMs)
+          .append(" ms, live heap is ").append(getLiveHeapBytes() / MB).append(" MB");
+      return description.toString();
+    }
+  }
+}
@@ -11,6 +11,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
@@ -24,19 +25,24 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
-import org.apache.commons.io.FileUtils;
-
 /**
  * Provides support for building Young Android projects.
  *
@@ -53,6 +59,9 @@ public final class ProjectBuilder {
 
   private static final int MAX_COMPILER_MESSAGE_LENGTH = 160;
 
+  // Maximum heap of a YailGenerator process, in MB.
+  private static final int YAIL_GENERATOR_RAM_MB = 1024;
+
   // Project folder prefixes
   // TODO(user): These constants are (or should be) also defined in
   // appengine/src/com/google/appinventor/server/project/youngandroid/YoungAndroidProjectService
@@ -80,55 +89,51 @@ public final class ProjectBuilder {
     return outputKeystore;
   }
 
-  /**
-   * Creates a new directory beneath the system's temporary directory (as
-   * defined by the {@code java.io.tmpdir} system property), and returns its
-   * name. The name of the directory will contain the current time (in millis),
-   * and a random number.
-   *
-   * <p>This method assumes that the temporary volume is writable, has free
-   * inodes and free blocks, and that it will not be called thousands of times
-   * per second.
-   *
-   * @return the newly-created directory
-   * @throws IllegalStateException if the directory could not be created
-   */
-  private static File createNewTempDir() {
-    File baseDir = new File(System.getProperty("java.io.tmpdir"));
-    String baseNamePrefix = System.currentTimeMillis() + "_" + Math.random() + "-";
-
-    final int TEMP_DIR_ATTEMPTS = 10000;
-    for (int counter = 0; counter < TEMP_DIR_ATTEMPTS; counter++) {
-      File tempDir = new File(baseDir, baseNamePrefix + counter);
-      if (tempDir.exists()) {
-        continue;
-      }
-      if (tempDir.mkdir()) {
-        return tempDir;
-      }
-    }
-    throw new IllegalStateException("Failed to create directory within "
-        + TEMP_DIR_ATTEMPTS + " attempts (tried "
-        + baseNamePrefix + "0 to " + baseNamePrefix + (TEMP_DIR_ATTEMPTS - 1) + ')');
+  Result build(String userName, ZipFile inputZip, File outputDir, boolean isForCompanion,
+               int childProcessRam, String dexCachePath) {
+    return build(userName, inputZip, outputDir, isForCompanion, childProcessRam, dexCachePath,
+        new BuildProgress());
   }
 
+  /**
+   * Builds a project, reporting the progress of the build.
+   */
   Result build(String userName, ZipFile inputZip, File outputDir, boolean isForCompanion,
-               int childProcessRam, String dexCachePath) {
+               int childProcessRam, String dexCachePath, BuildProgress progress) {
     try {
+      String cacheKey = null;
+      if (ApkCache.isEnabled()) {
+        cacheKey = ApkCache.computeKey(inputZip, isForCompanion);
+        ApkCache.CachedBuild cachedBuild = ApkCache.lookup(cacheKey);
+        if (cachedBuild != null) {
+          LOG.info("Using cached build " + cacheKey);
+          outputApk = new File(outputDir, cachedBuild.getApkName());
+          Files.copy(cachedBuild.getApk(), outputApk);
+          return new Result(true, cachedBuild.getMessages(), "");
+        }
+      }
+
       // Download project files into a temporary directory
-      File projectRoot = createNewTempDir();
+      BuildWorkspace workspace = BuildWorkspace.create(inputZip);
+      File projectRoot = workspace.getRoot();
       LOG.info("temporary project root: " + projectRoot.getAbsolutePath());
       try {
         List<String> sourceFiles;
         try {
+          progress.update("zip-extraction", 0);
+          long extractStart = System.currentTimeMillis();
           sourceFiles = extractProjectFiles(inputZip, projectRoot);
+          BuildMetrics.recordSince("zip-extraction", extractStart);
         } catch (IOException e) {
           LOG.severe("unexpected problem extracting project file from zip");
           return Result.createFailingResult("", "Problems processing zip file.");
         }
 
         try {
+          progress.update("yail-generation", 0);
+          long yailStart = System.currentTimeMillis();
           genYailFilesIfNecessary(sourceFiles);
+          BuildMetrics.recordSince("yail-generation", yailStart);
         } catch (YailGenerationException e) {
           // Note that we're using a special result code here for the case of a Yail gen error.
           return new Result(Result.YAIL_GENERATION_ERROR, "", e.getMessage(), e.getFormName());
@@ -141,7 +146,10 @@ public final class ProjectBuilder {
         File keyStoreFile = new File(projectRoot, KEYSTORE_FILE_NAME);
         String keyStorePath = keyStoreFile.getPath();
         if (!keyStoreFile.exists()) {
+          progress.update("keystore-creation", 0);
+          long keyStoreStart = System.currentTimeMillis();
           keyStorePath = createKeyStore(userName, projectRoot, KEYSTORE_FILE_NAME);
+          BuildMetrics.recordSince("keystore-creation", keyStoreStart);
           saveKeystore = true;
         }
 
@@ -163,7 +171,7 @@ public final class ProjectBuilder {
         // Invoke YoungAndroid compiler
         boolean success =
             Compiler.compile(project, componentTypes, console, console, userErrors, isForCompanion,
-                             keyStorePath, childProcessRam, dexCachePath);
+                             keyStorePath, childProcessRam, dexCachePath, progress);
         console.close();
         userErrors.close();
 
@@ -185,16 +193,12 @@ public final class ProjectBuilder {
               outputKeystore = new File(outputDir, KEYSTORE_FILE_NAME);
               Files.copy(keyStoreFile, outputKeystore);
             }
+            ApkCache.store(cacheKey, outputApk, messages);
           }
         }
         return new Result(success, messages, errors.toString(PathUtil.DEFAULT_CHARSET));
       } finally {
-        // On some platforms (OS/X), the java.io.tmpdir contains a symlink. We need to use the
-        // canonical path here so that Files.deleteRecursively will work.
-        
-        // Note (ralph):  deleteRecursively has been removed from the guava-11.0.1 lib
-        // Replacing with deleteDirectory, which is supposed to delete the entire directory.
-        FileUtils.deleteDirectory(new File(projectRoot.getCanonicalPath()));
+        workspace.delete();
       }
     } catch (Exception e) {
       e.printStackTrace();
@@ -213,6 +217,7 @@ public final class ProjectBuilder {
             return input.endsWith(FORM_PROPERTIES_EXTENSION) || input.endsWith(YAIL_EXTENSION);
           }
         });
+    List<String> rootPathsToGenerate = Lists.newArrayList();
     for (String sourceFile : formAndYailSourceFiles) {
       if (sourceFile.endsWith(FORM_PROPERTIES_EXTENSION)) {
         String rootPath = sourceFile.substring(0, sourceFile.length()
@@ -221,9 +226,52 @@ public final class ProjectBuilder {
         // Note: Famous last words: The following contains() makes this method O(n**2) but n should
         // be pretty small.
         if (!sourceFiles.contains(yailFilePath)) {
-          generateYail(rootPath);
+          rootPathsToGenerate.add(rootPath);
+        }
+      }
+    }
+    if (rootPathsToGenerate.size() == 1) {
+      generateYail(rootPathsToGenerate.get(0));
+    } else if (!rootPathsToGenerate.isEmpty()) {
+      generateYailInParallel(rootPathsToGenerate);
+    }
+  }
+
+  /*
+   * Generates the YAIL of several forms at the same time, on up to as many threads as the stage
+   * scheduler lets Kawa runs proceed at once. If generation fails for more than one form, the
+   * failure of the first form in the given order is reported, as if the forms had been generated
+   * one after the other.
+   */
+  private void generateYailInParallel(List<String> rootPaths)
+      throws IOException, YailGenerationException {
+    int threads = Math.min(rootPaths.size(),
+        StageScheduler.getInstance().getLimit(StageScheduler.Stage.KAWA));
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<File>> results = Lists.newArrayList();
+      for (final String rootPath : rootPaths) {
+        results.add(executor.submit(new Callable<File>() {
+          @Override
+          public File call() throws IOException, YailGenerationException {
+            return generateYail(rootPath);
+          }
+        }));
+      }
+      for (Future<File> result : results) {
+        try {
+          result.get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          Throwables.propagateIfPossible(cause, IOException.class, YailGenerationException.class);
+          throw new RuntimeException(cause);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while generating YAIL", e);
         }
       }
+    } finally {
+      executor.shutdown();
     }
   }
 
@@ -276,28 +324,17 @@ public final class ProjectBuilder {
       throws IOException {
     File keyStoreFile = new File(projectRoot.getPath(), keystoreFileName);
 
-    /* Note: must expire after October 22, 2033, to be in the Android
-    * marketplace.  Android docs recommend "10000" as the expiration # of
-    * days.
-    *
-    * For DNAME, US may not the right country to assign it to.
-    */
-    String[] keytoolCommandline = {
-        System.getProperty("java.home") + "/bin/keytool",
-        "-genkey",
-        "-keystore", keyStoreFile.getAbsolutePath(),
-        "-alias", "AndroidKey",
-        "-keyalg", "RSA",
-        "-dname", "CN=" + quotifyUserName(userName) + ", O=AppInventor for Android, C=US",
-        "-validity", "10000",
-        "-storepass", "android",
-        "-keypass", "android"
-    };
-
-    if (Execution.execute(null, keytoolCommandline, System.out, System.err)) {
-      if (keyStoreFile.length() > 0) {
-        return keyStoreFile.getAbsolutePath();
-      }
+    // For DNAME, US may not the right country to assign it to.
+    String distinguishedName =
+        "CN=" + quotifyUserName(userName) + ", O=AppInventor for Android, C=US";
+    try {
+      KeyStoreGenerator.generateKeyStore(keyStoreFile, distinguishedName);
+    } catch (GeneralSecurityException e) {
+      LOG.log(Level.WARNING, "Unable to create keystore for " + userName, e);
+      return null;
+    }
+    if (keyStoreFile.length() > 0) {
+      return keyStoreFile.getAbsolutePath();
     }
     return null;
   }
@@ -420,7 +457,7 @@ public final class ProjectBuilder {
 
     String[] commandLine = {
       System.getProperty("java.home") + "/bin/java",
-      "-mx1024M",
+      "-mx" + YAIL_GENERATOR_RAM_MB + "M",
       "-jar",
       Compiler.getResource(Compiler.RUNTIME_FILES_DIR + "YailGenerator.jar"),
       new File(formPropertiesPath).getAbsolutePath(),
@@ -429,7 +466,16 @@ public final class ProjectBuilder {
     };
     StringBuffer out = new StringBuffer();
     StringBuffer err = new StringBuffer();
-    int exitValue = Execution.execute(null, commandLine, out, err);
+    // YailGenerator compiles a screen in a child process, like Kawa does, so it is admitted by
+    // the stage scheduler as a Kawa run.
+    int exitValue;
+    StageScheduler.Permit permit = StageScheduler.getInstance().acquire(
+        StageScheduler.Stage.KAWA, YAIL_GENERATOR_RAM_MB);
+    try {
+      exitValue = Execution.execute(null, commandLine, out, err);
+    } finally {
+      permit.release();
+    }
     if (exitValue == 0) {
       String generatedYailString = out.toString();
       File generatedYailFile = new File(yailPath);
@@ -469,8 +515,4 @@ public final class ProjectBuilder {
       return formName;
     }
   }
-
-  public int getProgress() {
-    return Compiler.getProgress();
-  }
 }
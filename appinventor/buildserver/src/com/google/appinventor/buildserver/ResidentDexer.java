@@ -0,0 +1,177 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs dx inside the build server instead of launching {@code java -jar dx.jar} for every
+ * pre-dex and merge.
+ *
+ * <p>dx keeps its state (arguments, output, console streams) in static fields, so each dexer is
+ * loaded into its own {@link URLClassLoader} and runs one conversion at a time. Idle dexers are
+ * kept so that later conversions run on classes that are already loaded and JIT-compiled. A
+ * dexer is discarded after {@link #MAX_RUNS_PER_DEXER} conversions, or after a conversion that
+ * threw an exception.
+ *
+ * <p>Since dx then runs in the build server's heap, the server must be started with enough
+ * memory for the number of simultaneous builds; {@code --childProcessRamMb} no longer applies
+ * to dx. The resident dexer is disabled until {@link #configure} is called with a positive
+ * size, in which case callers should fall back to running dx as a separate process.
+ */
+final class ResidentDexer {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ResidentDexer.class.getName());
+
+  private static final int MAX_RUNS_PER_DEXER = 100;
+
+  private static final String DEXER_MAIN = "com.android.dx.command.dexer.Main";
+  private static final String DEXER_ARGUMENTS = "com.android.dx.command.dexer.Main$Arguments";
+  private static final String DX_CONSOLE = "com.android.dx.command.DxConsole";
+
+  // The maximum number of idle dexers kept loaded. 0 means the resident dexer is disabled.
+  private static volatile int maxIdleDexers = 0;
+
+  // Idle dexers. Guarded by itself.
+  private static final LinkedList<Dexer> idleDexers = Lists.newLinkedList();
+
+  private ResidentDexer() {
+  }
+
+  /**
+   * Configures the resident dexer.
+   *
+   * @param maxIdle  the maximum number of idle dexers to keep loaded; 0 disables it
+   */
+  static void configure(int maxIdle) {
+    maxIdleDexers = maxIdle;
+    synchronized (idleDexers) {
+      while (idleDexers.size() > maxIdle) {
+        idleDexers.removeFirst();
+      }
+    }
+  }
+
+  static boolean isEnabled() {
+    return maxIdleDexers > 0;
+  }
+
+  static int getIdleDexerCount() {
+    synchronized (idleDexers) {
+      return idleDexers.size();
+    }
+  }
+
+  /**
+   * Runs dx with the given arguments.
+   *
+   * @param dxJar  path of dx.jar
+   * @param dxArgs  arguments for {@code dx --dex}, not including {@code --dex} itself
+   * @param out  stream receiving dx's standard output
+   * @param err  stream receiving dx's error output
+   * @return  {@code true} if dx succeeded, {@code false} otherwise
+   */
+  static boolean dex(String dxJar, List<String> dxArgs, PrintStream out, PrintStream err) {
+    Dexer dexer;
+    try {
+      dexer = acquire(dxJar);
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "Unable to load dx from " + dxJar, e);
+      return false;
+    }
+    boolean reusable = false;
+    try {
+      int result = dexer.run(dxArgs.toArray(new String[dxArgs.size()]), out, err);
+      reusable = true;
+      return result == 0;
+    } catch (InvocationTargetException e) {
+      e.getCause().printStackTrace(err);
+      return false;
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "Resident dx failed", e);
+      return false;
+    } finally {
+      if (reusable) {
+        release(dexer);
+      }
+    }
+  }
+
+  private static Dexer acquire(String dxJar) throws Exception {
+    synchronized (idleDexers) {
+      Iterator<Dexer> iterator = idleDexers.iterator();
+      while (iterator.hasNext()) {
+        Dexer dexer = iterator.next();
+        if (dexer.dxJar.equals(dxJar)) {
+          iterator.remove();
+          return dexer;
+        }
+      }
+    }
+    return new Dexer(dxJar);
+  }
+
+  private static void release(Dexer dexer) {
+    synchronized (idleDexers) {
+      if (dexer.runs < MAX_RUNS_PER_DEXER && idleDexers.size() < maxIdleDexers) {
+        idleDexers.addLast(dexer);
+      }
+    }
+  }
+
+  /*
+   * dx loaded into its own class loader.
+   */
+  private static final class Dexer {
+    private final String dxJar;
+    private final Constructor<?> newArguments;
+    private final Method parse;
+    private final Method run;
+    private final Field consoleOut;
+    private final Field consoleErr;
+    private int runs;
+
+    Dexer(String dxJar) throws Exception {
+      this.dxJar = dxJar;
+      LOG.info("Loading resident dx from " + dxJar);
+      // The parent is the system class loader's parent, so that dx doesn't see (or share static
+      // state with) anything on the build server's class path.
+      ClassLoader classLoader = new URLClassLoader(new URL[] { new File(dxJar).toURI().toURL() },
+          ClassLoader.getSystemClassLoader().getParent());
+      Class<?> argumentsClass = Class.forName(DEXER_ARGUMENTS, true, classLoader);
+      newArguments = argumentsClass.getConstructor();
+      parse = argumentsClass.getMethod("parse", String[].class);
+      run = Class.forName(DEXER_MAIN, true, classLoader).getMethod("run", argumentsClass);
+      Class<?> consoleClass = Class.forName(DX_CONSOLE, true, classLoader);
+      consoleOut = consoleClass.getField("out");
+      consoleErr = consoleClass.getField("err");
+    }
+
+    int run(String[] args, PrintStream out, PrintStream err) throws Exception {
+      runs++;
+      consoleOut.set(null, out);
+      consoleErr.set(null, err);
+      Object arguments = newArguments.newInstance();
+      parse.invoke(arguments, (Object) args);
+      return (Integer) run.invoke(null, arguments);
+    }
+  }
+}
@@ -0,0 +1,219 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Extracts the resources of the build server (tools, runtime libraries and component libraries)
+ * to files, so that they can be used by child processes and by file based APIs.
+ *
+ * <p>Each resource is extracted once to a directory named after the build server version and a
+ * hash of its contents (see {@link #getVersionKey}), with the prefix {@code resources-}. When the
+ * cache is configured with a persistent directory, the files survive restarts, and the
+ * directories of other versions are deleted. Nothing else in the directory is touched, so it can
+ * be shared with other data. Until it is configured, resources are extracted to a temporary
+ * directory that is deleted when the JVM exits.
+ *
+ * <p>Looking up a resource that is already extracted takes no lock. A resource that isn't is
+ * written to a temporary file and renamed, so a file in the cache is always complete. When two
+ * builds extract the same resource at the same time, both write it and one of the copies wins.
+ */
+final class ResourceCache {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ResourceCache.class.getName());
+
+  // The extracted resources, keyed by resource path.
+  private static final ConcurrentMap<String, File> files = new ConcurrentHashMap<String, File>();
+
+  // The prefix of the name of the directory holding the resources of a version.
+  private static final String VERSION_DIR_PREFIX = "resources-";
+
+  // The directory holding the resources of this version of the build server.
+  private static volatile File versionDir = null;
+
+  private ResourceCache() {
+  }
+
+  /**
+   * Configures the cache directory.
+   *
+   * @param dir  the directory holding the cache; {@code null} means a temporary directory
+   * @param version  the key of the build server version, which must be usable as a file name
+   */
+  static synchronized void configure(String dir, String version) {
+    files.clear();
+    if (dir == null) {
+      versionDir = null;
+      return;
+    }
+    File cacheDir = new File(dir);
+    cacheDir.mkdirs();
+    String versionDirName = VERSION_DIR_PREFIX + version;
+    File[] versions = cacheDir.listFiles();
+    if (versions != null) {
+      for (File other : versions) {
+        String name = other.getName();
+        if (name.startsWith(VERSION_DIR_PREFIX) && !name.equals(versionDirName)) {
+          LOG.info("Deleting the resources of build server version " +
+              name.substring(VERSION_DIR_PREFIX.length()));
+          try {
+            FileUtils.forceDelete(other);
+          } catch (IOException e) {
+            LOG.log(Level.WARNING, "Unable to delete " + other, e);
+          }
+        }
+      }
+    }
+    versionDir = new File(cacheDir, versionDirName);
+    versionDir.mkdirs();
+  }
+
+  /**
+   * Returns the key of the resources of a build server: its version, followed by a hash of its git
+   * fingerprint and of the jar its classes are loaded from. The version alone is "none" for
+   * untagged checkouts and is the same for every dirty build of a commit, so it doesn't tell apart
+   * builds whose resources differ.
+   *
+   * @param version  the version of the build server
+   * @param fingerprint  the git fingerprint of the build server
+   * @param codeSource  the jar or directory the classes of the build server are loaded from, or
+   *     {@code null} if it isn't known
+   */
+  static String getVersionKey(String version, String fingerprint, File codeSource) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putString(fingerprint, Charsets.UTF_8);
+    boolean hashed = false;
+    if (codeSource != null && codeSource.isFile()) {
+      try {
+        hasher.putBytes(Files.hash(codeSource, Hashing.sha1()).asBytes());
+        hashed = true;
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to hash " + codeSource, e);
+      }
+    }
+    if (!hashed) {
+      // The resources can't be told apart from those of another build, so none are reused.
+      hasher.putLong(System.currentTimeMillis());
+    }
+    return version + "-" + hasher.hash().toString().substring(0, 16);
+  }
+
+  /**
+   * Returns the jar or directory the classes of the build server are loaded from, or
+   * {@code null} if it isn't known.
+   */
+  static File getCodeSource() {
+    CodeSource codeSource = ResourceCache.class.getProtectionDomain().getCodeSource();
+    if (codeSource == null || codeSource.getLocation() == null) {
+      return null;
+    }
+    try {
+      return new File(codeSource.getLocation().toURI());
+    } catch (URISyntaxException e) {
+      return null;
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the file holding the given resource, extracting it if necessary.
+   *
+   * @param resourcePath  the path of the resource, relative to the root of the class path
+   * @throws FileNotFoundException if there is no such resource
+   */
+  static File get(String resourcePath) throws IOException {
+    File file = files.get(resourcePath);
+    if (file != null) {
+      return file;
+    }
+    file = new File(getVersionDir(), resourcePath);
+    if (!file.isFile()) {
+      extract(resourcePath, file);
+    }
+    File previous = files.putIfAbsent(resourcePath, file);
+    return previous == null ? file : previous;
+  }
+
+  /**
+   * Extracts the given resources, skipping the ones that don't exist.
+   *
+   * @return  the number of resources that exist
+   */
+  static int extractAll(Iterable<String> resourcePaths) {
+    int count = 0;
+    for (String resourcePath : resourcePaths) {
+      try {
+        get(resourcePath);
+        count++;
+      } catch (FileNotFoundException e) {
+        LOG.info("No resource " + resourcePath);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to extract " + resourcePath, e);
+      }
+    }
+    return count;
+  }
+
+  private static File getVersionDir() {
+    File dir = versionDir;
+    if (dir == null) {
+      synchronized (ResourceCache.class) {
+        if (versionDir == null) {
+          final File tempDir = Files.createTempDir();
+          Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+              FileUtils.deleteQuietly(tempDir);
+            }
+          });
+          versionDir = tempDir;
+        }
+        dir = versionDir;
+      }
+    }
+    return dir;
+  }
+
+  private static void extract(String resourcePath, File file) throws IOException {
+    URL url = ResourceCache.class.getResource(resourcePath);
+    if (url == null) {
+      throw new FileNotFoundException(resourcePath);
+    }
+    File parent = file.getParentFile();
+    parent.mkdirs();
+    // The prefix of a temporary file must be at least three characters long.
+    File tempFile = File.createTempFile("res", "-" + file.getName() + ".tmp", parent);
+    try {
+      Files.copy(Resources.newInputStreamSupplier(url), tempFile);
+      tempFile.setExecutable(true);
+      if (!tempFile.renameTo(file) && !file.isFile()) {
+        throw new IOException("Unable to rename " + tempFile + " to " + file);
+      }
+    } finally {
+      tempFile.delete();
+    }
+  }
+}
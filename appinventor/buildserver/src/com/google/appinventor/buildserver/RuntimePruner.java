@@ -0,0 +1,400 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.common.version.GitBuildId;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Removes the classes of the component runtime that a project can't reach before the runtime is
+ * dexed.
+ *
+ * <p>The classes that are kept are the classes of the project's components, the classes named in
+ * its manifest, the classes the project's own class files refer to, and, transitively, every
+ * class those refer to. A class refers to every class named anywhere in its constant pool:
+ * its superclass and interfaces, the classes of the fields and methods it uses, and also string
+ * constants that spell a class name, which covers most classes loaded by reflection. Classes are
+ * kept or removed whole, and resources are always kept.
+ *
+ * <p>The references between the classes of a runtime jar are read once per process. The pruned
+ * jar is named after the classes it keeps, so builds with the same components share it, and so
+ * do its pre-dexed version and the merged pre-dexed libraries in the dex cache.
+ *
+ * <p>Every new combination of components adds a pruned jar and the files dexed from it to the
+ * dex cache. Their names contain {@link #PRUNED_PREFIX}, and the least recently used of them are
+ * deleted when their total size grows over a limit.
+ *
+ * <p>Pruning is disabled until {@link #configure} enables it.
+ */
+final class RuntimePruner {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(RuntimePruner.class.getName());
+
+  /**
+   * Part of the name of the pruned jars and of every file made from them.
+   */
+  static final String PRUNED_PREFIX = "pruned-";
+
+  // Files used more recently than this are never evicted, since a running build may still
+  // need them.
+  private static final long MIN_EVICTION_AGE_MS = TimeUnit.MINUTES.toMillis(10);
+
+  private static final String CLASS_SUFFIX = ".class";
+  private static final String COMPONENT_PACKAGE = "com/google/appinventor/components/runtime/";
+
+  // Class names in internal (a/b/C) or source (a.b.C) form, anywhere in a string.
+  private static final Pattern CLASS_NAME_PATTERN =
+      Pattern.compile("[A-Za-z_$][A-Za-z0-9_$]*(?:[./][A-Za-z_$][A-Za-z0-9_$]*)+");
+
+  private static volatile boolean enabled = false;
+  private static volatile long maxCacheBytes = 512L * 1024L * 1024L;
+
+  // The references between the classes of each runtime jar, keyed by its path.
+  private static final ConcurrentMap<String, ImmutableMap<String, ImmutableSet<String>>> graphs =
+      new ConcurrentHashMap<String, ImmutableMap<String, ImmutableSet<String>>>();
+
+  private RuntimePruner() {
+  }
+
+  /**
+   * Enables or disables pruning.
+   *
+   * @param enable  whether to prune
+   * @param maxCacheMb  the maximum size of the pruned jars and the files made from them, in MB
+   */
+  static void configure(boolean enable, int maxCacheMb) {
+    enabled = enable;
+    maxCacheBytes = maxCacheMb * 1024L * 1024L;
+  }
+
+  static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns a copy of the runtime jar without the classes the project can't reach, creating it
+   * if it doesn't exist yet.
+   *
+   * @param runtimeJar  the component runtime jar
+   * @param componentTypes  the component types the project uses
+   * @param classesDir  the directory holding the project's class files
+   * @param manifestFile  the project's AndroidManifest.xml
+   * @param outputDir  the directory where the pruned jar is put
+   * @return  the pruned jar
+   */
+  static File prune(File runtimeJar, Set<String> componentTypes, File classesDir,
+      File manifestFile, File outputDir) throws IOException {
+    ImmutableMap<String, ImmutableSet<String>> graph = getGraph(runtimeJar);
+
+    Set<String> roots = Sets.newHashSet();
+    roots.add(COMPONENT_PACKAGE + "Form");
+    for (String componentType : componentTypes) {
+      roots.add(COMPONENT_PACKAGE + componentType);
+    }
+    addClassNames(Files.toString(manifestFile, Charsets.UTF_8), graph.keySet(), roots);
+    addProjectReferences(classesDir, graph.keySet(), roots);
+    SortedSet<String> kept = findReachable(graph, roots);
+
+    Hasher hasher = Hashing.md5().newHasher();
+    hasher.putString(GitBuildId.getVersion(), Charsets.UTF_8);
+    hasher.putString(runtimeJar.getName(), Charsets.UTF_8);
+    for (String className : kept) {
+      hasher.putString(className, Charsets.UTF_8).putByte((byte) 0);
+    }
+    File prunedJar = new File(outputDir, PRUNED_PREFIX + hasher.hash() + ".jar");
+    if (prunedJar.isFile()) {
+      // Mark the jar as recently used.
+      prunedJar.setLastModified(System.currentTimeMillis());
+    } else {
+      writePrunedJar(runtimeJar, kept, prunedJar);
+      evict(outputDir, maxCacheBytes, System.currentTimeMillis());
+    }
+    LOG.info("Kept " + kept.size() + " of " + graph.size() + " runtime classes in " +
+        prunedJar.getName());
+    return prunedJar;
+  }
+
+  /**
+   * Deletes the least recently used pruned jars and files made from them in the given directory
+   * until they fit in maxBytes. Other files are left alone.
+   */
+  static synchronized void evict(File dir, long maxBytes, long nowMs) {
+    File[] files = dir.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.isFile() && file.getName().contains(PRUNED_PREFIX);
+      }
+    });
+    if (files == null) {
+      return;
+    }
+    long total = 0;
+    for (File file : files) {
+      total += file.length();
+    }
+    if (total <= maxBytes) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+      }
+    });
+    for (File file : files) {
+      if (total <= maxBytes || file.lastModified() > nowMs - MIN_EVICTION_AGE_MS) {
+        break;
+      }
+      long length = file.length();
+      if (file.delete()) {
+        LOG.info("Evicted " + file.getName());
+        total -= length;
+      }
+    }
+  }
+
+  private static void addProjectReferences(File dir, Set<String> knownClasses, Set<String> roots)
+      throws IOException {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.isDirectory()) {
+        addProjectReferences(file, knownClasses, roots);
+      } else if (file.getName().endsWith(CLASS_SUFFIX)) {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+          roots.addAll(readReferences(in, knownClasses));
+        } finally {
+          in.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the classes in the graph that are reachable from the roots.
+   */
+  static SortedSet<String> findReachable(ImmutableMap<String, ImmutableSet<String>> graph,
+      Collection<String> roots) {
+    SortedSet<String> reachable = Sets.newTreeSet();
+    Deque<String> pending = Lists.newLinkedList();
+    for (String root : roots) {
+      if (graph.containsKey(root) && reachable.add(root)) {
+        pending.add(root);
+      }
+    }
+    while (!pending.isEmpty()) {
+      for (String reference : graph.get(pending.remove())) {
+        if (reachable.add(reference)) {
+          pending.add(reference);
+        }
+      }
+    }
+    return reachable;
+  }
+
+  private static ImmutableMap<String, ImmutableSet<String>> getGraph(File runtimeJar)
+      throws IOException {
+    String path = runtimeJar.getAbsolutePath();
+    ImmutableMap<String, ImmutableSet<String>> graph = graphs.get(path);
+    if (graph == null) {
+      graph = readGraph(runtimeJar);
+      graphs.putIfAbsent(path, graph);
+    }
+    return graph;
+  }
+
+  /**
+   * Reads the references between the classes of a jar.
+   */
+  static ImmutableMap<String, ImmutableSet<String>> readGraph(File jar) throws IOException {
+    ZipFile zipFile = new ZipFile(jar);
+    try {
+      Set<String> classNames = Sets.newHashSet();
+      List<ZipEntry> classEntries = Lists.newArrayList();
+      Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        String name = entry.getName();
+        if (name.endsWith(CLASS_SUFFIX)) {
+          classNames.add(name.substring(0, name.length() - CLASS_SUFFIX.length()));
+          classEntries.add(entry);
+        }
+      }
+      ImmutableMap.Builder<String, ImmutableSet<String>> graph = ImmutableMap.builder();
+      for (ZipEntry entry : classEntries) {
+        String name = entry.getName();
+        InputStream in = new BufferedInputStream(zipFile.getInputStream(entry));
+        try {
+          graph.put(name.substring(0, name.length() - CLASS_SUFFIX.length()),
+              ImmutableSet.copyOf(readReferences(in, classNames)));
+        } finally {
+          in.close();
+        }
+      }
+      return graph.build();
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  /**
+   * Returns the classes among the known classes that are named in the constant pool of a class
+   * file.
+   */
+  private static Set<String> readReferences(InputStream classFile, Set<String> knownClasses)
+      throws IOException {
+    Set<String> references = Sets.newHashSet();
+    DataInputStream in = new DataInputStream(classFile);
+    if (in.readInt() != 0xCAFEBABE) {
+      throw new IOException("Not a class file");
+    }
+    in.readUnsignedShort();  // minor version
+    in.readUnsignedShort();  // major version
+    int constantPoolCount = in.readUnsignedShort();
+    for (int i = 1; i < constantPoolCount; i++) {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+        case 1:  // Utf8
+          addClassNames(in.readUTF(), knownClasses, references);
+          break;
+        case 7:  // Class
+        case 8:  // String
+        case 16:  // MethodType
+        case 19:  // Module
+        case 20:  // Package
+          in.skipBytes(2);
+          break;
+        case 15:  // MethodHandle
+          in.skipBytes(3);
+          break;
+        case 3:  // Integer
+        case 4:  // Float
+        case 9:  // Fieldref
+        case 10:  // Methodref
+        case 11:  // InterfaceMethodref
+        case 12:  // NameAndType
+        case 17:  // Dynamic
+        case 18:  // InvokeDynamic
+          in.skipBytes(4);
+          break;
+        case 5:  // Long
+        case 6:  // Double
+          in.skipBytes(8);
+          i++;  // These take two entries.
+          break;
+        default:
+          throw new IOException("Unknown constant pool tag " + tag);
+      }
+    }
+    return references;
+  }
+
+  /**
+   * Adds the known classes named in a string, which may be a class name, a descriptor, a
+   * signature or any other text.
+   */
+  private static void addClassNames(String text, Set<String> knownClasses, Set<String> names) {
+    Matcher matcher = CLASS_NAME_PATTERN.matcher(text);
+    while (matcher.find()) {
+      String candidate = matcher.group().replace('.', '/');
+      if (knownClasses.contains(candidate)) {
+        names.add(candidate);
+      }
+      // In a descriptor such as "(ILa/b/C;)V" the class name follows an L.
+      int slash = candidate.indexOf('/');
+      int l = candidate.indexOf('L');
+      while (l != -1 && l < slash) {
+        String className = candidate.substring(l + 1);
+        if (knownClasses.contains(className)) {
+          names.add(className);
+        }
+        l = candidate.indexOf('L', l + 1);
+      }
+    }
+  }
+
+  private static void writePrunedJar(File runtimeJar, Set<String> kept, File prunedJar)
+      throws IOException {
+    // Write to a temporary file first, so that other builds never see a partial jar.
+    File tmpJar = File.createTempFile(prunedJar.getName(), ".tmp", prunedJar.getParentFile());
+    try {
+      ZipFile zipFile = new ZipFile(runtimeJar);
+      try {
+        ZipOutputStream out =
+            new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmpJar)));
+        try {
+          Enumeration<? extends ZipEntry> entries = zipFile.entries();
+          while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            String name = entry.getName();
+            if (name.endsWith(CLASS_SUFFIX) &&
+                !kept.contains(name.substring(0, name.length() - CLASS_SUFFIX.length()))) {
+              continue;
+            }
+            ZipEntry copy = new ZipEntry(name);
+            copy.setTime(entry.getTime());
+            out.putNextEntry(copy);
+            InputStream in = zipFile.getInputStream(entry);
+            try {
+              ByteStreams.copy(in, out);
+            } finally {
+              in.close();
+            }
+            out.closeEntry();
+          }
+        } finally {
+          out.close();
+        }
+      } finally {
+        zipFile.close();
+      }
+      if (!tmpJar.renameTo(prunedJar) && !prunedJar.isFile()) {
+        throw new IOException("Unable to create " + prunedJar);
+      }
+    } finally {
+      tmpJar.delete();
+    }
+  }
+}
@@ -0,0 +1,230 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.common.version.GitBuildId;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A cache of the class files that Kawa generates for each source file.
+ *
+ * <p>The key of a source file is a hash of its contents, the package prefix given to Kawa, the
+ * component libraries on the Kawa class path and the build server version (which determines the
+ * YAIL runtime and the component runtime). A source file whose key is in the cache doesn't need
+ * to be compiled again: its class files are copied from the cache instead.
+ *
+ * <p>The class files of a source file are the module class (for example {@code Screen1.class})
+ * and its inner classes ({@code Screen1$frame.class} and so on), all in the same directory.
+ *
+ * <p>Entries are stored as directories and the least recently used ones are deleted when the
+ * cache grows over its size limit. The cache is disabled until {@link #configure} is called with
+ * a directory.
+ */
+final class ScreenClassCache {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ScreenClassCache.class.getName());
+
+  private static final String CLASS_SUFFIX = ".class";
+
+  private static volatile File cacheDir = null;
+  private static volatile long maxBytes = 0;
+
+  private ScreenClassCache() {
+  }
+
+  /**
+   * Configures the cache.
+   *
+   * @param dir  the directory holding the cache; {@code null} disables the cache
+   * @param maxMb  the maximum size of the cache, in MB
+   */
+  static void configure(String dir, int maxMb) {
+    if (dir == null) {
+      cacheDir = null;
+      return;
+    }
+    File directory = new File(dir);
+    directory.mkdirs();
+    maxBytes = maxMb * 1024L * 1024L;
+    cacheDir = directory;
+  }
+
+  static boolean isEnabled() {
+    return cacheDir != null;
+  }
+
+  /**
+   * Computes the cache key of a source file.
+   *
+   * @param sourceFile  the Scheme or YAIL source file
+   * @param packagePrefix  the package prefix passed to Kawa
+   * @param libraries  the component libraries on the Kawa class path
+   */
+  static String computeKey(File sourceFile, String packagePrefix, Set<String> libraries)
+      throws IOException {
+    Hasher hasher = Hashing.sha256().newHasher();
+    hasher.putString(GitBuildId.getVersion(), Charsets.UTF_8);
+    hasher.putString(packagePrefix, Charsets.UTF_8);
+    hasher.putInt(libraries.size());
+    for (String library : Sets.newTreeSet(libraries)) {
+      byte[] name = library.getBytes(Charsets.UTF_8);
+      hasher.putInt(name.length).putBytes(name);
+    }
+    hasher.putBytes(Files.toByteArray(sourceFile));
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Copies the cached class files for the given key next to the given module class file.
+   *
+   * @param key  the key returned by {@link #computeKey}
+   * @param classFile  the module class file that Kawa would generate
+   * @return  whether the class files were found in the cache
+   */
+  static boolean restore(String key, File classFile) {
+    File dir = cacheDir;
+    if (dir == null) {
+      return false;
+    }
+    File entry = new File(dir, key);
+    File[] cachedFiles = entry.listFiles();
+    if (cachedFiles == null || !new File(entry, classFile.getName()).isFile()) {
+      return false;
+    }
+    try {
+      File classDir = classFile.getParentFile();
+      classDir.mkdirs();
+      for (File cachedFile : cachedFiles) {
+        Files.copy(cachedFile, new File(classDir, cachedFile.getName()));
+      }
+      // Mark the entry as recently used.
+      entry.setLastModified(System.currentTimeMillis());
+      return true;
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to read cached classes " + key, e);
+      return false;
+    }
+  }
+
+  /**
+   * Adds the class files that Kawa generated for a source file to the cache.
+   *
+   * @param key  the key returned by {@link #computeKey}
+   * @param classFile  the module class file generated by Kawa
+   */
+  static void store(String key, File classFile) {
+    File dir = cacheDir;
+    if (dir == null) {
+      return;
+    }
+    File entry = new File(dir, key);
+    if (entry.isDirectory()) {
+      return;
+    }
+    File[] classFiles = getClassFiles(classFile);
+    if (classFiles == null) {
+      return;
+    }
+    // Copy to a temp directory first, so that concurrent lookups never see a partial entry.
+    File tmpEntry = new File(dir, key + ".tmp" + Thread.currentThread().getId());
+    try {
+      tmpEntry.mkdir();
+      for (File file : classFiles) {
+        Files.copy(file, new File(tmpEntry, file.getName()));
+      }
+      if (!tmpEntry.renameTo(entry)) {
+        deleteEntry(tmpEntry);
+        return;
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to cache classes " + key, e);
+      deleteEntry(tmpEntry);
+      return;
+    }
+    evict(dir);
+  }
+
+  /*
+   * Returns the given module class file and its inner class files.
+   */
+  private static File[] getClassFiles(File classFile) {
+    String name = classFile.getName();
+    final String moduleName = name.substring(0, name.length() - CLASS_SUFFIX.length());
+    return classFile.getParentFile().listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        String fileName = file.getName();
+        return file.isFile() && fileName.endsWith(CLASS_SUFFIX) &&
+            (fileName.equals(moduleName + CLASS_SUFFIX) || fileName.startsWith(moduleName + "$"));
+      }
+    });
+  }
+
+  /*
+   * Deletes the least recently used entries until the cache fits in maxBytes.
+   */
+  private static synchronized void evict(File dir) {
+    File[] entries = dir.listFiles();
+    if (entries == null) {
+      return;
+    }
+    long total = 0;
+    for (File entry : entries) {
+      total += getEntrySize(entry);
+    }
+    if (total <= maxBytes) {
+      return;
+    }
+    Arrays.sort(entries, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+      }
+    });
+    for (File entry : entries) {
+      if (total <= maxBytes) {
+        break;
+      }
+      total -= getEntrySize(entry);
+      deleteEntry(entry);
+    }
+  }
+
+  private static long getEntrySize(File entry) {
+    long size = 0;
+    File[] files = entry.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        size += file.length();
+      }
+    }
+    return size;
+  }
+
+  private static void deleteEntry(File entry) {
+    File[] files = entry.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    entry.delete();
+  }
+}
@@ -0,0 +1,173 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+
+/**
+ * Admits the expensive stages of concurrent builds (Kawa and DX) based on the resources they
+ * need.
+ *
+ * <p>Each stage has its own concurrency limit, and all stages share a budget of child process
+ * RAM. A build that wants to run a stage calls {@link #acquire}, runs the stage and then calls
+ * {@link Permit#release} in a {@code finally} block. A request for more RAM than the whole
+ * budget is admitted once the budget is entirely free, so it can't wait forever.
+ *
+ * <p>The scheduler used by {@link Compiler} is obtained with {@link #getInstance} and replaced
+ * with {@link #configure}. Until it is configured, each stage runs one at a time.
+ */
+final class StageScheduler {
+  /**
+   * The stages that are admitted by the scheduler. YAIL generation, which also compiles screens
+   * in a child process, is admitted as a Kawa run.
+   */
+  enum Stage { KAWA, DX }
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(StageScheduler.class.getName());
+
+  private static volatile StageScheduler instance = new StageScheduler(1, 1, 0);
+
+  private final Map<Stage, Semaphore> stageSlots = new EnumMap<Stage, Semaphore>(Stage.class);
+  private final Map<Stage, Integer> stageLimits = new EnumMap<Stage, Integer>(Stage.class);
+  // The child process RAM budget, in MB. 0 means unlimited.
+  private final int ramBudgetMb;
+  private final Semaphore ramMb;
+
+  /**
+   * Creates a StageScheduler.
+   *
+   * @param maxKawa  the maximum number of simultaneous Kawa compilations
+   * @param maxDx  the maximum number of simultaneous DX runs
+   * @param ramBudgetMb  the total RAM available to child processes, in MB; 0 means unlimited
+   */
+  StageScheduler(int maxKawa, int maxDx, int ramBudgetMb) {
+    stageLimits.put(Stage.KAWA, maxKawa);
+    stageLimits.put(Stage.DX, maxDx);
+    for (Map.Entry<Stage, Integer> limit : stageLimits.entrySet()) {
+      stageSlots.put(limit.getKey(), new Semaphore(limit.getValue(), true));
+    }
+    this.ramBudgetMb = ramBudgetMb;
+    this.ramMb = new Semaphore(ramBudgetMb, true);
+  }
+
+  /**
+   * Replaces the scheduler used by builds. A limit of 0 means one per available processor.
+   *
+   * @param maxKawa  the maximum number of simultaneous Kawa compilations
+   * @param maxDx  the maximum number of simultaneous DX runs
+   * @param ramBudgetMb  the total RAM available to child processes, in MB; 0 means unlimited
+   */
+  static void configure(int maxKawa, int maxDx, int ramBudgetMb) {
+    int processors = Runtime.getRuntime().availableProcessors();
+    instance = new StageScheduler(maxKawa == 0 ? processors : maxKawa,
+        maxDx == 0 ? processors : maxDx, ramBudgetMb);
+    LOG.info("Stage limits: Kawa = " + instance.getLimit(Stage.KAWA) +
+        ", DX = " + instance.getLimit(Stage.DX) +
+        ", child process RAM = " + (ramBudgetMb == 0 ? "unlimited" : ramBudgetMb + " MB"));
+  }
+
+  /**
+   * Returns the child process RAM budget used when none is configured: the physical memory of
+   * the machine, less the build server's heap and the RAM held by the resident Kawa compilers.
+   * The budget always leaves room for one child process. If the physical memory is unknown, child
+   * processes run one at a time.
+   *
+   * @param childProcessRamMb  the RAM a child process may use, in MB
+   * @param residentKawaCompilers  the number of idle Kawa compiler processes kept alive
+   */
+  static int getDefaultRamBudgetMb(int childProcessRamMb, int residentKawaCompilers) {
+    OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+    if (!(osBean instanceof com.sun.management.OperatingSystemMXBean)) {
+      return childProcessRamMb;
+    }
+    long physicalMb = ((com.sun.management.OperatingSystemMXBean) osBean)
+        .getTotalPhysicalMemorySize() / (1024 * 1024);
+    long serverHeapMb = Runtime.getRuntime().maxMemory() / (1024 * 1024);
+    return computeRamBudgetMb(physicalMb, serverHeapMb, childProcessRamMb,
+        residentKawaCompilers);
+  }
+
+  static int computeRamBudgetMb(long physicalMb, long serverHeapMb, int childProcessRamMb,
+      int residentKawaCompilers) {
+    long budgetMb = physicalMb - serverHeapMb - (long) residentKawaCompilers * childProcessRamMb;
+    return (int) Math.min(Integer.MAX_VALUE, Math.max(childProcessRamMb, budgetMb));
+  }
+
+  static StageScheduler getInstance() {
+    return instance;
+  }
+
+  /**
+   * Waits until the given stage can run with the given amount of child process RAM.
+   *
+   * @param stage  the stage to run
+   * @param requiredRamMb  the RAM the stage's child process may use, in MB
+   * @return  a permit that must be released when the stage is done
+   */
+  Permit acquire(Stage stage, int requiredRamMb) {
+    Semaphore slots = stageSlots.get(stage);
+    slots.acquireUninterruptibly();
+    int ram = 0;
+    if (ramBudgetMb > 0) {
+      ram = Math.max(0, Math.min(requiredRamMb, ramBudgetMb));
+      ramMb.acquireUninterruptibly(ram);
+    }
+    return new Permit(slots, ram);
+  }
+
+  int getLimit(Stage stage) {
+    return stageLimits.get(stage);
+  }
+
+  int getActiveCount(Stage stage) {
+    return stageLimits.get(stage) - stageSlots.get(stage).availablePermits();
+  }
+
+  int getWaitingCount(Stage stage) {
+    return stageSlots.get(stage).getQueueLength();
+  }
+
+  int getRamBudgetMb() {
+    return ramBudgetMb;
+  }
+
+  int getAvailableRamMb() {
+    return ramBudgetMb == 0 ? -1 : ramMb.availablePermits();
+  }
+
+  /**
+   * Admission to run a stage.
+   */
+  final class Permit {
+    private final Semaphore slots;
+    private final int ram;
+    private boolean released;
+
+    private Permit(Semaphore slots, int ram) {
+      this.slots = slots;
+      this.ram = ram;
+    }
+
+    /**
+     * Returns the resources held by this permit. Calling this more than once has no effect.
+     */
+    synchronized void release() {
+      if (!released) {
+        released = true;
+        if (ram > 0) {
+          ramMb.release(ram);
+        }
+        slots.release();
+      }
+    }
+  }
+}
@@ -0,0 +1,90 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ApkCache class.
+ *
+ */
+public class ApkCacheTest extends TestCase {
+  private File tempDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    ApkCache.configure(new File(tempDir, "cache").getPath(), 1);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    ApkCache.configure(null, 0);
+  }
+
+  public void testKeyDependsOnContentsNotOrder() throws Exception {
+    String properties = "youngandroidproject/project.properties";
+    ZipFile a = createZip("a.zip", "src/Screen1.yail", "one", properties, "p");
+    ZipFile b = createZip("b.zip", properties, "p", "src/Screen1.yail", "one");
+    ZipFile c = createZip("c.zip", "src/Screen1.yail", "two", properties, "p");
+    assertEquals(ApkCache.computeKey(a, false), ApkCache.computeKey(b, false));
+    assertFalse(ApkCache.computeKey(a, false).equals(ApkCache.computeKey(c, false)));
+    assertFalse(ApkCache.computeKey(a, false).equals(ApkCache.computeKey(a, true)));
+  }
+
+  public void testProjectWithoutKeystoreIsNotCached() throws Exception {
+    ZipFile zip = new ZipFile(writeZip("nokeystore.zip", "src/Screen1.yail", "one"));
+    assertNull(ApkCache.computeKey(zip, false));
+  }
+
+  public void testStoreAndLookup() throws Exception {
+    String key = ApkCache.computeKey(createZip("a.zip", "src/Screen1.yail", "one"), false);
+    assertNull(ApkCache.lookup(key));
+
+    File apk = new File(tempDir, "HelloPurr.apk");
+    Files.write(new byte[] { 1, 2, 3 }, apk);
+    ApkCache.store(key, apk, "Build messages");
+
+    ApkCache.CachedBuild cachedBuild = ApkCache.lookup(key);
+    assertNotNull(cachedBuild);
+    assertEquals("HelloPurr.apk", cachedBuild.getApkName());
+    assertEquals("Build messages", cachedBuild.getMessages());
+    assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, Files.toByteArray(cachedBuild.getApk())));
+  }
+
+  // Creates a project zip with a keystore and the given names and contents.
+  private ZipFile createZip(String name, String... namesAndContents) throws IOException {
+    String[] withKeystore = new String[namesAndContents.length + 2];
+    System.arraycopy(namesAndContents, 0, withKeystore, 0, namesAndContents.length);
+    withKeystore[namesAndContents.length] = YoungAndroidConstants.PROJECT_KEYSTORE_LOCATION;
+    withKeystore[namesAndContents.length + 1] = "keystore";
+    return new ZipFile(writeZip(name, withKeystore));
+  }
+
+  private File writeZip(String name, String... namesAndContents) throws IOException {
+    File file = new File(tempDir, name);
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+    try {
+      for (int i = 0; i < namesAndContents.length; i += 2) {
+        out.putNextEntry(new ZipEntry(namesAndContents[i]));
+        out.write(namesAndContents[i + 1].getBytes("UTF-8"));
+        out.closeEntry();
+      }
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+}
@@ -0,0 +1,172 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Strings;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509v1CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v1CertificateBuilder;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ApkSigner class.
+ *
+ */
+public class ApkSignerTest extends TestCase {
+  private File tempDir;
+  private X509Certificate certificate;
+  private ApkSigner signer;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(1024);
+    KeyPair keyPair = generator.generateKeyPair();
+    X500Name name = new X500Name("CN=Test");
+    X509v1CertificateBuilder builder = new JcaX509v1CertificateBuilder(name, BigInteger.ONE,
+        new Date(), new Date(System.currentTimeMillis() + 86400000L), name, keyPair.getPublic());
+    certificate = new JcaX509CertificateConverter().getCertificate(
+        builder.build(new JcaContentSignerBuilder("SHA1withRSA").build(keyPair.getPrivate())));
+    signer = new ApkSigner(keyPair.getPrivate(), certificate);
+  }
+
+  public void testSignedApkVerifies() throws Exception {
+    File unsignedApk = createUnsignedApk();
+    File signedApk = new File(tempDir, "signed.apk");
+    signer.sign(unsignedApk, signedApk);
+
+    // The JDK's own JAR verification can't be used, since newer JDKs ignore SHA-1 signatures.
+    ZipFile zipFile = new ZipFile(signedApk);
+    try {
+      byte[] manifestBytes = read(zipFile, "META-INF/MANIFEST.MF");
+      Manifest manifest = new Manifest(new ByteArrayInputStream(manifestBytes));
+      int signedEntries = 0;
+      for (ZipEntry entry : Collections.list(zipFile.entries())) {
+        if (!entry.getName().startsWith("META-INF/")) {
+          assertEquals(entry.getName(), sha1(read(zipFile, entry.getName())),
+              manifest.getAttributes(entry.getName()).getValue("SHA1-Digest"));
+          signedEntries++;
+        }
+      }
+      assertEquals(3, signedEntries);
+
+      byte[] signatureBytes = read(zipFile, "META-INF/CERT.SF");
+      Manifest signature = new Manifest(new ByteArrayInputStream(signatureBytes));
+      assertEquals(sha1(manifestBytes),
+          signature.getMainAttributes().getValue("SHA1-Digest-Manifest"));
+
+      CMSSignedData signedData = new CMSSignedData(new CMSProcessableByteArray(signatureBytes),
+          read(zipFile, "META-INF/CERT.RSA"));
+      SignerInformation signerInfo =
+          (SignerInformation) signedData.getSignerInfos().getSigners().iterator().next();
+      assertTrue(signerInfo.verify(new JcaSimpleSignerInfoVerifierBuilder().build(certificate)));
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  public void testStoredEntriesAreAligned() throws Exception {
+    File signedApk = new File(tempDir, "signed.apk");
+    signer.sign(createUnsignedApk(), signedApk);
+
+    ByteBuffer apk = ByteBuffer.wrap(Files.toByteArray(signedApk)).order(ByteOrder.LITTLE_ENDIAN);
+    // Find the end of central directory record, then walk the central directory.
+    int end = apk.limit() - 22;
+    while (apk.getInt(end) != 0x06054b50) {
+      end--;
+    }
+    int entries = apk.getShort(end + 10) & 0xffff;
+    int offset = apk.getInt(end + 16);
+    int storedEntries = 0;
+    for (int i = 0; i < entries; i++) {
+      assertEquals(0x02014b50, apk.getInt(offset));
+      int method = apk.getShort(offset + 10);
+      int localHeader = apk.getInt(offset + 42);
+      if (method == ZipEntry.STORED) {
+        int dataOffset = localHeader + 30 + apk.getShort(localHeader + 26) +
+            apk.getShort(localHeader + 28);
+        assertEquals(0, dataOffset % ApkSigner.ALIGNMENT);
+        storedEntries++;
+      }
+      offset += 46 + apk.getShort(offset + 28) + apk.getShort(offset + 30) +
+          apk.getShort(offset + 32);
+    }
+    assertEquals(2, storedEntries);
+  }
+
+  private File createUnsignedApk() throws Exception {
+    File apk = new File(tempDir, "unsigned.apk");
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(apk));
+    try {
+      out.putNextEntry(new ZipEntry("classes.dex"));
+      out.write(Strings.repeat("dex", 1000).getBytes("UTF-8"));
+      out.closeEntry();
+      writeStoredEntry(out, "res/drawable/a.png", new byte[] { 1, 2, 3 });
+      // A name long enough to need continuation lines in the manifest.
+      writeStoredEntry(out, "assets/" + Strings.repeat("long_name_", 10) + ".png",
+          new byte[] { 4, 5, 6, 7, 8 });
+    } finally {
+      out.close();
+    }
+    return apk;
+  }
+
+  private static byte[] read(ZipFile zipFile, String name) throws Exception {
+    InputStream in = zipFile.getInputStream(zipFile.getEntry(name));
+    try {
+      return ByteStreams.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String sha1(byte[] content) throws Exception {
+    return BaseEncoding.base64().encode(MessageDigest.getInstance("SHA1").digest(content));
+  }
+
+  private static void writeStoredEntry(ZipOutputStream out, String name, byte[] content)
+      throws Exception {
+    ZipEntry entry = new ZipEntry(name);
+    entry.setMethod(ZipEntry.STORED);
+    entry.setSize(content.length);
+    CRC32 crc = new CRC32();
+    crc.update(content);
+    entry.setCrc(crc.getValue());
+    out.putNextEntry(entry);
+    out.write(content);
+    out.closeEntry();
+  }
+}
@@ -0,0 +1,76 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import org.codehaus.jettison.json.JSONObject;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildProgress class.
+ *
+ */
+public class BuildProgressTest extends TestCase {
+
+  public void testBuildsHaveTheirOwnProgress() throws Exception {
+    BuildProgress first = BuildProgress.register("first");
+    BuildProgress second = BuildProgress.register("second");
+    first.update("dx", 35);
+    second.update("aapt", 85);
+
+    assertSame(first, BuildProgress.get("first"));
+    assertEquals("dx", BuildProgress.get("first").getStage());
+    assertEquals(35, BuildProgress.get("first").getPercent());
+    assertEquals(85, BuildProgress.get("second").getPercent());
+    assertNull(BuildProgress.get("third"));
+
+    // Registering the same id again starts over.
+    BuildProgress again = BuildProgress.register("first");
+    assertSame(again, BuildProgress.get("first"));
+    assertEquals("queued", again.getStage());
+    assertEquals(0, again.getPercent());
+  }
+
+  public void testFinish() throws Exception {
+    BuildProgress progress = BuildProgress.register("finished");
+    progress.update("kawa", 20);
+    progress.finish(false);
+
+    JSONObject json = progress.toJson();
+    assertEquals("finished", json.getString("build-id"));
+    assertEquals("failed", json.getString("stage"));
+    assertEquals(100, json.getInt("percent"));
+    assertTrue(json.getBoolean("finished"));
+    assertFalse(json.getBoolean("succeeded"));
+  }
+
+  public void testAwaitChange() throws Exception {
+    final BuildProgress progress = BuildProgress.register("waiting");
+    long since = progress.getUpdateTimeMs();
+
+    // Nothing changes, so waiting times out.
+    long start = System.currentTimeMillis();
+    progress.awaitChange(since, 50);
+    assertTrue(System.currentTimeMillis() - start >= 50);
+
+    Thread updater = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          // ignored
+        }
+        progress.update("manifest", 15);
+      }
+    };
+    updater.start();
+    progress.awaitChange(since, 5000);
+    assertEquals(15, progress.getPercent());
+    assertTrue(progress.getUpdateTimeMs() > since);
+    updater.join();
+  }
+}
@@ -0,0 +1,243 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2012 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildQueueExecutor class.
+ *
+ * @author lizlooney@google.com (Liz Looney)
+ */
+public class BuildQueueExecutorTest extends TestCase {
+  public void testAdditionalTaskIsRejected() throws Exception {
+    // Create the BuildQueueExecutor with capacity 10 and no queue.
+    int maxCapacity = 10;
+    BuildQueueExecutor executor = new BuildQueueExecutor(maxCapacity, 0);
+
+    // Execute the maximum number of tasks, which will all wait until I notify them via the signal.
+    final Object signal = new Object();
+    for (int i = 0; i < maxCapacity; i++) {
+      executor.execute(new TaskThatWaitsForSignal(signal));
+    }
+
+    // Now the executor should be at maximum capacity.
+    assertEquals(maxCapacity, executor.getActiveTaskCount());
+
+    // Try to execute another task. We expect it to be rejected.
+    try {
+      executor.execute(new TaskThatDoesNothing());
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+
+    // Notify the signal so the active tasks can complete.
+    synchronized (signal) {
+      signal.notifyAll();
+    }
+  }
+
+  public void testQueuedTasksRunFairlyAndByPriority() throws Exception {
+    BuildQueueExecutor executor = new BuildQueueExecutor(1, 5);
+
+    final CountDownLatch signal = new CountDownLatch(1);
+    assertEquals(0, executor.submit(new TaskThatWaitsForLatch(signal), "alice", false));
+
+    List<String> order = new CopyOnWriteArrayList<String>();
+    assertEquals(1, executor.submit(new RecordingTask(order, "alice-1"), "alice", false));
+    assertEquals(2, executor.submit(new RecordingTask(order, "alice-2"), "alice", false));
+    // Bob's first build goes ahead of Alice's second one.
+    assertEquals(2, executor.submit(new RecordingTask(order, "bob-1"), "bob", false));
+    // A companion build goes ahead of everything else.
+    assertEquals(1, executor.submit(new RecordingTask(order, "companion"), "carol", true));
+    assertEquals(4, executor.getQueuedTaskCount());
+
+    // The queue holds 5 tasks.
+    executor.submit(new RecordingTask(order, "alice-3"), "alice", false);
+    try {
+      executor.submit(new TaskThatDoesNothing(), "dave", false);
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+
+    // Release the active task so the queued tasks can run.
+    signal.countDown();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (executor.getCompletedTaskCount() < 6 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(6, executor.getCompletedTaskCount());
+    assertEquals(0, executor.getActiveTaskCount());
+    assertEquals(Arrays.asList("companion", "alice-1", "bob-1", "alice-2", "alice-3"), order);
+  }
+
+  public void testAdmissionHoldsBackTasks() throws Exception {
+    final AtomicBoolean admit = new AtomicBoolean(false);
+    BuildQueueExecutor executor = new BuildQueueExecutor(3, 5,
+        new BuildQueueExecutor.Admission() {
+          @Override
+          public boolean canStart(int activeTasks) {
+            return admit.get();
+          }
+        });
+
+    // The first task starts even though the admission refuses it, since nothing else is active.
+    CountDownLatch first = new CountDownLatch(1);
+    assertEquals(0, executor.submit(new TaskThatWaitsForLatch(first), "alice", false));
+    CountDownLatch second = new CountDownLatch(1);
+    assertEquals(1, executor.submit(new TaskThatWaitsForLatch(second), "bob", false));
+    CountDownLatch third = new CountDownLatch(1);
+    assertEquals(2, executor.submit(new TaskThatWaitsForLatch(third), "carol", false));
+    assertEquals(1, executor.getActiveTaskCount());
+
+    // Once the admission lets them, the waiting tasks start when the first one finishes.
+    admit.set(true);
+    first.countDown();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (executor.getActiveTaskCount() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(2, executor.getActiveTaskCount());
+    assertEquals(0, executor.getQueuedTaskCount());
+
+    second.countDown();
+    third.countDown();
+  }
+
+  public void testHeldBackTasksWaitWithoutAQueue() throws Exception {
+    final AtomicInteger admissionChecks = new AtomicInteger();
+    final AtomicBoolean admit = new AtomicBoolean(false);
+    BuildQueueExecutor executor = new BuildQueueExecutor(3, 0,
+        new BuildQueueExecutor.Admission() {
+          @Override
+          public boolean canStart(int activeTasks) {
+            admissionChecks.incrementAndGet();
+            return admit.get();
+          }
+        });
+
+    CountDownLatch first = new CountDownLatch(1);
+    assertEquals(0, executor.submit(new TaskThatWaitsForLatch(first), "alice", false));
+    // The tasks held back by the admission wait in the place of the two free slots.
+    CountDownLatch second = new CountDownLatch(1);
+    assertEquals(1, executor.submit(new TaskThatWaitsForLatch(second), "bob", false));
+    CountDownLatch third = new CountDownLatch(1);
+    assertEquals(2, executor.submit(new TaskThatWaitsForLatch(third), "carol", false));
+    try {
+      executor.submit(new TaskThatWaitsForLatch(new CountDownLatch(0)), "dave", false);
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+    assertEquals(2, executor.getHeldBackTaskCount());
+
+    // Asking the admission again doesn't count the tasks again.
+    first.countDown();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (executor.getQueuedTaskCount() > 1 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue(admissionChecks.get() > 1);
+    assertEquals(2, executor.getHeldBackTaskCount());
+
+    second.countDown();
+    third.countDown();
+  }
+
+  public void testFailingTaskDoesNotLoseQueuedTasks() throws Exception {
+    BuildQueueExecutor executor = new BuildQueueExecutor(1, 5);
+
+    final CountDownLatch signal = new CountDownLatch(1);
+    assertEquals(0, executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          signal.await();
+        } catch (InterruptedException e) {
+          // ignored
+        }
+        throw new OutOfMemoryError("simulated");
+      }
+    }, "alice", false));
+    List<String> order = new CopyOnWriteArrayList<String>();
+    assertEquals(1, executor.submit(new RecordingTask(order, "bob-1"), "bob", false));
+
+    // The queued task still runs after the active one throws, and the slot is given back.
+    signal.countDown();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (executor.getCompletedTaskCount() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(Arrays.asList("bob-1"), order);
+    assertEquals(0, executor.getActiveTaskCount());
+    assertEquals(0, executor.submit(new TaskThatDoesNothing(), "carol", false));
+  }
+
+  private static class TaskThatWaitsForSignal implements Runnable {
+    private final Object signal;
+    private TaskThatWaitsForSignal(Object signal) {
+      this.signal = signal;
+    }
+
+    @Override
+    public void run() {
+      synchronized (signal) {
+        try {
+          // Wait for the signal.
+          signal.wait();
+        } catch (InterruptedException e) {
+          // ignored
+        }
+      }
+    }
+  }
+
+  private static class TaskThatWaitsForLatch implements Runnable {
+    private final CountDownLatch latch;
+    private TaskThatWaitsForLatch(CountDownLatch latch) {
+      this.latch = latch;
+    }
+
+    @Override
+    public void run() {
+      try {
+        latch.await();
+      } catch (InterruptedException e) {
+        // ignored
+      }
+    }
+  }
+
+  private static class TaskThatDoesNothing implements Runnable {
+    @Override
+    public void run() {
+    }
+  }
+
+  private static class RecordingTask implements Runnable {
+    private final List<String> order;
+    private final String name;
+    private RecordingTask(List<String> order, String name) {
+      this.order = order;
+      this.name = name;
+    }
+
+    @Override
+    public void run() {
+      order.add(name);
+    }
+  }
+}
@@ -0,0 +1,84 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildWorkspace class.
+ *
+ */
+public class BuildWorkspaceTest extends TestCase {
+  private static final long MB = 1024L * 1024L;
+
+  private File ramDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    ramDir = Files.createTempDir();
+    // Room for two builds of 1 MB projects: 2 * (1 MB + 2 * 1 MB).
+    BuildWorkspace.configure(ramDir.getPath(), 6, 1);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    BuildWorkspace.configure(null, 0, 0);
+    FileUtils.deleteDirectory(ramDir);
+  }
+
+  public void testFallsBackToDiskOverBudget() throws Exception {
+    int fallbacks = BuildWorkspace.getFallbackCount();
+    BuildWorkspace first = BuildWorkspace.create(MB);
+    BuildWorkspace second = BuildWorkspace.create(MB);
+    assertEquals(ramDir, first.getRoot().getParentFile());
+    assertEquals(ramDir, second.getRoot().getParentFile());
+    assertEquals(6 * MB, BuildWorkspace.getReservedBytes());
+
+    BuildWorkspace third = BuildWorkspace.create(MB);
+    assertFalse(ramDir.equals(third.getRoot().getParentFile()));
+    assertTrue(third.getRoot().isDirectory());
+    assertEquals(fallbacks + 1, BuildWorkspace.getFallbackCount());
+
+    // Deleting a RAM workspace makes room for the next one.
+    first.delete();
+    assertFalse(first.getRoot().exists());
+    assertEquals(3 * MB, BuildWorkspace.getReservedBytes());
+    BuildWorkspace fourth = BuildWorkspace.create(MB);
+    assertEquals(ramDir, fourth.getRoot().getParentFile());
+
+    second.delete();
+    third.delete();
+    fourth.delete();
+    assertFalse(third.getRoot().exists());
+    assertEquals(0, BuildWorkspace.getReservedBytes());
+  }
+
+  public void testLargeProjectGoesToDisk() throws Exception {
+    BuildWorkspace workspace = BuildWorkspace.create(10 * MB);
+    try {
+      assertFalse(ramDir.equals(workspace.getRoot().getParentFile()));
+      assertEquals(0, BuildWorkspace.getReservedBytes());
+    } finally {
+      workspace.delete();
+    }
+  }
+
+  public void testUnconfiguredWorkspacesAreOnDisk() throws Exception {
+    BuildWorkspace.configure(null, 0, 0);
+    BuildWorkspace workspace = BuildWorkspace.create(MB);
+    try {
+      assertEquals(new File(System.getProperty("java.io.tmpdir")).getCanonicalFile(),
+          workspace.getRoot().getParentFile().getCanonicalFile());
+    } finally {
+      workspace.delete();
+    }
+  }
+}
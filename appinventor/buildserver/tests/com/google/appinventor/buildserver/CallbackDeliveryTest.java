@@ -0,0 +1,159 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests CallbackDelivery class.
+ *
+ */
+public class CallbackDeliveryTest extends TestCase {
+  private HttpServer server;
+  private String callbackUrl;
+  private File resultZip;
+  private CallbackDelivery delivery;
+
+  // The response codes the server returns, in order. Once they are used up it returns 200.
+  private final List<Integer> responseCodes =
+      Collections.synchronizedList(new LinkedList<Integer>());
+  // The bodies of the requests the server received.
+  private final List<byte[]> bodies = Collections.synchronizedList(new LinkedList<byte[]>());
+
+  private final BlockingQueue<Boolean> results = new ArrayBlockingQueue<Boolean>(10);
+  private final CallbackDelivery.Listener listener = new CallbackDelivery.Listener() {
+    @Override
+    public void finished(boolean delivered) {
+      results.add(delivered);
+    }
+  };
+
+  @Override
+  protected void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/callback", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        try {
+          bodies.add(ByteStreams.toByteArray(in));
+        } finally {
+          in.close();
+        }
+        int responseCode = responseCodes.isEmpty() ? 200 : responseCodes.remove(0);
+        exchange.sendResponseHeaders(responseCode, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+    callbackUrl = "http://localhost:" + server.getAddress().getPort() + "/callback";
+
+    resultZip = File.createTempFile("result", ".zip");
+    byte[] content = new byte[200000];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) i;
+    }
+    Files.write(content, resultZip);
+
+    delivery = new CallbackDelivery(2, 4, 3, 10);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delivery.shutdown(0);
+    server.stop(0);
+    resultZip.delete();
+  }
+
+  public void testDeliversTheZip() throws Exception {
+    delivery.deliver(callbackUrl, resultZip, listener);
+
+    assertEquals(Boolean.TRUE, results.poll(10, TimeUnit.SECONDS));
+    assertEquals(1, bodies.size());
+    assertTrue(Arrays.equals(Files.toByteArray(resultZip), bodies.get(0)));
+    assertEquals(1, delivery.getDeliveredCount());
+    assertEquals(0, delivery.getRetryCount());
+    assertEquals(0, delivery.getPendingCount());
+  }
+
+  public void testRetriesServerErrors() throws Exception {
+    responseCodes.add(503);
+    responseCodes.add(500);
+    delivery.deliver(callbackUrl, resultZip, listener);
+
+    assertEquals(Boolean.TRUE, results.poll(10, TimeUnit.SECONDS));
+    assertEquals(3, bodies.size());
+    assertTrue(Arrays.equals(Files.toByteArray(resultZip), bodies.get(2)));
+    assertEquals(2, delivery.getRetryCount());
+    assertEquals(1, delivery.getDeliveredCount());
+  }
+
+  public void testGivesUpAfterMaxAttempts() throws Exception {
+    responseCodes.addAll(Arrays.asList(503, 503, 503, 503));
+    delivery.deliver(callbackUrl, resultZip, listener);
+
+    assertEquals(Boolean.FALSE, results.poll(10, TimeUnit.SECONDS));
+    assertEquals(3, bodies.size());
+    assertEquals(1, delivery.getFailedCount());
+    assertEquals(0, delivery.getPendingCount());
+  }
+
+  public void testDoesNotRetryClientErrors() throws Exception {
+    responseCodes.add(404);
+    delivery.deliver(callbackUrl, resultZip, listener);
+
+    assertEquals(Boolean.FALSE, results.poll(10, TimeUnit.SECONDS));
+    assertEquals(1, bodies.size());
+    assertEquals(0, delivery.getRetryCount());
+  }
+
+  public void testRetriesUnreachableServer() throws Exception {
+    server.stop(0);
+    delivery.deliver(callbackUrl, resultZip, listener);
+
+    assertEquals(Boolean.FALSE, results.poll(10, TimeUnit.SECONDS));
+    assertEquals(2, delivery.getRetryCount());
+    assertEquals(1, delivery.getFailedCount());
+  }
+
+  public void testShutdownWaitsForPendingDeliveries() throws Exception {
+    responseCodes.add(503);
+    delivery.deliver(callbackUrl, resultZip, listener);
+
+    // The retry is pending, and shutting down waits for it.
+    assertEquals(0, delivery.shutdown(10000));
+    assertEquals(Boolean.TRUE, results.poll(0, TimeUnit.SECONDS));
+    assertEquals(2, bodies.size());
+  }
+
+  public void testShutdownDropsDeliveriesThatDontFinish() throws Exception {
+    CallbackDelivery slowDelivery = new CallbackDelivery(1, 4, 3, 60000);
+    responseCodes.add(503);
+    slowDelivery.deliver(callbackUrl, resultZip, listener);
+
+    // The retry waits for a minute, longer than shutting down does.
+    assertEquals(1, slowDelivery.shutdown(200));
+  }
+}
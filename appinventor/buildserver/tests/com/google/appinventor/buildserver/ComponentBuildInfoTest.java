@@ -0,0 +1,47 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ComponentBuildInfo class.
+ *
+ */
+public class ComponentBuildInfoTest extends TestCase {
+  private static final String BUILD_INFO = "[" +
+      "{\"name\": \"Sound\", \"permissions\": [\"android.permission.VIBRATE\"], " +
+      "\"libraries\": [], \"native\": [], \"assets\": []}, " +
+      "{\"name\": \"Twitter\", " +
+      "\"permissions\": [\"android.permission.INTERNET\"], " +
+      "\"libraries\": [\"twitter4j.jar\"], \"native\": [], \"assets\": []}, " +
+      "{\"name\": \"Web\", \"permissions\": [\"android.permission.INTERNET\"], " +
+      "\"libraries\": [], \"native\": [], \"assets\": [\"web.js\"]}]";
+
+  public void testComponentInfo() throws Exception {
+    ComponentBuildInfo buildInfo = ComponentBuildInfo.parse(BUILD_INFO);
+    assertEquals(ImmutableSet.of("android.permission.VIBRATE"),
+        buildInfo.get("permissions", "Sound"));
+    assertEquals(ImmutableSet.of("twitter4j.jar"), buildInfo.get("libraries", "Twitter"));
+    assertEquals(ImmutableSet.of(), buildInfo.get("libraries", "Sound"));
+    // Unknown component types and targets have no info.
+    assertEquals(ImmutableSet.of(), buildInfo.get("permissions", "Canvas"));
+    assertEquals(ImmutableSet.of(), buildInfo.get("unknown", "Sound"));
+  }
+
+  public void testInfoOfSeveralComponents() throws Exception {
+    ComponentBuildInfo buildInfo = ComponentBuildInfo.parse(BUILD_INFO);
+    assertEquals(ImmutableSet.of("android.permission.INTERNET"),
+        buildInfo.get("permissions", Arrays.asList("Twitter", "Web")));
+    assertEquals(ImmutableSet.of("android.permission.VIBRATE", "android.permission.INTERNET"),
+        buildInfo.getAll("permissions"));
+    assertEquals(ImmutableSet.of("web.js"), buildInfo.getAll("assets"));
+  }
+}
@@ -0,0 +1,147 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Tests InFlightBuilds class.
+ *
+ */
+public class InFlightBuildsTest extends TestCase {
+  private final InFlightBuilds inFlightBuilds = new InFlightBuilds();
+
+  public void testIdenticalRequestsShareABuild() throws Exception {
+    InFlightBuilds.Build build = inFlightBuilds.startOrAttach("alice/1234", "first", "http://a/1");
+    assertNotNull(build);
+    assertSame(build.getProgress(), BuildProgress.get("first"));
+
+    assertNull(inFlightBuilds.startOrAttach("alice/1234", "second", "http://a/2"));
+    assertNull(inFlightBuilds.startOrAttach("alice/1234", "first", "http://a/3"));
+    assertEquals(1, inFlightBuilds.getCount());
+    assertEquals(2, inFlightBuilds.getAttachedRequestCount());
+
+    // The attached requests share the progress of the build.
+    build.getProgress().update("dx", 35);
+    assertSame(build.getProgress(), BuildProgress.get("second"));
+    assertSame(build.getProgress(), BuildProgress.get("first"));
+
+    assertEquals(ImmutableList.of("http://a/2", "http://a/3"), inFlightBuilds.close(build));
+    assertEquals(0, inFlightBuilds.getCount());
+  }
+
+  public void testDifferentKeysDontShare() throws Exception {
+    InFlightBuilds.Build alice = inFlightBuilds.startOrAttach("alice/1234", "alice", "http://a");
+    InFlightBuilds.Build bob = inFlightBuilds.startOrAttach("bob/1234", "bob", "http://b");
+    assertNotNull(alice);
+    assertNotNull(bob);
+    assertNotSame(alice.getProgress(), bob.getProgress());
+    assertEquals(2, inFlightBuilds.getCount());
+    assertEquals(0, inFlightBuilds.getAttachedRequestCount());
+    assertTrue(inFlightBuilds.close(alice).isEmpty());
+    assertTrue(inFlightBuilds.close(bob).isEmpty());
+  }
+
+  public void testRequestAfterCloseStartsANewBuild() throws Exception {
+    InFlightBuilds.Build first = inFlightBuilds.startOrAttach("alice/1234", "build", "http://a/1");
+    inFlightBuilds.close(first);
+
+    InFlightBuilds.Build second = inFlightBuilds.startOrAttach("alice/1234", "build", "http://a/2");
+    assertNotNull(second);
+    assertNotSame(first, second);
+
+    // Closing the old build again doesn't close the new one.
+    inFlightBuilds.close(first);
+    assertEquals(1, inFlightBuilds.getCount());
+    assertNull(inFlightBuilds.startOrAttach("alice/1234", "build", "http://a/3"));
+    assertEquals(ImmutableList.of("http://a/3"), inFlightBuilds.close(second));
+  }
+
+  public void testAttachedRequestsGetAFailedResultWhenTheBuildIsRejected() throws Exception {
+    final BlockingQueue<byte[]> bodies = new ArrayBlockingQueue<byte[]>(10);
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/callback", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        try {
+          bodies.add(ByteStreams.toByteArray(in));
+        } finally {
+          in.close();
+        }
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+    CallbackDelivery delivery = new CallbackDelivery(1, 4, 1, 10);
+    BuildQueueExecutor executor = new BuildQueueExecutor(1, 0);
+    final CountDownLatch release = new CountDownLatch(1);
+    try {
+      String callbackUrl = "http://localhost:" + server.getAddress().getPort() + "/callback";
+      // The only build slot is busy and nothing can be queued.
+      executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }, "carol", false);
+
+      InFlightBuilds.Build build = inFlightBuilds.startOrAttach("alice/1234", "first",
+          callbackUrl + "/1");
+      assertNull(inFlightBuilds.startOrAttach("alice/1234", "second", callbackUrl + "/2"));
+      try {
+        executor.submit(new Runnable() {
+          @Override
+          public void run() {
+          }
+        }, "alice", false);
+        fail();
+      } catch (RejectedExecutionException e) {
+        inFlightBuilds.abandon(build, "At capacity", delivery);
+      }
+
+      byte[] body = bodies.poll(10, TimeUnit.SECONDS);
+      assertNotNull("The attached request got no callback", body);
+      ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(body));
+      ZipEntry entry = zip.getNextEntry();
+      assertEquals("build.out", entry.getName());
+      JSONObject buildOutput = new JSONObject(new String(ByteStreams.toByteArray(zip), "UTF-8"));
+      assertEquals(Result.GENERAL_FAILURE, buildOutput.getInt("result"));
+      assertEquals("At capacity", buildOutput.getString("error"));
+      assertEquals(0, inFlightBuilds.getCount());
+    } finally {
+      release.countDown();
+      delivery.shutdown(0);
+      server.stop(0);
+    }
+  }
+}
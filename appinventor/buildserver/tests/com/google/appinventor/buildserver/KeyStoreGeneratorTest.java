@@ -0,0 +1,46 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests KeyStoreGenerator class.
+ *
+ */
+public class KeyStoreGeneratorTest extends TestCase {
+  public void testGenerateKeyStore() throws Exception {
+    File keyStoreFile = new File(Files.createTempDir(), "android.keystore");
+    ProjectBuilder.createKeyStore("\"quoted\" user", keyStoreFile.getParentFile(),
+        keyStoreFile.getName());
+
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    InputStream in = new FileInputStream(keyStoreFile);
+    try {
+      keyStore.load(in, "android".toCharArray());
+    } finally {
+      in.close();
+    }
+    assertTrue(keyStore.getKey("AndroidKey", "android".toCharArray()) instanceof PrivateKey);
+    X509Certificate certificate = (X509Certificate) keyStore.getCertificate("AndroidKey");
+    assertEquals(2048, ((RSAPublicKey) certificate.getPublicKey()).getModulus().bitLength());
+    assertEquals(certificate.getSubjectX500Principal(), certificate.getIssuerX500Principal());
+    assertTrue(certificate.getSubjectX500Principal().getName(),
+        certificate.getSubjectX500Principal().getName().contains("quoted"));
+    // Must be valid after October 22, 2033, to be in the Android marketplace.
+    assertTrue(certificate.getNotAfter().getTime() > 2013552000000L);
+    certificate.verify(certificate.getPublicKey());
+  }
+}
@@ -0,0 +1,63 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests LatencyHistogram class.
+ *
+ */
+public class LatencyHistogramTest extends TestCase {
+  public void testEmptyHistogram() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getPercentileMs(50));
+  }
+
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    // 90 fast builds and 10 slow ones.
+    for (int i = 0; i < 90; i++) {
+      histogram.record(2000);
+    }
+    for (int i = 0; i < 10; i++) {
+      histogram.record(40000);
+    }
+    assertEquals(100, histogram.getCount());
+    assertEquals(90 * 2000 + 10 * 40000, histogram.getSumMs());
+    assertEquals(40000, histogram.getMaxMs());
+
+    // The median is in the (1000, 2500] bucket, but can't be more than the fast builds took.
+    long p50 = histogram.getPercentileMs(50);
+    assertTrue(p50 > 1000 && p50 <= 2000);
+    // p95 and p99 are in the (25000, 50000] bucket, capped by the maximum.
+    long p95 = histogram.getPercentileMs(95);
+    long p99 = histogram.getPercentileMs(99);
+    assertTrue(p95 > 25000 && p95 <= p99 && p99 <= 40000);
+  }
+
+  public void testLatenciesAboveTheLastBucket() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(900000);
+    assertEquals(1, histogram.getBucketCount(LatencyHistogram.BUCKET_BOUNDS_MS.length));
+    long p99 = histogram.getPercentileMs(99);
+    assertTrue(p99 > 600000 && p99 <= 900000);
+    assertEquals(900000, histogram.getPercentileMs(100));
+  }
+
+  public void testPrometheusText() {
+    BuildMetrics.record("test-stage", 30);
+    String text = BuildMetrics.toPrometheusText();
+    assertTrue(text, text.contains(
+        "buildserver_stage_latency_seconds_bucket{stage=\"test-stage\",le=\"0.025\"} 0\n"));
+    assertTrue(text, text.contains(
+        "buildserver_stage_latency_seconds_bucket{stage=\"test-stage\",le=\"0.05\"} 1\n"));
+    assertTrue(text, text.contains(
+        "buildserver_stage_latency_seconds_bucket{stage=\"test-stage\",le=\"+Inf\"} 1\n"));
+    assertTrue(text, text.contains(
+        "buildserver_stage_latency_seconds_count{stage=\"test-stage\"} 1\n"));
+  }
+}
@@ -0,0 +1,52 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests MemoryMonitor class.
+ *
+ */
+public class MemoryMonitorTest extends TestCase {
+  private static final long MB = 1024L * 1024L;
+
+  public void testBuildStartsWhenThereIsRoom() {
+    MemoryMonitor monitor = new MemoryMonitor(256, 512, 1024);
+    assertNull(monitor.findShortage(700 * MB, 1024 * MB, 100 * MB, -1, 0));
+    assertNull(monitor.findShortage(700 * MB, 1024 * MB, 100 * MB, 2048, 4096));
+  }
+
+  public void testLiveHeapLimitsBuilds() {
+    MemoryMonitor monitor = new MemoryMonitor(256, 0, 1024);
+    assertNotNull(monitor.findShortage(800 * MB, 1024 * MB, 0, -1, 0));
+  }
+
+  public void testOffHeapLimitsBuilds() {
+    MemoryMonitor monitor = new MemoryMonitor(256, 512, 1024);
+    assertNotNull(monitor.findShortage(0, 1024 * MB, 600 * MB, -1, 0));
+    // 0 means unlimited.
+    assertNull(new MemoryMonitor(256, 0, 1024).findShortage(0, 1024 * MB, 600 * MB, -1, 0));
+  }
+
+  public void testChildProcessRamLimitsBuilds() {
+    MemoryMonitor monitor = new MemoryMonitor(256, 0, 1024);
+    assertNotNull(monitor.findShortage(0, 1024 * MB, 0, 1000, 4096));
+    // A child process never waits for more than the whole budget.
+    assertNull(monitor.findShortage(0, 1024 * MB, 0, 512, 512));
+  }
+
+  public void testBuildUsageRecordsGcPause() {
+    MemoryMonitor.BuildUsage usage = MemoryMonitor.startBuild();
+    byte[][] garbage = new byte[64][];
+    for (int i = 0; i < garbage.length; i++) {
+      garbage[i] = new byte[64 * 1024];
+    }
+    assertNotNull(usage.finish());
+    assertTrue(BuildMetrics.getHistograms().get("gc-pause").getCount() > 0);
+    assertTrue(MemoryMonitor.getLiveHeapBytes() > 0);
+  }
+}
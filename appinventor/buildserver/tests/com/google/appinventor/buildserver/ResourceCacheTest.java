@@ -0,0 +1,105 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ResourceCache class.
+ *
+ */
+public class ResourceCacheTest extends TestCase {
+  // A resource that is always on the test class path.
+  private static final String RESOURCE =
+      "/com/google/appinventor/buildserver/ResourceCacheTest.class";
+
+  private File cacheDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    cacheDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    ResourceCache.configure(null, null);
+    FileUtils.deleteDirectory(cacheDir);
+  }
+
+  public void testResourceIsExtractedOnce() throws Exception {
+    ResourceCache.configure(cacheDir.getPath(), "v1");
+    File file = ResourceCache.get(RESOURCE);
+    assertEquals(new File(new File(cacheDir, "resources-v1"), RESOURCE), file);
+    assertTrue(Arrays.equals(Resources.toByteArray(getClass().getResource(RESOURCE)),
+        Files.toByteArray(file)));
+    assertSame(file, ResourceCache.get(RESOURCE));
+    // No temporary files are left behind.
+    assertEquals(1, file.getParentFile().list().length);
+  }
+
+  public void testExtractedResourcesSurviveRestarts() throws Exception {
+    ResourceCache.configure(cacheDir.getPath(), "v1");
+    File file = ResourceCache.get(RESOURCE);
+    Files.write("extracted earlier", file, Charsets.UTF_8);
+
+    // Configuring the same version again forgets the files, but the directory is reused.
+    ResourceCache.configure(cacheDir.getPath(), "v1");
+    assertEquals("extracted earlier",
+        Files.toString(ResourceCache.get(RESOURCE), Charsets.UTF_8));
+  }
+
+  public void testOtherVersionsAreDeleted() throws Exception {
+    ResourceCache.configure(cacheDir.getPath(), "v1");
+    ResourceCache.get(RESOURCE);
+    ResourceCache.configure(cacheDir.getPath(), "v2");
+    assertFalse(new File(cacheDir, "resources-v1").exists());
+    assertTrue(ResourceCache.get(RESOURCE).getPath().startsWith(
+        new File(cacheDir, "resources-v2").getPath()));
+  }
+
+  public void testOtherDataIsKept() throws Exception {
+    File otherDir = new File(cacheDir, "dex");
+    otherDir.mkdirs();
+    File otherFile = new File(cacheDir, "v1");
+    Files.write("not a resource", otherFile, Charsets.UTF_8);
+    ResourceCache.configure(cacheDir.getPath(), "v2");
+    assertTrue(otherDir.isDirectory());
+    assertTrue(otherFile.isFile());
+  }
+
+  public void testMissingResources() throws Exception {
+    ResourceCache.configure(cacheDir.getPath(), "v1");
+    try {
+      ResourceCache.get("/no/such/resource");
+      fail();
+    } catch (FileNotFoundException e) {
+      // expected
+    }
+    assertEquals(1, ResourceCache.extractAll(Arrays.asList(RESOURCE, "/no/such/resource")));
+  }
+
+  public void testVersionKey() throws Exception {
+    File jar = new File(cacheDir, "buildserver.jar");
+    Files.write("classes", jar, Charsets.UTF_8);
+    String key = ResourceCache.getVersionKey("none", "abc", jar);
+    assertTrue(key.startsWith("none-"));
+    assertEquals(key, ResourceCache.getVersionKey("none", "abc", jar));
+    // Another commit, or another jar with the same version, gets its own resources.
+    assertFalse(key.equals(ResourceCache.getVersionKey("none", "def", jar)));
+    Files.write("other classes", jar, Charsets.UTF_8);
+    assertFalse(key.equals(ResourceCache.getVersionKey("none", "abc", jar)));
+  }
+}
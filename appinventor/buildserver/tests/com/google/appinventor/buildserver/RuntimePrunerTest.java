@@ -0,0 +1,166 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests RuntimePruner class.
+ *
+ */
+public class RuntimePrunerTest extends TestCase {
+  private static final String PREFIX = "com/google/appinventor/buildserver/RuntimePrunerTest$";
+
+  // A class of the project, which isn't in the runtime jar.
+  static class ProjectClass {
+    Used used;
+  }
+
+  // The classes of the runtime jar.
+  static class Used {
+    static final String LOADED_BY_NAME =
+        "com.google.appinventor.buildserver.RuntimePrunerTest$ByName";
+  }
+  static class ByName {
+  }
+  static class ByManifest {
+  }
+  static class Unused {
+    Used used;
+  }
+
+  private File tempDir;
+  private File runtimeJar;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    runtimeJar = new File(tempDir, "runtime.jar");
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(runtimeJar));
+    try {
+      for (String name : ImmutableList.of("Used", "ByName", "ByManifest", "Unused")) {
+        out.putNextEntry(new ZipEntry(PREFIX + name + ".class"));
+        out.write(readClass(name));
+        out.closeEntry();
+      }
+      out.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+      out.write("Manifest-Version: 1.0\n".getBytes(Charsets.UTF_8));
+      out.closeEntry();
+    } finally {
+      out.close();
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tempDir);
+  }
+
+  private static byte[] readClass(String name) throws Exception {
+    InputStream in = RuntimePrunerTest.class.getResourceAsStream("/" + PREFIX + name + ".class");
+    try {
+      return ByteStreams.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  public void testReadGraph() throws Exception {
+    ImmutableMap<String, ImmutableSet<String>> graph = RuntimePruner.readGraph(runtimeJar);
+    assertEquals(4, graph.size());
+    assertTrue(graph.get(PREFIX + "Used").contains(PREFIX + "ByName"));
+    assertTrue(graph.get(PREFIX + "Unused").contains(PREFIX + "Used"));
+    assertFalse(graph.get(PREFIX + "Used").contains(PREFIX + "Unused"));
+
+    assertEquals(ImmutableSet.of(PREFIX + "Used", PREFIX + "ByName"),
+        RuntimePruner.findReachable(graph, ImmutableList.of(PREFIX + "Used", "not/in/Graph")));
+  }
+
+  public void testPrune() throws Exception {
+    File classesDir = new File(tempDir, "classes/com/example");
+    classesDir.mkdirs();
+    Files.write(readClass("ProjectClass"), new File(classesDir, "ProjectClass.class"));
+    File manifestFile = new File(tempDir, "AndroidManifest.xml");
+    Files.write("<activity android:name=\"com.google.appinventor.buildserver." +
+        "RuntimePrunerTest$ByManifest\" />", manifestFile, Charsets.UTF_8);
+    File outputDir = new File(tempDir, "out");
+    outputDir.mkdirs();
+
+    Set<String> noComponents = ImmutableSet.of();
+    File prunedJar = RuntimePruner.prune(runtimeJar, noComponents,
+        new File(tempDir, "classes"), manifestFile, outputDir);
+
+    Set<String> entries = Sets.newHashSet();
+    ZipFile zipFile = new ZipFile(prunedJar);
+    try {
+      Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+      while (zipEntries.hasMoreElements()) {
+        entries.add(zipEntries.nextElement().getName());
+      }
+    } finally {
+      zipFile.close();
+    }
+    assertEquals(ImmutableSet.of(PREFIX + "Used.class", PREFIX + "ByName.class",
+        PREFIX + "ByManifest.class", "META-INF/MANIFEST.MF"), entries);
+
+    // Pruning for the same classes again reuses the jar.
+    assertEquals(prunedJar, RuntimePruner.prune(runtimeJar, noComponents,
+        new File(tempDir, "classes"), manifestFile, outputDir));
+    assertEquals(1, outputDir.listFiles().length);
+  }
+
+  public void testEvict() throws Exception {
+    File dexCacheDir = new File(tempDir, "dex");
+    dexCacheDir.mkdirs();
+    long now = System.currentTimeMillis();
+    long hour = 60 * 60 * 1000;
+    File oldest = writeFile(dexCacheDir, "pruned-a.jar", 100, now - 3 * hour);
+    File older = writeFile(dexCacheDir, "dex-cached-pruned-b.jar", 100, now - 2 * hour);
+    File old = writeFile(dexCacheDir, "dex-merged-pruned-c.jar", 100, now - hour);
+    File recent = writeFile(dexCacheDir, "pruned-d.jar", 100, now);
+    File library = writeFile(dexCacheDir, "dex-cached-e.jar", 1000, now - 4 * hour);
+
+    // The least recently used pruned files go first. Other files are left alone.
+    RuntimePruner.evict(dexCacheDir, 250, now);
+    assertFalse(oldest.exists());
+    assertFalse(older.exists());
+    assertTrue(old.exists());
+    assertTrue(recent.exists());
+    assertTrue(library.exists());
+
+    // A file that was just used is kept, even if the limit isn't met.
+    RuntimePruner.evict(dexCacheDir, 0, now);
+    assertFalse(old.exists());
+    assertTrue(recent.exists());
+  }
+
+  private static File writeFile(File dir, String name, int length, long lastModified)
+      throws Exception {
+    File file = new File(dir, name);
+    Files.write(new byte[length], file);
+    file.setLastModified(lastModified);
+    return file;
+  }
+}
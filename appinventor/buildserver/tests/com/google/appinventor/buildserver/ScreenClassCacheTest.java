@@ -0,0 +1,66 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ScreenClassCache class.
+ *
+ */
+public class ScreenClassCacheTest extends TestCase {
+  private File tempDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    ScreenClassCache.configure(new File(tempDir, "cache").getPath(), 1);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    ScreenClassCache.configure(null, 0);
+  }
+
+  public void testKeyDependsOnSourceAndLibraries() throws Exception {
+    File source = new File(tempDir, "Screen1.yail");
+    Files.write("(define-form Screen1)", source, Charsets.UTF_8);
+    Set<String> noLibraries = ImmutableSet.of();
+    String key = ScreenClassCache.computeKey(source, "p.", noLibraries);
+
+    assertEquals(key, ScreenClassCache.computeKey(source, "p.", noLibraries));
+    assertFalse(key.equals(ScreenClassCache.computeKey(source, "q.", noLibraries)));
+    assertFalse(key.equals(ScreenClassCache.computeKey(source, "p.", ImmutableSet.of("a.jar"))));
+    Files.write("(define-form Screen1) ", source, Charsets.UTF_8);
+    assertFalse(key.equals(ScreenClassCache.computeKey(source, "p.", noLibraries)));
+  }
+
+  public void testStoreAndRestore() throws Exception {
+    File classesDir = new File(tempDir, "classes/p");
+    classesDir.mkdirs();
+    File classFile = new File(classesDir, "Screen1.class");
+    Files.write(new byte[] { 1 }, classFile);
+    Files.write(new byte[] { 2 }, new File(classesDir, "Screen1$frame.class"));
+    Files.write(new byte[] { 3 }, new File(classesDir, "Screen10.class"));
+
+    assertFalse(ScreenClassCache.restore("key", classFile));
+    ScreenClassCache.store("key", classFile);
+
+    File otherDir = new File(tempDir, "other/p");
+    File otherClassFile = new File(otherDir, "Screen1.class");
+    assertTrue(ScreenClassCache.restore("key", otherClassFile));
+    assertTrue(otherClassFile.isFile());
+    assertTrue(new File(otherDir, "Screen1$frame.class").isFile());
+    // Another screen's classes are not part of the entry.
+    assertFalse(new File(otherDir, "Screen10.class").exists());
+  }
+}
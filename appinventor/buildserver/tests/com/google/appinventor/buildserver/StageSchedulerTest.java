@@ -0,0 +1,83 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.buildserver.StageScheduler.Stage;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests StageScheduler class.
+ *
+ */
+public class StageSchedulerTest extends TestCase {
+  public void testStageLimitsAreIndependent() throws Exception {
+    StageScheduler scheduler = new StageScheduler(2, 1, 0);
+
+    StageScheduler.Permit kawa1 = scheduler.acquire(Stage.KAWA, 1024);
+    StageScheduler.Permit kawa2 = scheduler.acquire(Stage.KAWA, 1024);
+    StageScheduler.Permit dx = scheduler.acquire(Stage.DX, 1024);
+    assertEquals(2, scheduler.getActiveCount(Stage.KAWA));
+    assertEquals(1, scheduler.getActiveCount(Stage.DX));
+
+    // A third Kawa compilation has to wait until one of the others is done.
+    CountDownLatch admitted = acquireInBackground(scheduler, Stage.KAWA, 1024);
+    assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+    kawa1.release();
+    assertTrue(admitted.await(5, TimeUnit.SECONDS));
+
+    kawa2.release();
+    dx.release();
+  }
+
+  public void testRamBudgetLimitsAllStages() throws Exception {
+    StageScheduler scheduler = new StageScheduler(4, 4, 3000);
+
+    StageScheduler.Permit kawa = scheduler.acquire(Stage.KAWA, 2000);
+    assertEquals(1000, scheduler.getAvailableRamMb());
+
+    // DX needs more RAM than what's left.
+    CountDownLatch admitted = acquireInBackground(scheduler, Stage.DX, 2000);
+    assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+    kawa.release();
+    assertTrue(admitted.await(5, TimeUnit.SECONDS));
+  }
+
+  public void testOversizedRequestIsAdmitted() throws Exception {
+    StageScheduler scheduler = new StageScheduler(1, 1, 1000);
+    StageScheduler.Permit dx = scheduler.acquire(Stage.DX, 4000);
+    assertEquals(0, scheduler.getAvailableRamMb());
+    dx.release();
+    // Releasing twice must not return the RAM twice.
+    dx.release();
+    assertEquals(1000, scheduler.getAvailableRamMb());
+  }
+
+  public void testDefaultRamBudget() {
+    // 16 GB of physical memory, a 4 GB build server and two resident 2 GB Kawa compilers.
+    assertEquals(8192, StageScheduler.computeRamBudgetMb(16384, 4096, 2048, 2));
+    // There's always room for one child process.
+    assertEquals(2048, StageScheduler.computeRamBudgetMb(4096, 2048, 2048, 2));
+    assertTrue(StageScheduler.getDefaultRamBudgetMb(2048, 2) >= 2048);
+  }
+
+  private static CountDownLatch acquireInBackground(final StageScheduler scheduler,
+      final Stage stage, final int ramMb) {
+    final CountDownLatch admitted = new CountDownLatch(1);
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        scheduler.acquire(stage, ramMb);
+        admitted.countDown();
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+    return admitted;
+  }
+}